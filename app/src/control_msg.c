@@ -50,6 +50,12 @@ static const char *const copy_key_labels[] = {
     "cut",
 };
 
+static const char *const screenshot_format_labels[] = {
+    "jpeg",
+    "png",
+    "webp",
+};
+
 static inline const char *
 get_well_known_pointer_id_name(uint64_t pointer_id) {
     switch (pointer_id) {
@@ -182,6 +188,15 @@ sc_control_msg_serialize(const struct sc_control_msg *msg, uint8_t *buf) {
             size_t len = write_string_tiny(&buf[1], msg->start_app.name, 255);
             return 1 + len;
         }
+        case SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT:
+            sc_write32be(&buf[1], msg->capture_screenshot.id);
+            buf[5] = msg->capture_screenshot.format;
+            sc_write16be(&buf[6], msg->capture_screenshot.max_size);
+            buf[8] = msg->capture_screenshot.quality;
+            return 9;
+        case SC_CONTROL_MSG_TYPE_SET_INPUT_STREAM:
+            sc_write32be(&buf[1], msg->set_input_stream.scid);
+            return 5;
         case SC_CONTROL_MSG_TYPE_EXPAND_NOTIFICATION_PANEL:
         case SC_CONTROL_MSG_TYPE_EXPAND_SETTINGS_PANEL:
         case SC_CONTROL_MSG_TYPE_COLLAPSE_PANELS:
@@ -318,6 +333,19 @@ sc_control_msg_log(const struct sc_control_msg *msg) {
         case SC_CONTROL_MSG_TYPE_RESET_VIDEO:
             LOG_CMSG("reset video");
             break;
+        case SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT:
+            LOG_CMSG("capture screenshot [%" PRIu32 "] %s max_size=%" PRIu16
+                         " quality=%u",
+                     msg->capture_screenshot.id,
+                     ENUM_TO_LABEL(screenshot_format_labels,
+                                   msg->capture_screenshot.format),
+                     msg->capture_screenshot.max_size,
+                     (unsigned) msg->capture_screenshot.quality);
+            break;
+        case SC_CONTROL_MSG_TYPE_SET_INPUT_STREAM:
+            LOG_CMSG("set input stream %08" PRIx32,
+                     msg->set_input_stream.scid);
+            break;
         default:
             LOG_CMSG("unknown type: %u", (unsigned) msg->type);
             break;
@@ -43,6 +43,15 @@ enum sc_control_msg_type {
     SC_CONTROL_MSG_TYPE_OPEN_HARD_KEYBOARD_SETTINGS,
     SC_CONTROL_MSG_TYPE_START_APP,
     SC_CONTROL_MSG_TYPE_RESET_VIDEO,
+    // GET_APP_LIST (18) is never sent by this client
+    SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT = 19,
+    SC_CONTROL_MSG_TYPE_SET_INPUT_STREAM,
+};
+
+enum sc_screenshot_format {
+    SC_SCREENSHOT_FORMAT_JPEG,
+    SC_SCREENSHOT_FORMAT_PNG,
+    SC_SCREENSHOT_FORMAT_WEBP,
 };
 
 enum sc_copy_key {
@@ -111,6 +120,18 @@ struct sc_control_msg {
         struct {
             char *name;
         } start_app;
+        struct {
+            uint32_t id; // returned in the screenshot device message
+            enum sc_screenshot_format format;
+            uint16_t max_size; // 0 for the display size
+            uint8_t quality; // 0-100, ignored for PNG
+        } capture_screenshot;
+        struct {
+            // scid of the video stream receiving the input events (any other
+            // scid, typically the scid of the main stream, selects the main
+            // stream)
+            uint32_t scid;
+        } set_input_stream;
     };
 };
 
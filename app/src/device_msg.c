@@ -71,6 +71,35 @@ sc_device_msg_deserialize(const uint8_t *buf, size_t len,
 
             return 5 + size;
         }
+        case DEVICE_MSG_TYPE_SCREENSHOT: {
+            if (len < 9) {
+                // at least id + size
+                return 0; // not available
+            }
+            uint32_t id = sc_read32be(&buf[1]);
+            size_t size = sc_read32be(&buf[5]);
+            if (size > DEVICE_MSG_SCREENSHOT_DATA_MAX_LENGTH) {
+                LOGW("Screenshot too big: %" SC_PRIsizet, size);
+                return -1; // error, we cannot recover
+            }
+            if (size > len - 9) {
+                return 0; // not available
+            }
+            uint8_t *data = malloc(size ? size : 1);
+            if (!data) {
+                LOG_OOM();
+                return -1;
+            }
+            if (size) {
+                memcpy(data, &buf[9], size);
+            }
+
+            msg->screenshot.id = id;
+            msg->screenshot.size = size;
+            msg->screenshot.data = data;
+
+            return 9 + size;
+        }
         default:
             LOGW("Unknown device message type: %d", (int) msg->type);
             return -1; // error, we cannot recover
@@ -86,6 +115,9 @@ sc_device_msg_destroy(struct sc_device_msg *msg) {
         case DEVICE_MSG_TYPE_UHID_OUTPUT:
             free(msg->uhid_output.data);
             break;
+        case DEVICE_MSG_TYPE_SCREENSHOT:
+            free(msg->screenshot.data);
+            break;
         default:
             // nothing to do
             break;
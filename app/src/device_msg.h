@@ -10,11 +10,16 @@
 #define DEVICE_MSG_MAX_SIZE (1 << 18) // 256k
 // type: 1 byte; length: 4 bytes
 #define DEVICE_MSG_TEXT_MAX_LENGTH (DEVICE_MSG_MAX_SIZE - 5)
+// type: 1 byte; id: 4 bytes; length: 4 bytes
+#define DEVICE_MSG_SCREENSHOT_DATA_MAX_LENGTH (DEVICE_MSG_MAX_SIZE - 9)
 
 enum sc_device_msg_type {
     DEVICE_MSG_TYPE_CLIPBOARD,
     DEVICE_MSG_TYPE_ACK_CLIPBOARD,
     DEVICE_MSG_TYPE_UHID_OUTPUT,
+    // GET_APP_LIST_PAYLOAD (3) and DISPLAY_SIZE_CHANGED (4) are not handled by
+    // this client
+    DEVICE_MSG_TYPE_SCREENSHOT = 5,
 };
 
 struct sc_device_msg {
@@ -31,6 +36,11 @@ struct sc_device_msg {
             uint16_t size;
             uint8_t *data; // owned, to be freed by free()
         } uhid_output;
+        struct {
+            uint32_t id; // the id of the capture request
+            uint32_t size;
+            uint8_t *data; // encoded image, owned, to be freed by free()
+        } screenshot;
     };
 };
 
@@ -0,0 +1,253 @@
+#include "media_msg.h"
+
+#include <assert.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "util/binary.h"
+#include "util/log.h"
+
+static uint32_t
+float_to_u32(float f) {
+    static_assert(sizeof(float) == sizeof(uint32_t), "float must be 32-bit");
+    uint32_t u;
+    memcpy(&u, &f, sizeof(u));
+    return u;
+}
+
+size_t
+sc_media_control_msg_serialize(const struct sc_media_control_msg *msg,
+                               uint8_t *buf) {
+    buf[0] = msg->type;
+    sc_write32be(&buf[1], msg->scid);
+    uint8_t *payload = &buf[7];
+    size_t payload_len;
+    switch (msg->type) {
+        case SC_MEDIA_CONTROL_MSG_TYPE_SET_BIT_RATE:
+            sc_write32be(payload, msg->set_bit_rate.bit_rate);
+            payload_len = 4;
+            break;
+        case SC_MEDIA_CONTROL_MSG_TYPE_SET_MAX_FPS:
+            sc_write32be(payload, float_to_u32(msg->set_max_fps.max_fps));
+            payload_len = 4;
+            break;
+        case SC_MEDIA_CONTROL_MSG_TYPE_GET_STATS:
+            sc_write32be(payload, msg->get_stats.id);
+            payload_len = 4;
+            break;
+        case SC_MEDIA_CONTROL_MSG_TYPE_SET_RENDITION:
+            sc_write32be(payload, msg->set_rendition.rendition_scid);
+            payload[4] = msg->set_rendition.enabled;
+            payload_len = 5;
+            break;
+        case SC_MEDIA_CONTROL_MSG_TYPE_PAUSE:
+        case SC_MEDIA_CONTROL_MSG_TYPE_RESUME:
+        case SC_MEDIA_CONTROL_MSG_TYPE_REQUEST_STREAM_KEY_FRAME:
+        case SC_MEDIA_CONTROL_MSG_TYPE_REQUEST_PARAMETER_SETS:
+            // no payload
+            payload_len = 0;
+            break;
+        default:
+            LOGW("Unknown media message type: %u", (unsigned) msg->type);
+            return 0;
+    }
+
+    sc_write16be(&buf[5], payload_len);
+    return 7 + payload_len;
+}
+
+ssize_t
+sc_media_packet_deserialize(const uint8_t *buf, size_t len,
+                            struct sc_media_packet *packet) {
+    if (len < 4) {
+        return 0; // no complete packet
+    }
+
+    // the length does not include the length field itself
+    size_t packet_len = sc_read32be(buf);
+    if (packet_len < 5) {
+        LOGW("Invalid media packet length: %" SC_PRIsizet, packet_len);
+        return -1; // error, we cannot recover
+    }
+    if (packet_len > len - 4) {
+        return 0; // no complete packet
+    }
+
+    packet->scid = sc_read32be(&buf[4]);
+    packet->type = buf[8];
+
+    // the content following the type
+    const uint8_t *content = &buf[SC_MEDIA_PACKET_PREFIX_SIZE];
+    size_t content_len = packet_len - 5;
+    size_t min_len;
+    switch (packet->type) {
+        case SC_MEDIA_PACKET_TYPE_VIDEO:
+        case SC_MEDIA_PACKET_TYPE_AUDIO:
+            min_len = 12;
+            break;
+        case SC_MEDIA_PACKET_TYPE_VIDEO_METADATA:
+            min_len = 24;
+            break;
+        case SC_MEDIA_PACKET_TYPE_AUDIO_METADATA:
+        case SC_MEDIA_PACKET_TYPE_VIDEO_CONTENT_RECT:
+        case SC_MEDIA_PACKET_TYPE_THUMBNAIL:
+            min_len = 16;
+            break;
+        case SC_MEDIA_PACKET_TYPE_VIDEO_BITRATE:
+            min_len = 4;
+            break;
+        case SC_MEDIA_PACKET_TYPE_STATS:
+            min_len = 45;
+            break;
+        case SC_MEDIA_PACKET_TYPE_VIDEO_RECONFIGURED:
+            min_len = 25;
+            break;
+        default:
+            // STREAM_DISABLED has no content, and a packet of an unknown type
+            // (from a newer server) is skipped
+            min_len = 0;
+            break;
+    }
+
+    if (content_len < min_len) {
+        LOGW("Media packet too short (type %u, %" SC_PRIsizet " bytes)",
+             (unsigned) packet->type, content_len);
+        return -1; // error, we cannot recover
+    }
+
+    // Any extra content is ignored
+    switch (packet->type) {
+        case SC_MEDIA_PACKET_TYPE_VIDEO:
+        case SC_MEDIA_PACKET_TYPE_AUDIO:
+            packet->frame.flags = sc_read32be(content);
+            packet->frame.pts = sc_read64be(&content[4]);
+            packet->frame.data = &content[12];
+            packet->frame.size = content_len - 12;
+            break;
+        case SC_MEDIA_PACKET_TYPE_VIDEO_METADATA:
+            packet->video_metadata.codec_id = sc_read32be(content);
+            packet->video_metadata.bit_rate = sc_read32be(&content[4]);
+            packet->video_metadata.width = sc_read32be(&content[8]);
+            packet->video_metadata.height = sc_read32be(&content[12]);
+            packet->video_metadata.framerate = sc_read32be(&content[16]);
+            packet->video_metadata.gop_size = sc_read32be(&content[20]);
+            break;
+        case SC_MEDIA_PACKET_TYPE_AUDIO_METADATA:
+            packet->audio_metadata.codec_id = sc_read32be(content);
+            packet->audio_metadata.sample_bits = sc_read32be(&content[4]);
+            packet->audio_metadata.sample_rate = sc_read32be(&content[8]);
+            packet->audio_metadata.channels = sc_read32be(&content[12]);
+            break;
+        case SC_MEDIA_PACKET_TYPE_VIDEO_BITRATE:
+            packet->video_bitrate.bit_rate = sc_read32be(content);
+            break;
+        case SC_MEDIA_PACKET_TYPE_STATS:
+            packet->stats.id = sc_read32be(content);
+            packet->stats.packet_count = sc_read64be(&content[4]);
+            packet->stats.byte_count = sc_read64be(&content[12]);
+            packet->stats.dropped_packets = sc_read64be(&content[20]);
+            packet->stats.queue_depth = sc_read32be(&content[28]);
+            packet->stats.bit_rate = sc_read32be(&content[32]);
+            packet->stats.paused = content[36];
+            packet->stats.avg_latency_us = sc_read32be(&content[37]);
+            packet->stats.max_latency_us = sc_read32be(&content[41]);
+            break;
+        case SC_MEDIA_PACKET_TYPE_VIDEO_RECONFIGURED:
+            packet->video_reconfigured.version = content[0];
+            packet->video_reconfigured.sequence = sc_read32be(&content[1]);
+            packet->video_reconfigured.codec_id = sc_read32be(&content[5]);
+            packet->video_reconfigured.bit_rate = sc_read32be(&content[9]);
+            packet->video_reconfigured.width = sc_read32be(&content[13]);
+            packet->video_reconfigured.height = sc_read32be(&content[17]);
+            packet->video_reconfigured.framerate = sc_read32be(&content[21]);
+            break;
+        case SC_MEDIA_PACKET_TYPE_THUMBNAIL:
+            packet->thumbnail.width = sc_read32be(content);
+            packet->thumbnail.height = sc_read32be(&content[4]);
+            packet->thumbnail.pts = sc_read64be(&content[8]);
+            packet->thumbnail.data = &content[16];
+            packet->thumbnail.size = content_len - 16;
+            break;
+        case SC_MEDIA_PACKET_TYPE_VIDEO_CONTENT_RECT:
+            packet->video_content_rect.left = sc_read32be(content);
+            packet->video_content_rect.top = sc_read32be(&content[4]);
+            packet->video_content_rect.width = sc_read32be(&content[8]);
+            packet->video_content_rect.height = sc_read32be(&content[12]);
+            break;
+        case SC_MEDIA_PACKET_TYPE_STREAM_DISABLED:
+            // no content
+            break;
+        default:
+            LOGD("Unknown media packet type: %u (%" SC_PRIsizet
+                 " bytes skipped)", (unsigned) packet->type, content_len);
+            break;
+    }
+
+    return 4 + packet_len;
+}
+
+void
+sc_media_frame_assembler_init(struct sc_media_frame_assembler *assembler) {
+    assembler->data = NULL;
+    assembler->size = 0;
+    assembler->capacity = 0;
+}
+
+void
+sc_media_frame_assembler_destroy(struct sc_media_frame_assembler *assembler) {
+    free(assembler->data);
+}
+
+static bool
+sc_media_frame_assembler_append(struct sc_media_frame_assembler *assembler,
+                                const uint8_t *data, size_t size) {
+    size_t needed = assembler->size + size;
+    if (needed > assembler->capacity) {
+        size_t capacity = assembler->capacity ? assembler->capacity : 64 * 1024;
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        uint8_t *p = realloc(assembler->data, capacity);
+        if (!p) {
+            LOG_OOM();
+            return false;
+        }
+        assembler->data = p;
+        assembler->capacity = capacity;
+    }
+
+    memcpy(&assembler->data[assembler->size], data, size);
+    assembler->size = needed;
+    return true;
+}
+
+int
+sc_media_frame_assembler_push(struct sc_media_frame_assembler *assembler,
+                              struct sc_media_packet *packet) {
+    assert(packet->type == SC_MEDIA_PACKET_TYPE_VIDEO
+        || packet->type == SC_MEDIA_PACKET_TYPE_AUDIO);
+
+    bool fragment = packet->frame.flags & SC_MEDIA_FRAME_FLAG_FRAGMENT;
+    if (!fragment && !assembler->size) {
+        // Not fragmented, nothing to do
+        return 1;
+    }
+
+    if (!sc_media_frame_assembler_append(assembler, packet->frame.data,
+                                         packet->frame.size)) {
+        assembler->size = 0;
+        return -1;
+    }
+
+    if (fragment) {
+        // More fragments are expected
+        return 0;
+    }
+
+    // The last fragment carries the flags of the original frame
+    packet->frame.data = assembler->data;
+    packet->frame.size = assembler->size;
+    // The data remain valid until the next push
+    assembler->size = 0;
+    return 1;
+}
@@ -0,0 +1,205 @@
+#ifndef SC_MEDIA_MSG_H
+#define SC_MEDIA_MSG_H
+
+#include "common.h"
+
+#include <stdbool.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <sys/types.h>
+
+// Messages of the media streams framed by the server (when the frame meta is
+// enabled), and of their back-channel.
+//
+// Each media packet starts with its length (4 bytes, not included), followed
+// by the scid of the stream (4 bytes), the type (1 byte) and the content. A
+// packet of an unknown type can therefore be skipped.
+//
+// Each back-channel message starts with its type (1 byte), the scid of the
+// target stream (4 bytes) and the length of its payload (2 bytes), followed by
+// the payload.
+//
+// The demuxer does not read the multiplexed media connection yet, so this is
+// only built for the tests.
+
+// type: 1 byte; scid: 4 bytes; payload length: 2 bytes; payload: 5 bytes
+#define SC_MEDIA_CONTROL_MSG_MAX_SIZE 12
+
+// length: 4 bytes; scid: 4 bytes; type: 1 byte
+#define SC_MEDIA_PACKET_PREFIX_SIZE 9
+
+// The message is intended for the main stream of the connection
+#define SC_MEDIA_SCID_DEFAULT UINT32_C(-1)
+// The message is intended for the audio stream of the connection
+#define SC_MEDIA_SCID_AUDIO UINT32_C(-2)
+
+// Set in the flags of a frame containing the codec configuration (the same
+// value as MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
+#define SC_MEDIA_FRAME_FLAG_CONFIG 2
+// MediaCodec.BUFFER_FLAG_KEY_FRAME
+#define SC_MEDIA_FRAME_FLAG_KEY_FRAME 1
+// Set in the flags of every fragment of a large frame except the last one.
+// Each fragment has the header of the original frame (with its own length).
+#define SC_MEDIA_FRAME_FLAG_FRAGMENT (UINT32_C(1) << 30)
+
+enum sc_media_control_msg_type {
+    // REQUEST_KEY_FRAME (1) is the legacy single-byte request for the main
+    // stream, superseded by REQUEST_STREAM_KEY_FRAME
+    SC_MEDIA_CONTROL_MSG_TYPE_SET_BIT_RATE = 2,
+    SC_MEDIA_CONTROL_MSG_TYPE_SET_MAX_FPS,
+    SC_MEDIA_CONTROL_MSG_TYPE_PAUSE,
+    SC_MEDIA_CONTROL_MSG_TYPE_RESUME,
+    SC_MEDIA_CONTROL_MSG_TYPE_GET_STATS,
+    SC_MEDIA_CONTROL_MSG_TYPE_REQUEST_STREAM_KEY_FRAME,
+    SC_MEDIA_CONTROL_MSG_TYPE_SET_RENDITION,
+    SC_MEDIA_CONTROL_MSG_TYPE_REQUEST_PARAMETER_SETS,
+};
+
+struct sc_media_control_msg {
+    enum sc_media_control_msg_type type;
+    // scid of the target stream, SC_MEDIA_SCID_DEFAULT or SC_MEDIA_SCID_AUDIO
+    uint32_t scid;
+    union {
+        struct {
+            uint32_t bit_rate; // in bps
+        } set_bit_rate;
+        struct {
+            float max_fps;
+        } set_max_fps;
+        struct {
+            uint32_t id; // returned in the stats packet
+        } get_stats;
+        struct {
+            // the target stream is the video stream the rendition is
+            // encoded from
+            uint32_t rendition_scid;
+            bool enabled;
+        } set_rendition;
+    };
+};
+
+enum sc_media_packet_type {
+    SC_MEDIA_PACKET_TYPE_VIDEO,
+    SC_MEDIA_PACKET_TYPE_VIDEO_METADATA,
+    SC_MEDIA_PACKET_TYPE_AUDIO,
+    SC_MEDIA_PACKET_TYPE_AUDIO_METADATA,
+    SC_MEDIA_PACKET_TYPE_VIDEO_BITRATE,
+    SC_MEDIA_PACKET_TYPE_STATS,
+    SC_MEDIA_PACKET_TYPE_VIDEO_RECONFIGURED,
+    SC_MEDIA_PACKET_TYPE_THUMBNAIL,
+    SC_MEDIA_PACKET_TYPE_VIDEO_CONTENT_RECT,
+    SC_MEDIA_PACKET_TYPE_STREAM_DISABLED,
+};
+
+struct sc_media_packet {
+    enum sc_media_packet_type type; // may be unknown, to be ignored
+    uint32_t scid;
+    union {
+        struct {
+            uint32_t flags; // SC_MEDIA_FRAME_FLAG_*
+            uint64_t pts; // in microseconds
+            const uint8_t *data; // not owned, points into the parsed buffer
+            uint32_t size;
+        } frame; // VIDEO or AUDIO
+        struct {
+            uint32_t codec_id;
+            uint32_t bit_rate;
+            uint32_t width;
+            uint32_t height;
+            uint32_t framerate;
+            uint32_t gop_size;
+        } video_metadata;
+        struct {
+            uint32_t codec_id;
+            uint32_t sample_bits;
+            uint32_t sample_rate;
+            uint32_t channels;
+        } audio_metadata;
+        struct {
+            uint32_t bit_rate;
+        } video_bitrate;
+        struct {
+            uint32_t id; // the id of the GET_STATS request
+            uint64_t packet_count;
+            uint64_t byte_count;
+            uint64_t dropped_packets;
+            uint32_t queue_depth;
+            uint32_t bit_rate;
+            bool paused;
+            uint32_t avg_latency_us;
+            uint32_t max_latency_us;
+        } stats;
+        struct {
+            uint8_t version;
+            uint32_t sequence; // incremented on every reconfiguration
+            uint32_t codec_id;
+            uint32_t bit_rate;
+            uint32_t width;
+            uint32_t height;
+            uint32_t framerate;
+        } video_reconfigured;
+        struct {
+            uint32_t width;
+            uint32_t height;
+            uint64_t pts; // in microseconds
+            const uint8_t *data; // JPEG, not owned
+            uint32_t size;
+        } thumbnail;
+        struct {
+            uint32_t left;
+            uint32_t top;
+            uint32_t width;
+            uint32_t height;
+        } video_content_rect;
+    };
+};
+
+// buf size must be at least SC_MEDIA_CONTROL_MSG_MAX_SIZE
+// return the number of bytes written
+size_t
+sc_media_control_msg_serialize(const struct sc_media_control_msg *msg,
+                               uint8_t *buf);
+
+// return the number of bytes consumed (0 for no complete packet available, -1
+// on error)
+//
+// The packet data points into buf, so it is valid only as long as buf is.
+ssize_t
+sc_media_packet_deserialize(const uint8_t *buf, size_t len,
+                            struct sc_media_packet *packet);
+
+/**
+ * Reassemble the fragments of the frames of a single stream.
+ *
+ * The fragments of a frame are never interleaved with the other packets of
+ * the same stream, but they may be with the packets of other streams, so one
+ * assembler is needed per stream.
+ */
+struct sc_media_frame_assembler {
+    uint8_t *data;
+    size_t size;
+    size_t capacity;
+};
+
+void
+sc_media_frame_assembler_init(struct sc_media_frame_assembler *assembler);
+
+void
+sc_media_frame_assembler_destroy(struct sc_media_frame_assembler *assembler);
+
+/**
+ * Push a frame packet (VIDEO or AUDIO)
+ *
+ * Return 1 if the packet is a complete frame, 0 if it is a fragment and more
+ * fragments are expected, -1 on error.
+ *
+ * On a complete frame reassembled from fragments, the packet data is replaced
+ * by the reassembled data (owned by the assembler, valid until the next push)
+ * and SC_MEDIA_FRAME_FLAG_FRAGMENT is never set in its flags. A complete frame
+ * which was not fragmented is left untouched.
+ */
+int
+sc_media_frame_assembler_push(struct sc_media_frame_assembler *assembler,
+                              struct sc_media_packet *packet);
+
+#endif
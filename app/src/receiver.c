@@ -149,6 +149,12 @@ process_msg(struct sc_receiver *receiver, struct sc_device_msg *msg) {
                 return;
             }
 
+            break;
+        case DEVICE_MSG_TYPE_SCREENSHOT:
+            // This client never requests screenshots
+            LOGD("Ignoring screenshot [%" PRIu32 "] (%" PRIu32 " bytes)",
+                 msg->screenshot.id, msg->screenshot.size);
+            sc_device_msg_destroy(msg);
             break;
     }
 }
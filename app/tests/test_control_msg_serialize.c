@@ -426,6 +426,50 @@ static void test_serialize_reset_video(void) {
     assert(!memcmp(buf, expected, sizeof(expected)));
 }
 
+static void test_serialize_capture_screenshot(void) {
+    struct sc_control_msg msg = {
+        .type = SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT,
+        .capture_screenshot = {
+            .id = 0x01020304,
+            .format = SC_SCREENSHOT_FORMAT_WEBP,
+            .max_size = 1920,
+            .quality = 80,
+        },
+    };
+
+    uint8_t buf[SC_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_control_msg_serialize(&msg, buf);
+    assert(size == 9);
+
+    const uint8_t expected[] = {
+        SC_CONTROL_MSG_TYPE_CAPTURE_SCREENSHOT,
+        0x01, 0x02, 0x03, 0x04, // id
+        SC_SCREENSHOT_FORMAT_WEBP,
+        0x07, 0x80, // max_size
+        80, // quality
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
+static void test_serialize_set_input_stream(void) {
+    struct sc_control_msg msg = {
+        .type = SC_CONTROL_MSG_TYPE_SET_INPUT_STREAM,
+        .set_input_stream = {
+            .scid = 0x12345678,
+        },
+    };
+
+    uint8_t buf[SC_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_control_msg_serialize(&msg, buf);
+    assert(size == 5);
+
+    const uint8_t expected[] = {
+        SC_CONTROL_MSG_TYPE_SET_INPUT_STREAM,
+        0x12, 0x34, 0x56, 0x78, // scid
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
 int main(int argc, char *argv[]) {
     (void) argc;
     (void) argv;
@@ -449,5 +493,7 @@ int main(int argc, char *argv[]) {
     test_serialize_uhid_destroy();
     test_serialize_open_hard_keyboard();
     test_serialize_reset_video();
+    test_serialize_capture_screenshot();
+    test_serialize_set_input_stream();
     return 0;
 }
@@ -83,6 +83,41 @@ static void test_deserialize_uhid_output(void) {
     sc_device_msg_destroy(&msg);
 }
 
+static void test_deserialize_screenshot(void) {
+    const uint8_t input[] = {
+        DEVICE_MSG_TYPE_SCREENSHOT,
+        0x01, 0x02, 0x03, 0x04, // id
+        0, 0, 0, 4, // size
+        0xFF, 0xD8, 0xFF, 0xD9, // data
+    };
+
+    struct sc_device_msg msg;
+    ssize_t r = sc_device_msg_deserialize(input, sizeof(input), &msg);
+    assert(r == 13);
+
+    assert(msg.type == DEVICE_MSG_TYPE_SCREENSHOT);
+    assert(msg.screenshot.id == 0x01020304);
+    assert(msg.screenshot.size == 4);
+
+    uint8_t expected[] = {0xFF, 0xD8, 0xFF, 0xD9};
+    assert(!memcmp(msg.screenshot.data, expected, sizeof(expected)));
+
+    sc_device_msg_destroy(&msg);
+}
+
+static void test_deserialize_screenshot_partial(void) {
+    const uint8_t input[] = {
+        DEVICE_MSG_TYPE_SCREENSHOT,
+        0x01, 0x02, 0x03, 0x04, // id
+        0, 0, 0, 4, // size
+        0xFF, 0xD8, // data (incomplete)
+    };
+
+    struct sc_device_msg msg;
+    ssize_t r = sc_device_msg_deserialize(input, sizeof(input), &msg);
+    assert(r == 0);
+}
+
 int main(int argc, char *argv[]) {
     (void) argc;
     (void) argv;
@@ -91,5 +126,7 @@ int main(int argc, char *argv[]) {
     test_deserialize_clipboard_big();
     test_deserialize_ack_set_clipboard();
     test_deserialize_uhid_output();
+    test_deserialize_screenshot();
+    test_deserialize_screenshot_partial();
     return 0;
 }
@@ -0,0 +1,331 @@
+#include "common.h"
+
+#include <assert.h>
+#include <stdint.h>
+#include <string.h>
+
+#include "media_msg.h"
+
+static void test_serialize_set_bit_rate(void) {
+    struct sc_media_control_msg msg = {
+        .type = SC_MEDIA_CONTROL_MSG_TYPE_SET_BIT_RATE,
+        .scid = SC_MEDIA_SCID_DEFAULT,
+        .set_bit_rate = {
+            .bit_rate = 8000000,
+        },
+    };
+
+    uint8_t buf[SC_MEDIA_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_media_control_msg_serialize(&msg, buf);
+    assert(size == 11);
+
+    const uint8_t expected[] = {
+        SC_MEDIA_CONTROL_MSG_TYPE_SET_BIT_RATE,
+        0xff, 0xff, 0xff, 0xff, // SC_MEDIA_SCID_DEFAULT
+        0x00, 0x04, // payload length
+        0x00, 0x7a, 0x12, 0x00, // 8000000
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
+static void test_serialize_set_max_fps(void) {
+    struct sc_media_control_msg msg = {
+        .type = SC_MEDIA_CONTROL_MSG_TYPE_SET_MAX_FPS,
+        .scid = 0x12345678,
+        .set_max_fps = {
+            .max_fps = 60.0f,
+        },
+    };
+
+    uint8_t buf[SC_MEDIA_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_media_control_msg_serialize(&msg, buf);
+    assert(size == 11);
+
+    const uint8_t expected[] = {
+        SC_MEDIA_CONTROL_MSG_TYPE_SET_MAX_FPS,
+        0x12, 0x34, 0x56, 0x78, // scid
+        0x00, 0x04, // payload length
+        0x42, 0x70, 0x00, 0x00, // 60.0f
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
+static void test_serialize_set_rendition(void) {
+    struct sc_media_control_msg msg = {
+        .type = SC_MEDIA_CONTROL_MSG_TYPE_SET_RENDITION,
+        .scid = 0x12345678,
+        .set_rendition = {
+            .rendition_scid = 0x12345679,
+            .enabled = true,
+        },
+    };
+
+    uint8_t buf[SC_MEDIA_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_media_control_msg_serialize(&msg, buf);
+    assert(size == 12);
+
+    const uint8_t expected[] = {
+        SC_MEDIA_CONTROL_MSG_TYPE_SET_RENDITION,
+        0x12, 0x34, 0x56, 0x78, // scid
+        0x00, 0x05, // payload length
+        0x12, 0x34, 0x56, 0x79, // rendition scid
+        0x01, // enabled
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
+static void test_serialize_request_parameter_sets(void) {
+    struct sc_media_control_msg msg = {
+        .type = SC_MEDIA_CONTROL_MSG_TYPE_REQUEST_PARAMETER_SETS,
+        .scid = SC_MEDIA_SCID_AUDIO,
+    };
+
+    uint8_t buf[SC_MEDIA_CONTROL_MSG_MAX_SIZE];
+    size_t size = sc_media_control_msg_serialize(&msg, buf);
+    assert(size == 7);
+
+    const uint8_t expected[] = {
+        SC_MEDIA_CONTROL_MSG_TYPE_REQUEST_PARAMETER_SETS,
+        0xff, 0xff, 0xff, 0xfe, // SC_MEDIA_SCID_AUDIO
+        0x00, 0x00, // payload length
+    };
+    assert(!memcmp(buf, expected, sizeof(expected)));
+}
+
+static void test_deserialize_video_frame(void) {
+    const uint8_t input[] = {
+        0x00, 0x00, 0x00, 0x14, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        SC_MEDIA_PACKET_TYPE_VIDEO,
+        0x00, 0x00, 0x00, 0x01, // SC_MEDIA_FRAME_FLAG_KEY_FRAME
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x02, 0x03, // pts
+        0x00, 0x00, 0x01, // data
+    };
+
+    struct sc_media_packet packet;
+    ssize_t r = sc_media_packet_deserialize(input, sizeof(input), &packet);
+    assert(r == 24);
+
+    assert(packet.type == SC_MEDIA_PACKET_TYPE_VIDEO);
+    assert(packet.scid == 0x12345678);
+    assert(packet.frame.flags == SC_MEDIA_FRAME_FLAG_KEY_FRAME);
+    assert(packet.frame.pts == 0x010203);
+    assert(packet.frame.size == 3);
+    assert(packet.frame.data == &input[21]);
+}
+
+static void test_reassemble_fragments(void) {
+    const uint8_t input[] = {
+        0x00, 0x00, 0x00, 0x13, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        SC_MEDIA_PACKET_TYPE_VIDEO,
+        0x40, 0x00, 0x00, 0x01, // FRAGMENT | KEY_FRAME
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x02, 0x03, // pts
+        0x00, 0x00, // data
+
+        0x00, 0x00, 0x00, 0x13, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        SC_MEDIA_PACKET_TYPE_VIDEO,
+        0x40, 0x00, 0x00, 0x01, // FRAGMENT | KEY_FRAME
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x02, 0x03, // pts
+        0x00, 0x01, // data
+
+        0x00, 0x00, 0x00, 0x12, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        SC_MEDIA_PACKET_TYPE_VIDEO,
+        0x00, 0x00, 0x00, 0x01, // KEY_FRAME (last fragment)
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x02, 0x03, // pts
+        0x65, // data
+
+        0x00, 0x00, 0x00, 0x12, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        SC_MEDIA_PACKET_TYPE_VIDEO,
+        0x00, 0x00, 0x00, 0x00, // flags
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x02, 0x04, // pts
+        0x41, // data (not fragmented)
+    };
+
+    struct sc_media_frame_assembler assembler;
+    sc_media_frame_assembler_init(&assembler);
+
+    const uint8_t *buf = input;
+    size_t len = sizeof(input);
+
+    struct sc_media_packet packet;
+    ssize_t r = sc_media_packet_deserialize(buf, len, &packet);
+    assert(r == 23);
+    assert(sc_media_frame_assembler_push(&assembler, &packet) == 0);
+    buf += r;
+    len -= r;
+
+    r = sc_media_packet_deserialize(buf, len, &packet);
+    assert(r == 23);
+    assert(sc_media_frame_assembler_push(&assembler, &packet) == 0);
+    buf += r;
+    len -= r;
+
+    r = sc_media_packet_deserialize(buf, len, &packet);
+    assert(r == 22);
+    assert(sc_media_frame_assembler_push(&assembler, &packet) == 1);
+    buf += r;
+    len -= r;
+
+    assert(packet.frame.flags == SC_MEDIA_FRAME_FLAG_KEY_FRAME);
+    assert(packet.frame.pts == 0x010203);
+    assert(packet.frame.size == 5);
+    const uint8_t expected[] = {0x00, 0x00, 0x00, 0x01, 0x65};
+    assert(!memcmp(packet.frame.data, expected, sizeof(expected)));
+
+    r = sc_media_packet_deserialize(buf, len, &packet);
+    assert(r == 22);
+    assert((size_t) r == len);
+    assert(sc_media_frame_assembler_push(&assembler, &packet) == 1);
+    // not fragmented, the data still point into the input
+    assert(packet.frame.pts == 0x010204);
+    assert(packet.frame.size == 1);
+    assert(packet.frame.data == &buf[21]);
+
+    sc_media_frame_assembler_destroy(&assembler);
+}
+
+static void test_deserialize_stats(void) {
+    const uint8_t input[] = {
+        0x00, 0x00, 0x00, 0x32, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        SC_MEDIA_PACKET_TYPE_STATS,
+        0x00, 0x00, 0x00, 0x2a, // id
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, // packet count
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x10, 0x00, 0x00, // byte count
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x03, // dropped packets
+        0x00, 0x00, 0x00, 0x02, // queue depth
+        0x00, 0x7a, 0x12, 0x00, // bit rate
+        0x01, // paused
+        0x00, 0x00, 0x03, 0xe8, // average latency
+        0x00, 0x00, 0x07, 0xd0, // max latency
+    };
+
+    struct sc_media_packet packet;
+    ssize_t r = sc_media_packet_deserialize(input, sizeof(input), &packet);
+    assert(r == 54);
+
+    assert(packet.type == SC_MEDIA_PACKET_TYPE_STATS);
+    assert(packet.stats.id == 42);
+    assert(packet.stats.packet_count == 256);
+    assert(packet.stats.byte_count == 0x100000);
+    assert(packet.stats.dropped_packets == 3);
+    assert(packet.stats.queue_depth == 2);
+    assert(packet.stats.bit_rate == 8000000);
+    assert(packet.stats.paused);
+    assert(packet.stats.avg_latency_us == 1000);
+    assert(packet.stats.max_latency_us == 2000);
+}
+
+static void test_deserialize_video_reconfigured(void) {
+    const uint8_t input[] = {
+        0x00, 0x00, 0x00, 0x1e, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        SC_MEDIA_PACKET_TYPE_VIDEO_RECONFIGURED,
+        0x01, // version
+        0x00, 0x00, 0x00, 0x02, // sequence
+        0x68, 0x32, 0x36, 0x34, // "h264"
+        0x00, 0x7a, 0x12, 0x00, // bit rate
+        0x00, 0x00, 0x04, 0x38, // width
+        0x00, 0x00, 0x07, 0x80, // height
+        0x00, 0x00, 0x00, 0x3c, // framerate
+    };
+
+    struct sc_media_packet packet;
+    ssize_t r = sc_media_packet_deserialize(input, sizeof(input), &packet);
+    assert(r == 34);
+
+    assert(packet.type == SC_MEDIA_PACKET_TYPE_VIDEO_RECONFIGURED);
+    assert(packet.video_reconfigured.version == 1);
+    assert(packet.video_reconfigured.sequence == 2);
+    assert(packet.video_reconfigured.codec_id == 0x68323634);
+    assert(packet.video_reconfigured.bit_rate == 8000000);
+    assert(packet.video_reconfigured.width == 1080);
+    assert(packet.video_reconfigured.height == 1920);
+    assert(packet.video_reconfigured.framerate == 60);
+}
+
+static void test_deserialize_video_content_rect(void) {
+    const uint8_t input[] = {
+        0x00, 0x00, 0x00, 0x15, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        SC_MEDIA_PACKET_TYPE_VIDEO_CONTENT_RECT,
+        0x00, 0x00, 0x00, 0x00, // left
+        0x00, 0x00, 0x00, 0x78, // top
+        0x00, 0x00, 0x04, 0x38, // width
+        0x00, 0x00, 0x06, 0x90, // height
+    };
+
+    struct sc_media_packet packet;
+    ssize_t r = sc_media_packet_deserialize(input, sizeof(input), &packet);
+    assert(r == 25);
+
+    assert(packet.type == SC_MEDIA_PACKET_TYPE_VIDEO_CONTENT_RECT);
+    assert(packet.video_content_rect.left == 0);
+    assert(packet.video_content_rect.top == 120);
+    assert(packet.video_content_rect.width == 1080);
+    assert(packet.video_content_rect.height == 1680);
+}
+
+static void test_deserialize_stream_disabled(void) {
+    const uint8_t input[] = {
+        0x00, 0x00, 0x00, 0x05, // length
+        0x12, 0x34, 0x56, 0x79, // scid
+        SC_MEDIA_PACKET_TYPE_STREAM_DISABLED,
+    };
+
+    struct sc_media_packet packet;
+    ssize_t r = sc_media_packet_deserialize(input, sizeof(input), &packet);
+    assert(r == 9);
+
+    assert(packet.type == SC_MEDIA_PACKET_TYPE_STREAM_DISABLED);
+    assert(packet.scid == 0x12345679);
+}
+
+static void test_deserialize_unknown_type(void) {
+    const uint8_t input[] = {
+        0x00, 0x00, 0x00, 0x07, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        0x7f, // unknown type
+        0x01, 0x02, // content
+    };
+
+    struct sc_media_packet packet;
+    ssize_t r = sc_media_packet_deserialize(input, sizeof(input), &packet);
+    assert(r == 11); // skipped
+}
+
+static void test_deserialize_partial(void) {
+    const uint8_t input[] = {
+        0x00, 0x00, 0x00, 0x09, // length
+        0x12, 0x34, 0x56, 0x78, // scid
+        SC_MEDIA_PACKET_TYPE_VIDEO_BITRATE,
+        0x00, 0x7a, // bit rate (incomplete)
+    };
+
+    struct sc_media_packet packet;
+    ssize_t r = sc_media_packet_deserialize(input, sizeof(input), &packet);
+    assert(r == 0);
+}
+
+int main(int argc, char *argv[]) {
+    (void) argc;
+    (void) argv;
+
+    test_serialize_set_bit_rate();
+    test_serialize_set_max_fps();
+    test_serialize_set_rendition();
+    test_serialize_request_parameter_sets();
+    test_deserialize_video_frame();
+    test_reassemble_fragments();
+    test_deserialize_stats();
+    test_deserialize_video_reconfigured();
+    test_deserialize_video_content_rect();
+    test_deserialize_stream_disabled();
+    test_deserialize_unknown_type();
+    test_deserialize_partial();
+    return 0;
+}
@@ -2,25 +2,32 @@ package com.genymobile.scrcpy;
 
 import com.genymobile.scrcpy.audio.AudioCodec;
 import com.genymobile.scrcpy.audio.AudioSource;
+import com.genymobile.scrcpy.device.CongestionPolicy;
 import com.genymobile.scrcpy.device.Device;
 import com.genymobile.scrcpy.device.NewDisplay;
 import com.genymobile.scrcpy.device.Orientation;
 import com.genymobile.scrcpy.device.Size;
+import com.genymobile.scrcpy.device.TransportType;
 import com.genymobile.scrcpy.util.CodecOption;
 import com.genymobile.scrcpy.util.Ln;
 import com.genymobile.scrcpy.video.CameraAspectRatio;
 import com.genymobile.scrcpy.video.CameraFacing;
+import com.genymobile.scrcpy.video.EncoderFailoverChain;
 import com.genymobile.scrcpy.video.VideoCodec;
+import com.genymobile.scrcpy.video.VideoDisplay;
+import com.genymobile.scrcpy.video.VideoRendition;
 import com.genymobile.scrcpy.video.VideoSource;
 import com.genymobile.scrcpy.wrappers.WindowManager;
 
 import android.graphics.Rect;
 import android.util.Pair;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
-public class Options {
+public class Options implements Cloneable {
 
     private Ln.Level logLevel = Ln.Level.DEBUG;
     private int scid = -1; // 31-bit non-negative value, or -1
@@ -33,9 +40,15 @@ public class Options {
     private AudioSource audioSource = AudioSource.OUTPUT;
     private boolean audioDup;
     private int videoBitRate = 8000000;
+    private boolean adaptiveBitRate;
+    private boolean adaptiveResolution; // step the capture size down (and back up) at runtime depending on the encoder load
+    private boolean adaptiveFps; // throttle the encoder while the content is static
+    private int videoBitRateMin; // 0 for automatic
+    private int videoBitRateMax; // 0 for automatic
     private int audioBitRate = 128000;
     private float maxFps;
     private float angle;
+    private boolean fixedCanvas; // keep the video size on rotation, the content being letterboxed in a square canvas
     private boolean tunnelForward = false;
     private Rect crop;
     private boolean control = true;
@@ -73,6 +86,8 @@ public class Options {
     private boolean listCameras;
     private boolean listCameraSizes;
     private boolean listApps;
+    private boolean benchmarkTransports;
+    private boolean benchmarkEncoders;
 
     // Options not used by the scrcpy client, but useful to use scrcpy-server directly
 
@@ -84,10 +99,65 @@ public class Options {
     private int controlerPort = 0;
     private int mediaPort = 0;
 
+    private TransportType transport = TransportType.TCP;
+    // Abstract socket names, for the local transport
+    private String controlerSocketName = "scrcpy_control";
+    private String mediaSocketName = "scrcpy_media";
+    private boolean tcpNoDelay;
+    private int sendBufferSize; // 0 for the system default
+    private int sendLowWaterMark; // 0 for the system default (TCP_NOTSENT_LOWAT)
+
+    private int sendQueueSize; // 0 to write the packets synchronously from the encoder thread
+    private CongestionPolicy congestionPolicy = CongestionPolicy.LATENCY;
+    private boolean mediaMux; // multiplex video and audio on a single media connection
+    private int resumeTimeout; // in milliseconds, 0 to stop the session as soon as a connection is lost
+    private int hubPort; // 0 to disable the broadcast to additional viewers
+    private boolean prependParameterSets; // write the parameter sets again before every key frame
+    private boolean videoAsync; // receive the video encoder output through the asynchronous MediaCodec callback
+    private boolean videoLowLatency; // apply the low-latency keys supported by the video encoder
+    private int intraRefreshPeriod; // in frames, 0 to use periodic key frames
+    private List<VideoRendition> videoRenditions = Collections.emptyList();
+    private EncoderFailoverChain videoEncoderFailover;
+    private List<VideoDisplay> videoDisplays = Collections.emptyList();
+    private int thumbnailSize; // 0 to disable the thumbnail stream
+    private int thumbnailInterval = 1000; // in milliseconds
+    private int thumbnailQuality = 50; // JPEG quality
+    private int displaySettleDelay; // in milliseconds, 0 to reset the capture on every display size change
+    // Reuse the encoder input surface (and the capture) across capture resets. The encoder is still reset and reconfigured on every
+    // capture reset: only the capture is kept, and only for a display captured without any transform (no crop, capture orientation, angle
+    // or fixed canvas, which are rendered through OpenGL). Otherwise, the capture is restarted as usual. Not supported with video renditions
+    // or adaptive resolution.
+    private boolean persistentSurface;
+    private boolean encoderCache = true; // store the encoder capabilities on the device to avoid enumerating them on every start
+
     public int getControlerPort() { return controlerPort; }
 
     public int getMediaPort() { return mediaPort; }
 
+    public TransportType getTransport() {
+        return transport;
+    }
+
+    public String getControlerSocketName() {
+        return controlerSocketName;
+    }
+
+    public String getMediaSocketName() {
+        return mediaSocketName;
+    }
+
+    public boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getSendLowWaterMark() {
+        return sendLowWaterMark;
+    }
+
     public Ln.Level getLogLevel() {
         return logLevel;
     }
@@ -132,6 +202,26 @@ public class Options {
         return videoBitRate;
     }
 
+    public boolean getAdaptiveBitRate() {
+        return adaptiveBitRate;
+    }
+
+    public boolean getAdaptiveResolution() {
+        return adaptiveResolution;
+    }
+
+    public boolean getAdaptiveFps() {
+        return adaptiveFps;
+    }
+
+    public int getVideoBitRateMin() {
+        return videoBitRateMin;
+    }
+
+    public int getVideoBitRateMax() {
+        return videoBitRateMax;
+    }
+
     public int getAudioBitRate() {
         return audioBitRate;
     }
@@ -144,6 +234,10 @@ public class Options {
         return angle;
     }
 
+    public boolean getFixedCanvas() {
+        return fixedCanvas;
+    }
+
     public boolean isTunnelForward() {
         return tunnelForward;
     }
@@ -257,7 +351,7 @@ public class Options {
     }
 
     public boolean getList() {
-        return listEncoders || listDisplays || listCameras || listCameraSizes || listApps;
+        return listEncoders || listDisplays || listCameras || listCameraSizes || listApps || benchmarkTransports || benchmarkEncoders;
     }
 
     public boolean getListEncoders() {
@@ -280,6 +374,14 @@ public class Options {
         return listApps;
     }
 
+    public boolean getBenchmarkTransports() {
+        return benchmarkTransports;
+    }
+
+    public boolean getBenchmarkEncoders() {
+        return benchmarkEncoders;
+    }
+
     public boolean getSendDeviceMeta() {
         return sendDeviceMeta;
     }
@@ -296,6 +398,103 @@ public class Options {
         return sendCodecMeta;
     }
 
+    public int getSendQueueSize() {
+        return sendQueueSize;
+    }
+
+    public CongestionPolicy getCongestionPolicy() {
+        return congestionPolicy;
+    }
+
+    public boolean getMediaMux() {
+        return mediaMux;
+    }
+
+    public int getResumeTimeout() {
+        return resumeTimeout;
+    }
+
+    public int getHubPort() {
+        return hubPort;
+    }
+
+    public boolean getPrependParameterSets() {
+        return prependParameterSets;
+    }
+
+    public boolean getVideoAsync() {
+        return videoAsync;
+    }
+
+    public boolean getVideoLowLatency() {
+        return videoLowLatency;
+    }
+
+    public int getIntraRefreshPeriod() {
+        return intraRefreshPeriod;
+    }
+
+    public List<VideoRendition> getVideoRenditions() {
+        return videoRenditions;
+    }
+
+    public EncoderFailoverChain getVideoEncoderFailover() {
+        return videoEncoderFailover;
+    }
+
+    public List<VideoDisplay> getVideoDisplays() {
+        return videoDisplays;
+    }
+
+    /**
+     * Return the options of the video pipeline of an additional display: the same options, except the scid and the display.
+     * <p>
+     * The features specific to the main video stream (crop, renditions, thumbnails, encoder failover) are disabled.
+     */
+    public Options forVideoDisplay(VideoDisplay videoDisplay) {
+        Options options;
+        try {
+            options = (Options) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+
+        options.scid = videoDisplay.getScid();
+        options.newDisplay = videoDisplay.getNewDisplay();
+        options.displayId = options.newDisplay != null ? Device.DISPLAY_ID_NONE : videoDisplay.getDisplayId();
+        options.crop = null;
+        options.videoRenditions = Collections.emptyList();
+        options.videoDisplays = Collections.emptyList();
+        options.thumbnailSize = 0;
+        // The chain is stateful, it must not be shared
+        options.videoEncoderFailover = null;
+        return options;
+    }
+
+    public int getThumbnailSize() {
+        return thumbnailSize;
+    }
+
+    public int getThumbnailInterval() {
+        return thumbnailInterval;
+    }
+
+    public int getThumbnailQuality() {
+        return thumbnailQuality;
+    }
+
+    public int getDisplaySettleDelay() {
+        return displaySettleDelay;
+    }
+
+    public boolean getPersistentSurface() {
+        return persistentSurface;
+    }
+
+    public boolean getEncoderCache() {
+        return encoderCache;
+    }
+
     @SuppressWarnings("MethodLength")
     public static Options parse(String... args) {
         if (args.length < 1) {
@@ -375,9 +574,52 @@ public class Options {
                 case "media_port":
                     options.mediaPort = Integer.parseInt(value);
                     break;
+                case "transport":
+                    TransportType transport = TransportType.findByName(value);
+                    if (transport == null) {
+                        throw new IllegalArgumentException("Transport " + value + " not supported");
+                    }
+                    options.transport = transport;
+                    break;
+                case "controler_socket_name":
+                    options.controlerSocketName = value;
+                    break;
+                case "media_socket_name":
+                    options.mediaSocketName = value;
+                    break;
+                case "tcp_nodelay":
+                    options.tcpNoDelay = Boolean.parseBoolean(value);
+                    break;
+                case "send_buffer_size":
+                    options.sendBufferSize = Integer.parseInt(value);
+                    if (options.sendBufferSize < 0) {
+                        throw new IllegalArgumentException("Invalid send buffer size: " + options.sendBufferSize);
+                    }
+                    break;
+                case "send_low_water_mark":
+                    options.sendLowWaterMark = Integer.parseInt(value);
+                    if (options.sendLowWaterMark < 0) {
+                        throw new IllegalArgumentException("Invalid send low water mark: " + options.sendLowWaterMark);
+                    }
+                    break;
                 case "video_bit_rate":
                     options.videoBitRate = Integer.parseInt(value);
                     break;
+                case "adaptive_bit_rate":
+                    options.adaptiveBitRate = Boolean.parseBoolean(value);
+                    break;
+                case "adaptive_resolution":
+                    options.adaptiveResolution = Boolean.parseBoolean(value);
+                    break;
+                case "adaptive_fps":
+                    options.adaptiveFps = Boolean.parseBoolean(value);
+                    break;
+                case "video_bit_rate_min":
+                    options.videoBitRateMin = Integer.parseInt(value);
+                    break;
+                case "video_bit_rate_max":
+                    options.videoBitRateMax = Integer.parseInt(value);
+                    break;
                 case "audio_bit_rate":
                     options.audioBitRate = Integer.parseInt(value);
                     break;
@@ -387,6 +629,9 @@ public class Options {
                 case "angle":
                     options.angle = parseFloat("angle", value);
                     break;
+                case "fixed_canvas":
+                    options.fixedCanvas = Boolean.parseBoolean(value);
+                    break;
                 case "tunnel_forward":
                     options.tunnelForward = Boolean.parseBoolean(value);
                     break;
@@ -458,6 +703,12 @@ public class Options {
                 case "list_apps":
                     options.listApps = Boolean.parseBoolean(value);
                     break;
+                case "benchmark_transports":
+                    options.benchmarkTransports = Boolean.parseBoolean(value);
+                    break;
+                case "benchmark_encoders":
+                    options.benchmarkEncoders = Boolean.parseBoolean(value);
+                    break;
                 case "camera_id":
                     if (!value.isEmpty()) {
                         options.cameraId = value;
@@ -517,6 +768,85 @@ public class Options {
                 case "send_codec_meta":
                     options.sendCodecMeta = Boolean.parseBoolean(value);
                     break;
+                case "send_queue_size":
+                    options.sendQueueSize = Integer.parseInt(value);
+                    if (options.sendQueueSize < 0) {
+                        throw new IllegalArgumentException("Invalid send queue size: " + options.sendQueueSize);
+                    }
+                    break;
+                case "congestion_policy":
+                    CongestionPolicy congestionPolicy = CongestionPolicy.findByName(value);
+                    if (congestionPolicy == null) {
+                        throw new IllegalArgumentException("Congestion policy " + value + " not supported");
+                    }
+                    options.congestionPolicy = congestionPolicy;
+                    break;
+                case "media_mux":
+                    options.mediaMux = Boolean.parseBoolean(value);
+                    break;
+                case "encoder_cache":
+                    options.encoderCache = Boolean.parseBoolean(value);
+                    break;
+                case "persistent_surface":
+                    options.persistentSurface = Boolean.parseBoolean(value);
+                    break;
+                case "video_async":
+                    options.videoAsync = Boolean.parseBoolean(value);
+                    break;
+                case "video_encoder_failover":
+                    if (!value.isEmpty()) {
+                        options.videoEncoderFailover = EncoderFailoverChain.parse(value);
+                    }
+                    break;
+                case "video_renditions":
+                    options.videoRenditions = parseVideoRenditions(value);
+                    break;
+                case "video_displays":
+                    options.videoDisplays = parseVideoDisplays(value);
+                    break;
+                case "thumbnail_size":
+                    options.thumbnailSize = Integer.parseInt(value) & ~7; // multiple of 8
+                    break;
+                case "thumbnail_interval":
+                    options.thumbnailInterval = Integer.parseInt(value);
+                    if (options.thumbnailInterval <= 0) {
+                        throw new IllegalArgumentException("Invalid thumbnail interval: " + options.thumbnailInterval);
+                    }
+                    break;
+                case "thumbnail_quality":
+                    options.thumbnailQuality = Integer.parseInt(value);
+                    if (options.thumbnailQuality < 0 || options.thumbnailQuality > 100) {
+                        throw new IllegalArgumentException("Invalid thumbnail quality: " + options.thumbnailQuality);
+                    }
+                    break;
+                case "display_settle_delay":
+                    options.displaySettleDelay = Integer.parseInt(value);
+                    if (options.displaySettleDelay < 0) {
+                        throw new IllegalArgumentException("Invalid display settle delay: " + options.displaySettleDelay);
+                    }
+                    break;
+                case "intra_refresh_period":
+                    int period = Integer.parseInt(value);
+                    if (period < 0) {
+                        throw new IllegalArgumentException("Invalid intra refresh period: " + period);
+                    }
+                    options.intraRefreshPeriod = period;
+                    break;
+                case "video_low_latency":
+                    options.videoLowLatency = Boolean.parseBoolean(value);
+                    break;
+                case "prepend_parameter_sets":
+                    options.prependParameterSets = Boolean.parseBoolean(value);
+                    break;
+                case "hub_port":
+                    options.hubPort = Integer.parseInt(value);
+                    break;
+                case "resume_timeout":
+                    options.resumeTimeout = Integer.parseInt(value);
+                    if (options.resumeTimeout < 0) {
+                        throw new IllegalArgumentException("Invalid resume timeout: " + options.resumeTimeout);
+                    }
+                    break;
                 case "raw_stream":
                     boolean rawStream = Boolean.parseBoolean(value);
                     if (rawStream) {
@@ -532,6 +862,10 @@ public class Options {
             }
         }
 
+        if (options.videoBitRateMin > 0 && options.videoBitRateMax > 0 && options.videoBitRateMin > options.videoBitRateMax) {
+            throw new IllegalArgumentException("Invalid video bit rate range: " + options.videoBitRateMin + "-" + options.videoBitRateMax);
+        }
+
         if (options.newDisplay != null) {
             assert options.displayId == 0 : "Must not set both displayId and newDisplay";
             options.displayId = Device.DISPLAY_ID_NONE;
@@ -629,6 +963,56 @@ public class Options {
         return new NewDisplay(size, dpi);
     }
 
+    private static List<VideoDisplay> parseVideoDisplays(String value) {
+        // input format: "<scid>:<display_id>" or "<scid>:new[=<new_display>]" (scid in hexadecimal), separated by ','
+        List<VideoDisplay> videoDisplays = new ArrayList<>();
+        for (String videoDisplay : value.split(",")) {
+            String[] tokens = videoDisplay.split(":");
+            if (tokens.length != 2) {
+                throw new IllegalArgumentException("Invalid video display format (expected <scid>:<display_id> or <scid>:new[=<new_display>]): \""
+                        + videoDisplay + "\"");
+            }
+            int scid = Integer.parseInt(tokens[0], 0x10);
+            if (scid < 0) {
+                throw new IllegalArgumentException("Invalid video display scid: \"" + videoDisplay + "\"");
+            }
+            String display = tokens[1];
+            if (display.equals("new")) {
+                videoDisplays.add(new VideoDisplay(scid, Device.DISPLAY_ID_NONE, new NewDisplay()));
+            } else if (display.startsWith("new=")) {
+                videoDisplays.add(new VideoDisplay(scid, Device.DISPLAY_ID_NONE, parseNewDisplay(display.substring(4))));
+            } else {
+                int displayId = Integer.parseInt(display);
+                if (displayId < 0) {
+                    throw new IllegalArgumentException("Invalid video display id: \"" + videoDisplay + "\"");
+                }
+                videoDisplays.add(new VideoDisplay(scid, displayId, null));
+            }
+        }
+        return videoDisplays;
+    }
+
+    private static List<VideoRendition> parseVideoRenditions(String value) {
+        // input format: "<scid>:<max_size>:<max_fps>[:<bit_rate>]" (scid in hexadecimal), separated by ','
+        List<VideoRendition> renditions = new ArrayList<>();
+        for (String rendition : value.split(",")) {
+            String[] tokens = rendition.split(":");
+            if (tokens.length != 3 && tokens.length != 4) {
+                throw new IllegalArgumentException("Invalid video rendition format (expected <scid>:<max_size>:<max_fps>[:<bit_rate>]): \""
+                        + rendition + "\"");
+            }
+            int scid = Integer.parseInt(tokens[0], 0x10);
+            int maxSize = Integer.parseInt(tokens[1]) & ~7; // multiple of 8
+            float maxFps = parseFloat("video_renditions", tokens[2]);
+            int bitRate = tokens.length == 4 ? Integer.parseInt(tokens[3]) : VideoRendition.DEFAULT_BIT_RATE;
+            if (scid < 0 || maxSize <= 0 || maxFps < 0 || bitRate <= 0) {
+                throw new IllegalArgumentException("Invalid video rendition: \"" + rendition + "\"");
+            }
+            renditions.add(new VideoRendition(scid, maxSize, maxFps, bitRate));
+        }
+        return renditions;
+    }
+
     private static Pair<Orientation.Lock, Orientation> parseCaptureOrientation(String value) {
         if (value.isEmpty()) {
             throw new IllegalArgumentException("Empty capture orientation string");
@@ -9,20 +9,30 @@ import com.genymobile.scrcpy.audio.AudioRawRecorder;
 import com.genymobile.scrcpy.audio.AudioSource;
 import com.genymobile.scrcpy.control.ControlChannel;
 import com.genymobile.scrcpy.control.Controller;
+import com.genymobile.scrcpy.device.BroadcastHub;
 import com.genymobile.scrcpy.device.ConfigurationException;
 import com.genymobile.scrcpy.device.DesktopConnection;
 import com.genymobile.scrcpy.device.Device;
+import com.genymobile.scrcpy.device.MediaMux;
 import com.genymobile.scrcpy.device.NewDisplay;
 import com.genymobile.scrcpy.device.Streamer;
+import com.genymobile.scrcpy.device.TransportBenchmark;
 import com.genymobile.scrcpy.opengl.OpenGLRunner;
+import com.genymobile.scrcpy.util.EncoderCache;
 import com.genymobile.scrcpy.util.Ln;
 import com.genymobile.scrcpy.util.LogUtils;
 import com.genymobile.scrcpy.video.CameraCapture;
+import com.genymobile.scrcpy.video.EncoderBenchmark;
 import com.genymobile.scrcpy.video.NewDisplayCapture;
+import com.genymobile.scrcpy.video.RenditionEncoder;
 import com.genymobile.scrcpy.video.ScreenCapture;
 import com.genymobile.scrcpy.video.SurfaceCapture;
 import com.genymobile.scrcpy.video.SurfaceEncoder;
+import com.genymobile.scrcpy.video.ThumbnailCapture;
+import com.genymobile.scrcpy.video.VideoDisplay;
+import com.genymobile.scrcpy.video.VideoRendition;
 import com.genymobile.scrcpy.video.VideoSource;
+import com.genymobile.scrcpy.video.VirtualDisplayListener;
 
 import android.annotation.SuppressLint;
 import android.os.Build;
@@ -91,21 +101,28 @@ public final class Server {
         }
 
         int scid = options.getScid();
-        int controlerPort = options.getControlerPort();
-        int mediaPort = options.getMediaPort();
         boolean control = options.getControl();
         boolean video = options.getVideo();
         boolean audio = options.getAudio();
-        boolean sendDummyByte = options.getSendDummyByte();
+        boolean mediaMux = options.getMediaMux();
 
         Ln.i("start server, control: " + control + " video: " + video + " audio: " + audio);
 
         Workarounds.apply();
 
         List<AsyncProcessor> asyncProcessors = new ArrayList<>();
+        List<Streamer> streamers = new ArrayList<>();
+        // Not published to the broadcast hub
+        List<Streamer> renditionStreamers = new ArrayList<>();
 
-        DesktopConnection connection = DesktopConnection.open(controlerPort, mediaPort, video, audio, control, sendDummyByte);
+        DesktopConnection connection = DesktopConnection.open(options);
+        MediaMux mux = null;
+        BroadcastHub hub = null;
         try {
+            if (mediaMux && (video || audio)) {
+                mux = new MediaMux(connection.getMediaTransport(), options.getSendQueueSize(), options.getCongestionPolicy());
+            }
+
             Controller controller = null;
 
             if (control) {
@@ -124,7 +141,10 @@ public final class Server {
                     audioCapture = new AudioPlaybackCapture(options.getAudioDup());
                 }
 
-                Streamer audioStreamer = new Streamer(options.getScid(), connection.getAudioSocket(), audioCodec, options.getSendCodecMeta(), options.getSendFrameMeta());
+                Streamer audioStreamer = mux != null
+                        ? new Streamer(options.getScid(), mux, audioCodec, options)
+                        : new Streamer(options.getScid(), connection.getAudioTransport(), connection.getAudioReconnector(), audioCodec, options);
+                streamers.add(audioStreamer);
                 AsyncProcessor audioRecorder;
                 if (audioCodec == AudioCodec.RAW) {
                     audioRecorder = new AudioRawRecorder(audioCapture, audioStreamer);
@@ -135,28 +155,23 @@ public final class Server {
             }
 
             if (video) {
-                Streamer videoStreamer = new Streamer(options.getScid(), connection.getVideoSocket(), options.getVideoCodec(), options.getSendCodecMeta(),
-                        options.getSendFrameMeta());
-                SurfaceCapture surfaceCapture;
-                if (options.getVideoSource() == VideoSource.DISPLAY) {
-                    NewDisplay newDisplay = options.getNewDisplay();
-                    if (newDisplay != null) {
-                        surfaceCapture = new NewDisplayCapture(controller, options);
-                    } else {
-                        assert options.getDisplayId() != Device.DISPLAY_ID_NONE;
-                        surfaceCapture = new ScreenCapture(controller, options);
-                    }
-                } else {
-                    surfaceCapture = new CameraCapture(options);
-                }
-                SurfaceEncoder surfaceEncoder = new SurfaceEncoder(surfaceCapture, videoStreamer, options);
-                asyncProcessors.add(surfaceEncoder);
+                addVideo(options, connection, mux, controller, streamers, renditionStreamers, asyncProcessors);
+            }
 
-                if (controller != null) {
-                    controller.setSurfaceCapture(surfaceCapture);
+            if (mux != null) {
+                mux.start();
+            }
+
+            if (options.getHubPort() != 0 && !streamers.isEmpty()) {
+                hub = new BroadcastHub(options.getHubPort(), options.getSendQueueSize());
+                for (Streamer streamer : streamers) {
+                    hub.register(streamer);
                 }
+                hub.start();
             }
 
+            streamers.addAll(renditionStreamers);
+
             Completion completion = new Completion(asyncProcessors.size());
             for (AsyncProcessor asyncProcessor : asyncProcessors) {
                 asyncProcessor.start((fatalError) -> {
@@ -172,6 +187,15 @@ public final class Server {
             for (AsyncProcessor asyncProcessor : asyncProcessors) {
                 asyncProcessor.stop();
             }
+            for (Streamer streamer : streamers) {
+                streamer.stop();
+            }
+            if (mux != null) {
+                mux.stop();
+            }
+            if (hub != null) {
+                hub.stop();
+            }
 
             OpenGLRunner.quit(); // quit the OpenGL thread, if any
 
@@ -184,6 +208,15 @@ public final class Server {
                 for (AsyncProcessor asyncProcessor : asyncProcessors) {
                     asyncProcessor.join();
                 }
+                if (mux != null) {
+                    mux.join();
+                }
+                if (hub != null) {
+                    hub.join();
+                }
+                for (Streamer streamer : streamers) {
+                    streamer.join();
+                }
                 OpenGLRunner.join();
             } catch (InterruptedException e) {
                 // ignore
@@ -193,6 +226,93 @@ public final class Server {
         }
     }
 
+    private static void addVideo(Options options, DesktopConnection connection, MediaMux mux, Controller controller, List<Streamer> streamers,
+            List<Streamer> renditionStreamers, List<AsyncProcessor> asyncProcessors) throws IOException {
+        Streamer videoStreamer = mux != null
+                ? new Streamer(options.getScid(), mux, options.getVideoCodec(), options)
+                : new Streamer(options.getScid(), connection.getVideoTransport(), connection.getVideoReconnector(), options.getVideoCodec(), options);
+        streamers.add(videoStreamer);
+        SurfaceCapture surfaceCapture;
+        if (options.getVideoSource() == VideoSource.DISPLAY) {
+            NewDisplay newDisplay = options.getNewDisplay();
+            if (newDisplay != null) {
+                surfaceCapture = new NewDisplayCapture(controller, options);
+            } else {
+                assert options.getDisplayId() != Device.DISPLAY_ID_NONE;
+                surfaceCapture = new ScreenCapture(controller, options);
+            }
+        } else {
+            surfaceCapture = new CameraCapture(options);
+        }
+        SurfaceEncoder surfaceEncoder = new SurfaceEncoder(surfaceCapture, videoStreamer, options);
+        asyncProcessors.add(surfaceEncoder);
+
+        List<VideoRendition> renditions = options.getVideoRenditions();
+        if (!renditions.isEmpty()) {
+            if (mux == null) {
+                // The renditions are identified by their scid on the single media connection
+                Ln.w("Video renditions require media_mux, ignored");
+            } else {
+                for (VideoRendition rendition : renditions) {
+                    Streamer renditionStreamer = new Streamer(rendition.getScid(), mux, options.getVideoCodec(), options);
+                    renditionStreamers.add(renditionStreamer);
+                    surfaceEncoder.addRendition(new RenditionEncoder(rendition, renditionStreamer));
+                }
+            }
+        }
+
+        if (options.getThumbnailSize() > 0) {
+            if (options.getVideoSource() != VideoSource.DISPLAY || options.getNewDisplay() != null) {
+                Ln.w("Thumbnail stream requires an existing display, ignored");
+            } else if (!options.getSendFrameMeta()) {
+                // The thumbnails could not be distinguished from the video packets
+                Ln.w("Thumbnail stream requires the frame meta, ignored");
+            } else {
+                asyncProcessors.add(new ThumbnailCapture(videoStreamer, options));
+            }
+        }
+
+        if (controller != null) {
+            controller.setSurfaceCapture(surfaceCapture);
+        }
+
+        List<VideoDisplay> videoDisplays = options.getVideoDisplays();
+        if (!videoDisplays.isEmpty()) {
+            if (mux == null) {
+                // The video streams are identified by their scid on the single media connection
+                Ln.w("Video displays require media_mux, ignored");
+            } else if (options.getVideoSource() != VideoSource.DISPLAY) {
+                Ln.w("Video displays require the display video source, ignored");
+            } else {
+                for (VideoDisplay videoDisplay : videoDisplays) {
+                    addVideoDisplay(videoDisplay, options, mux, controller, streamers, asyncProcessors);
+                }
+            }
+        }
+    }
+
+    private static void addVideoDisplay(VideoDisplay videoDisplay, Options options, MediaMux mux, Controller controller, List<Streamer> streamers,
+            List<AsyncProcessor> asyncProcessors) {
+        Options displayOptions = options.forVideoDisplay(videoDisplay);
+        int scid = displayOptions.getScid();
+        int displayId = displayOptions.getDisplayId();
+
+        // Input events are routed to this display once the client selects the stream
+        VirtualDisplayListener vdListener = controller != null ? controller.addStream(scid, displayId) : null;
+        SurfaceCapture surfaceCapture;
+        if (displayOptions.getNewDisplay() != null) {
+            surfaceCapture = new NewDisplayCapture(vdListener, displayOptions);
+        } else {
+            surfaceCapture = new ScreenCapture(vdListener, displayOptions);
+        }
+
+        Streamer streamer = new Streamer(scid, mux, displayOptions.getVideoCodec(), displayOptions);
+        streamers.add(streamer);
+        asyncProcessors.add(new SurfaceEncoder(surfaceCapture, streamer, displayOptions));
+        Ln.i("Video display " + (displayId != Device.DISPLAY_ID_NONE ? displayId : "(new)") + " streamed with scid "
+                + Integer.toHexString(scid));
+    }
+
     private static void prepareMainLooper() {
         // Like Looper.prepareMainLooper(), but with quitAllowed set to true
         Looper.prepare();
@@ -235,6 +355,8 @@ public final class Server {
         Ln.disableSystemStreams();
         Ln.initLogLevel(options.getLogLevel());
 
+        EncoderCache.setPersistent(options.getEncoderCache());
+
         Ln.i("Device: [" + Build.MANUFACTURER + "] " + Build.BRAND + " " + Build.MODEL + " (Android " + Build.VERSION.RELEASE + ")");
 
         if (options.getList()) {
@@ -258,6 +380,13 @@ public final class Server {
                 Ln.i("Processing Android apps... (this may take some time)");
                 Ln.i(LogUtils.buildAppListMessage());
             }
+            if (options.getBenchmarkTransports()) {
+                Ln.i(TransportBenchmark.run(options));
+            }
+            if (options.getBenchmarkEncoders()) {
+                Ln.i("Benchmarking video encoders... (this may take some time)");
+                Ln.i(EncoderBenchmark.run());
+            }
             // Just print the requested data, do not mirror
             return;
         }
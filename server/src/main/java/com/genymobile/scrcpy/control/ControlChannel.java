@@ -1,23 +1,76 @@
 package com.genymobile.scrcpy.control;
 
+import com.genymobile.scrcpy.device.Reconnector;
+import com.genymobile.scrcpy.device.Transport;
+
 import java.io.IOException;
-import java.net.Socket;
 
 public final class ControlChannel {
 
-    private final ControlMessageReader reader;
-    private final DeviceMessageWriter writer;
+    // Non-null if the connection must be reopened when it is lost
+    private final Reconnector reconnector;
+
+    private ControlMessageReader reader;
+    private DeviceMessageWriter writer;
+    // Incremented on every reconnection
+    private int generation;
 
-    public ControlChannel(Socket controlSocket) throws IOException {
-        reader = new ControlMessageReader(controlSocket.getInputStream());
-        writer = new DeviceMessageWriter(controlSocket.getOutputStream());
+    public ControlChannel(Transport controlTransport, Reconnector reconnector) throws IOException {
+        this.reconnector = reconnector;
+        setTransport(controlTransport);
+    }
+
+    private void setTransport(Transport transport) throws IOException {
+        reader = new ControlMessageReader(transport.getInputStream());
+        writer = new DeviceMessageWriter(transport.getOutputStream());
     }
 
     public ControlMessage recv() throws IOException {
-        return reader.read();
+        while (true) {
+            ControlMessageReader currentReader;
+            int currentGeneration;
+            synchronized (this) {
+                currentReader = reader;
+                currentGeneration = generation;
+            }
+
+            try {
+                return currentReader.read();
+            } catch (IOException e) {
+                if (reconnector == null) {
+                    throw e;
+                }
+                reconnect(currentGeneration, e);
+            }
+        }
     }
 
     public void send(DeviceMessage msg) throws IOException {
-        writer.write(msg);
+        DeviceMessageWriter currentWriter;
+        int currentGeneration;
+        synchronized (this) {
+            currentWriter = writer;
+            currentGeneration = generation;
+        }
+
+        try {
+            currentWriter.write(msg);
+        } catch (IOException e) {
+            if (reconnector == null) {
+                throw e;
+            }
+            // The message is lost, but the channel is usable again
+            reconnect(currentGeneration, e);
+        }
+    }
+
+    private synchronized void reconnect(int failedGeneration, IOException cause) throws IOException {
+        if (failedGeneration != generation) {
+            // Already reconnected by the other side (recv or send)
+            return;
+        }
+
+        setTransport(reconnector.reconnect(cause));
+        ++generation;
     }
 }
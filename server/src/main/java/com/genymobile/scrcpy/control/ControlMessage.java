@@ -26,6 +26,8 @@ public final class ControlMessage {
     public static final int TYPE_START_APP = 16;
     public static final int TYPE_RESET_VIDEO = 17;
     public static final int TYPE_GET_APP_LIST = 18;
+    public static final int TYPE_CAPTURE_SCREENSHOT = 19;
+    public static final int TYPE_SET_INPUT_STREAM = 20;
 
     public static final long SEQUENCE_INVALID = 0;
 
@@ -33,6 +35,10 @@ public final class ControlMessage {
     public static final int COPY_KEY_COPY = 1;
     public static final int COPY_KEY_CUT = 2;
 
+    public static final int SCREENSHOT_FORMAT_JPEG = 0;
+    public static final int SCREENSHOT_FORMAT_PNG = 1;
+    public static final int SCREENSHOT_FORMAT_WEBP = 2;
+
     private int type;
     private String text;
     private int metaState; // KeyEvent.META_*
@@ -54,6 +60,9 @@ public final class ControlMessage {
     private boolean on;
     private int vendorId;
     private int productId;
+    private int format; // SCREENSHOT_FORMAT_*
+    private int maxSize;
+    private int quality;
 
     private ControlMessage() {
     }
@@ -174,6 +183,23 @@ public final class ControlMessage {
         return msg;
     }
 
+    public static ControlMessage createSetInputStream(int scid) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_SET_INPUT_STREAM;
+        msg.id = scid;
+        return msg;
+    }
+
+    public static ControlMessage createCaptureScreenshot(int id, int format, int maxSize, int quality) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_CAPTURE_SCREENSHOT;
+        msg.id = id;
+        msg.format = format;
+        msg.maxSize = maxSize;
+        msg.quality = quality;
+        return msg;
+    }
+
     public int getType() {
         return type;
     }
@@ -257,4 +283,16 @@ public final class ControlMessage {
     public int getProductId() {
         return productId;
     }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
 }
@@ -58,6 +58,10 @@ public class ControlMessageReader {
                 return parseStartApp();
             case ControlMessage.TYPE_GET_APP_LIST:
                 return parseGetAppList();
+            case ControlMessage.TYPE_CAPTURE_SCREENSHOT:
+                return parseCaptureScreenshot();
+            case ControlMessage.TYPE_SET_INPUT_STREAM:
+                return parseSetInputStream();
             default:
                 throw new ControlProtocolException("Unknown event type: " + type);
         }
@@ -180,4 +184,17 @@ public class ControlMessageReader {
         int id = dis.readInt();
         return ControlMessage.createGetAppList(id);
     }
+
+    private ControlMessage parseCaptureScreenshot() throws IOException {
+        int id = dis.readInt();
+        int format = dis.readUnsignedByte();
+        int maxSize = dis.readUnsignedShort();
+        int quality = dis.readUnsignedByte();
+        return ControlMessage.createCaptureScreenshot(id, format, maxSize, quality);
+    }
+
+    private ControlMessage parseSetInputStream() throws IOException {
+        int scid = dis.readInt();
+        return ControlMessage.createSetInputStream(scid);
+    }
 }
@@ -21,6 +21,7 @@ import com.genymobile.scrcpy.device.Position;
 import com.genymobile.scrcpy.device.Size;
 import com.genymobile.scrcpy.util.Ln;
 import com.genymobile.scrcpy.util.LogUtils;
+import com.genymobile.scrcpy.video.ScreenshotCapture;
 import com.genymobile.scrcpy.video.SurfaceCapture;
 import com.genymobile.scrcpy.video.VirtualDisplayListener;
 import com.genymobile.scrcpy.wrappers.ClipboardManager;
@@ -29,8 +30,11 @@ import com.genymobile.scrcpy.wrappers.ServiceManager;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -63,6 +67,23 @@ public class Controller implements AsyncProcessor, VirtualDisplayListener {
         }
     }
 
+    /**
+     * The display of an additional video stream, to which the input events may be routed (see {@link #addStream(int, int)}).
+     */
+    private static final class StreamDisplay implements VirtualDisplayListener {
+        private final int displayId; // Device.DISPLAY_ID_NONE for a new virtual display
+        private final AtomicReference<DisplayData> displayData = new AtomicReference<>();
+
+        private StreamDisplay(int displayId) {
+            this.displayId = displayId;
+        }
+
+        @Override
+        public void onNewVirtualDisplay(int virtualDisplayId, PositionMapper positionMapper) {
+            displayData.set(new DisplayData(virtualDisplayId, positionMapper));
+        }
+    }
+
     private static final int DEFAULT_DEVICE_ID = 0;
 
     // control_msg.h values of the pointerId field in inject_touch_event message
@@ -70,6 +91,12 @@ public class Controller implements AsyncProcessor, VirtualDisplayListener {
 
     private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor();
     private ExecutorService startAppExecutor;
+    // The screenshot thread is created on the first request, and must not prevent the process from exiting
+    private final ExecutorService screenshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread screenshotThread = new Thread(runnable, "screenshot");
+        screenshotThread.setDaemon(true);
+        return screenshotThread;
+    });
 
     private Thread thread;
 
@@ -90,6 +117,11 @@ public class Controller implements AsyncProcessor, VirtualDisplayListener {
     private final AtomicReference<DisplayData> displayData = new AtomicReference<>();
     private final Object displayDataAvailable = new Object(); // condition variable
 
+    // Displays of the additional video streams, by scid
+    private final Map<Integer, StreamDisplay> streamDisplays = new ConcurrentHashMap<>();
+    // The stream receiving the input events, null for the main stream
+    private volatile StreamDisplay inputStream;
+
     private long lastTouchDown;
     private final PointersState pointersState = new PointersState();
     private final MotionEvent.PointerProperties[] pointerProperties = new MotionEvent.PointerProperties[PointersState.MAX_POINTERS];
@@ -166,6 +198,20 @@ public class Controller implements AsyncProcessor, VirtualDisplayListener {
         this.surfaceCapture = surfaceCapture;
     }
 
+    /**
+     * Register the display of an additional video stream, so that the client may route the input events to it (with a SET_INPUT_STREAM
+     * message).
+     *
+     * @param scid the scid of the video stream
+     * @param streamDisplayId the mirrored display id, or {@link Device#DISPLAY_ID_NONE} for a new virtual display
+     * @return the listener to pass to the capture of the stream
+     */
+    public VirtualDisplayListener addStream(int scid, int streamDisplayId) {
+        StreamDisplay streamDisplay = new StreamDisplay(streamDisplayId);
+        streamDisplays.put(scid, streamDisplay);
+        return streamDisplay;
+    }
+
     private UhidManager getUhidManager() {
         if (uhidManager == null) {
             int uhidDisplayId = displayId;
@@ -258,6 +304,8 @@ public class Controller implements AsyncProcessor, VirtualDisplayListener {
         if (thread != null) {
             thread.interrupt();
         }
+        // A pending screenshot could not be sent anyway
+        screenshotExecutor.shutdownNow();
         sender.stop();
     }
 
@@ -348,6 +396,12 @@ public class Controller implements AsyncProcessor, VirtualDisplayListener {
             case ControlMessage.TYPE_GET_APP_LIST:
                 getAppList(msg.getId());
                 break;
+            case ControlMessage.TYPE_CAPTURE_SCREENSHOT:
+                captureScreenshotAsync(msg.getId(), msg.getFormat(), msg.getMaxSize(), msg.getQuality());
+                break;
+            case ControlMessage.TYPE_SET_INPUT_STREAM:
+                setInputStream(msg.getId());
+                break;
             default:
                 // do nothing
         }
@@ -394,9 +448,12 @@ public class Controller implements AsyncProcessor, VirtualDisplayListener {
     }
 
     private Pair<Point, Integer> getEventPointAndDisplayId(Position position) {
-        // it hides the field on purpose, to read it with atomic access
+        StreamDisplay stream = inputStream;
+        // it hides the fields on purpose, to read them with atomic access
         @SuppressWarnings("checkstyle:HiddenField")
-        DisplayData displayData = this.displayData.get();
+        DisplayData displayData = stream != null ? stream.displayData.get() : this.displayData.get();
+        @SuppressWarnings("checkstyle:HiddenField")
+        int displayId = stream != null ? stream.displayId : this.displayId;
         // In scrcpy, displayData should never be null (a touch event can only be generated from the client when a video frame is present).
         // However, it is possible to send events without video playback when using scrcpy-server alone (except for virtual displays).
         assert displayData != null || displayId != Device.DISPLAY_ID_NONE : "Cannot receive a positional event without a display";
@@ -644,6 +701,16 @@ public class Controller implements AsyncProcessor, VirtualDisplayListener {
     }
 
     private int getActionDisplayId() {
+        StreamDisplay stream = inputStream;
+        if (stream != null) {
+            if (stream.displayId != Device.DISPLAY_ID_NONE) {
+                return stream.displayId;
+            }
+            DisplayData data = stream.displayData.get();
+            // If the virtual display of the stream is not created yet, use the main display id
+            return data != null ? data.virtualDisplayId : 0;
+        }
+
         if (displayId != Device.DISPLAY_ID_NONE) {
             // Real screen mirrored, use the source display id
             return displayId;
@@ -778,4 +845,35 @@ public class Controller implements AsyncProcessor, VirtualDisplayListener {
         DeviceMessage msg = DeviceMessage.createGetAppListPayload(id, apps);
         sender.send(msg);
     }
+
+    private void captureScreenshotAsync(int id, int format, int maxSize, int quality) {
+        // Capture the display receiving the events (the virtual display if a new display is mirrored)
+        int screenshotDisplayId = getActionDisplayId();
+        try {
+            screenshotExecutor.submit(() -> captureScreenshot(id, screenshotDisplayId, format, maxSize, quality));
+        } catch (RejectedExecutionException e) {
+            // The controller is stopping
+        }
+    }
+
+    private void captureScreenshot(int id, int screenshotDisplayId, int format, int maxSize, int quality) {
+        byte[] data;
+        try {
+            data = ScreenshotCapture.capture(screenshotDisplayId, maxSize, format, quality, DeviceMessageWriter.SCREENSHOT_DATA_MAX_LENGTH);
+        } catch (IOException | RuntimeException e) {
+            Ln.e("Could not capture screenshot: " + e.getMessage());
+            // An empty payload notifies the client of the failure
+            data = new byte[0];
+        }
+        sender.send(DeviceMessage.createScreenshot(id, data));
+    }
+
+    private void setInputStream(int scid) {
+        // Any other scid (typically the scid of the main stream) selects the main stream
+        StreamDisplay stream = streamDisplays.get(scid);
+        if (stream != inputStream) {
+            inputStream = stream;
+            Ln.i("Input events routed to " + (stream != null ? "stream " + Integer.toHexString(scid) : "the main stream"));
+        }
+    }
 }
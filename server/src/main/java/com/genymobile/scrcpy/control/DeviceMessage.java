@@ -11,6 +11,7 @@ public final class DeviceMessage {
     public static final int TYPE_UHID_OUTPUT = 2;
     public static final int TYPE_GET_APP_LIST_PAYLOAD = 3;
     public static final int TYPE_DISPLAY_SIZE_CHANGED = 4;
+    public static final int TYPE_SCREENSHOT = 5;
 
     private int type;
     private String text;
@@ -64,6 +65,14 @@ public final class DeviceMessage {
         return event;
     }
 
+    public static DeviceMessage createScreenshot(int id, byte[] data) {
+        DeviceMessage event = new DeviceMessage();
+        event.type = TYPE_SCREENSHOT;
+        event.id = id;
+        event.data = data;
+        return event;
+    }
+
     public int getType() {
         return type;
     }
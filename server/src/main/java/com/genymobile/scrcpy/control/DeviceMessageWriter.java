@@ -16,6 +16,7 @@ public class DeviceMessageWriter {
     private static final int MESSAGE_MAX_SIZE = 1 << 18; // 256k
     public static final int CLIPBOARD_TEXT_MAX_LENGTH = MESSAGE_MAX_SIZE - 5; // type: 1 byte; length: 4 bytes
     public static final int APPNAME_TEXT_MAX_LENGTH = CLIPBOARD_TEXT_MAX_LENGTH; // type: 1 byte; length: 4 bytes
+    public static final int SCREENSHOT_DATA_MAX_LENGTH = MESSAGE_MAX_SIZE - 9; // type: 1 byte; id: 4 bytes; length: 4 bytes
 
     private final DataOutputStream dos;
 
@@ -72,6 +73,12 @@ public class DeviceMessageWriter {
                 tempDos.writeInt(msg.getWidth());
                 tempDos.writeInt(msg.getHeight());
                 break;
+            case DeviceMessage.TYPE_SCREENSHOT:
+                tempDos.writeInt(msg.getId());
+                byte[] image = msg.getData();
+                tempDos.writeInt(image.length);
+                tempDos.write(image);
+                break;
             default:
                 throw new ControlProtocolException("Unknown event type: " + type);
         }
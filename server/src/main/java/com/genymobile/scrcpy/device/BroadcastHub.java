@@ -0,0 +1,286 @@
+package com.genymobile.scrcpy.device;
+
+import com.genymobile.scrcpy.util.Codec;
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Broadcast the media streams of the session to additional viewers (for example a monitoring wall or a recorder), without starting another
+ * capture and encoder.
+ * <p>
+ * Each subscriber connects to the hub port, and receives all the streams multiplexed on its connection (see {@link MediaMux}). Each
+ * subscriber has its own bounded queues: a slow subscriber drops frames until the next key frame, without impacting the others.
+ * <p>
+ * A late subscriber first receives the last codec metadata and config packets, then a key frame is requested.
+ * <p>
+ * The encoder threads only copy each packet once, into a fan-out queue (per stream). A separate thread copies the packets from these
+ * queues into the queues of the subscribers, so that the encoders never wait for the subscribers.
+ */
+public final class BroadcastHub {
+
+    private static final class Subscriber {
+        private final Transport transport;
+        private final MediaMux mux;
+        private final SendQueue[] queues; // in the same order as the streamers
+
+        private Subscriber(Transport transport, MediaMux mux, SendQueue[] queues) {
+            this.transport = transport;
+            this.mux = mux;
+            this.queues = queues;
+        }
+
+        private void close() {
+            mux.stop();
+            try {
+                transport.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static final int DEFAULT_QUEUE_SIZE = 16;
+
+    private final int port;
+    private final int queueSize;
+
+    private final List<Streamer> streamers = new ArrayList<>();
+    // In the same order as the streamers, all synchronized on fanOutLock
+    private final List<SendQueue> fanOutQueues = new ArrayList<>();
+    private final Object fanOutLock = new Object();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    // All the subscriber muxes, including the removed ones, to be joined (guarded by this)
+    private final List<MediaMux> muxes = new ArrayList<>();
+    // Read without lock by the encoder threads, to skip the copy if there is nobody to publish to
+    private volatile boolean hasSubscribers;
+
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private Thread fanOutThread;
+    private boolean stopped; // guarded by fanOutLock
+
+    public BroadcastHub(int port, int queueSize) {
+        this.port = port;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Publish the packets of this streamer to all the subscribers.
+     * <p>
+     * Must be called before {@link #start()}.
+     */
+    public void register(Streamer streamer) {
+        streamers.add(streamer);
+        // Never block the encoder for a non-critical packet (the fan-out thread only copies, so the queue should rarely be full)
+        fanOutQueues.add(new SendQueue(queueSize > 0 ? queueSize : DEFAULT_QUEUE_SIZE, CongestionPolicy.LATENCY, fanOutLock));
+        streamer.setBroadcastHub(this);
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        thread = new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    try {
+                        subscribe(new TcpTransport(channel.socket()));
+                    } catch (IOException e) {
+                        Ln.w("Could not add subscriber: " + e.getMessage());
+                        channel.close();
+                    }
+                }
+            } catch (IOException e) {
+                // this is expected on close
+            } finally {
+                Ln.d("Broadcast hub stopped");
+            }
+        }, "hub-accept");
+        thread.start();
+
+        fanOutThread = new Thread(this::fanOutLoop, "hub-fanout");
+        fanOutThread.start();
+
+        Ln.i("Broadcast hub listening on port " + port);
+    }
+
+    private void subscribe(Transport transport) throws IOException {
+        MediaMux mux = new MediaMux(transport, queueSize, CongestionPolicy.LATENCY, false);
+        SendQueue[] queues = new SendQueue[streamers.size()];
+        for (int i = 0; i < queues.length; ++i) {
+            queues[i] = mux.register(streamers.get(i));
+        }
+
+        int count;
+        synchronized (this) {
+            // Under the lock, so that no packet is published between the replayed config and the subscription
+            try {
+                for (int i = 0; i < queues.length; ++i) {
+                    Streamer streamer = streamers.get(i);
+                    streamer.replayConfig(queues[i]);
+                    if (streamer.getCodec().getType() == Codec.Type.VIDEO) {
+                        // The frames are useless until the next key frame
+                        queues[i].waitKeyFrame();
+                        streamer.requestKeyFrame();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while adding subscriber");
+            }
+
+            subscribers.add(new Subscriber(transport, mux, queues));
+            muxes.add(mux);
+            count = subscribers.size();
+            hasSubscribers = true;
+        }
+
+        mux.start();
+        Ln.i("Broadcast hub: subscriber added (" + count + " total)");
+    }
+
+    /**
+     * Publish a packet to all the subscribers.
+     * <p>
+     * The packet is copied to the fan-out queue of the stream, the buffers are not consumed.
+     */
+    void publish(Streamer streamer, ByteBuffer header, ByteBuffer payload, int kind, boolean frame) {
+        publish(streamer, header, payload, kind, frame, true);
+    }
+
+    /**
+     * Publish a packet to all the subscribers.
+     *
+     * @param wait whether to wait if the fan-out queue is full (otherwise the packet is dropped)
+     * @see #publish(Streamer, ByteBuffer, ByteBuffer, int, boolean)
+     */
+    void publish(Streamer streamer, ByteBuffer header, ByteBuffer payload, int kind, boolean frame, boolean wait) {
+        if (!hasSubscribers) {
+            return;
+        }
+
+        SendQueue queue = fanOutQueues.get(streamers.indexOf(streamer));
+        try {
+            ByteBuffer h = header != null ? header.duplicate() : null;
+            int result = queue.push(h, payload.duplicate(), kind, frame, wait);
+            if (result == SendQueue.RESULT_DROPPED_NEED_KEY_FRAME) {
+                streamer.requestKeyFrame();
+            }
+        } catch (IOException e) {
+            // The hub is stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fanOutLoop() {
+        int next = 0;
+        try {
+            while (true) {
+                int index = -1;
+                SendQueue.Packet packet = null;
+                synchronized (fanOutLock) {
+                    while (packet == null) {
+                        if (stopped) {
+                            return;
+                        }
+                        // Round-robin, so that a stream never starves the others
+                        for (int i = 0; i < fanOutQueues.size() && packet == null; ++i) {
+                            index = (next + i) % fanOutQueues.size();
+                            packet = fanOutQueues.get(index).peek();
+                        }
+                        if (packet == null) {
+                            fanOutLock.wait();
+                        }
+                    }
+                }
+                next = index + 1;
+
+                // The packet is owned by this thread until it is released, the encoder never waits for the copies
+                dispatch(index, packet);
+                fanOutQueues.get(index).release();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private synchronized void dispatch(int index, SendQueue.Packet packet) {
+        Streamer streamer = streamers.get(index);
+        Iterator<Subscriber> it = subscribers.iterator();
+        while (it.hasNext()) {
+            Subscriber subscriber = it.next();
+            try {
+                ByteBuffer header = packet.getHeader().duplicate();
+                ByteBuffer payload = packet.getPayload().duplicate();
+                int result = subscriber.queues[index].push(header, payload, packet.getKind(), packet.isFrame(), false);
+                if (result == SendQueue.RESULT_DROPPED_NEED_KEY_FRAME) {
+                    streamer.requestKeyFrame();
+                } else if (result == SendQueue.RESULT_FULL) {
+                    // A packet which could not be dropped did not fit: the subscriber is too slow to be kept
+                    throw new IOException("Subscriber queue full");
+                }
+            } catch (IOException | InterruptedException e) {
+                Ln.i("Broadcast hub: subscriber removed (" + e.getMessage() + ")");
+                it.remove();
+                subscriber.close();
+            }
+        }
+        hasSubscribers = !subscribers.isEmpty();
+    }
+
+    public void stop() {
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        synchronized (fanOutLock) {
+            stopped = true;
+            for (SendQueue queue : fanOutQueues) {
+                // Never block a publisher waiting for room
+                queue.stop();
+            }
+            fanOutLock.notifyAll();
+        }
+
+        synchronized (this) {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.close();
+            }
+            subscribers.clear();
+            hasSubscribers = false;
+        }
+    }
+
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+        if (fanOutThread != null) {
+            fanOutThread.join();
+        }
+
+        List<MediaMux> allMuxes;
+        synchronized (this) {
+            allMuxes = new ArrayList<>(muxes);
+        }
+        for (MediaMux mux : allMuxes) {
+            mux.join();
+            mux.joinReader();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.genymobile.scrcpy.device;
+
+/**
+ * Behavior of a media stream when the packets are produced faster than they can be sent.
+ */
+public enum CongestionPolicy {
+    /** Drop frames (until the next key frame) rather than increasing the latency */
+    LATENCY("latency"),
+    /** Never drop frames, block the encoder until the packets are sent */
+    QUALITY("quality");
+
+    private final String name;
+
+    CongestionPolicy(String name) {
+        this.name = name;
+    }
+
+    public static CongestionPolicy findByName(String name) {
+        for (CongestionPolicy policy : CongestionPolicy.values()) {
+            if (name.equals(policy.name)) {
+                return policy;
+            }
+        }
+
+        return null;
+    }
+}
@@ -1,124 +1,264 @@
 package com.genymobile.scrcpy.device;
 
+import com.genymobile.scrcpy.Options;
 import com.genymobile.scrcpy.control.ControlChannel;
-import com.genymobile.scrcpy.util.Ln;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
 
 public final class DesktopConnection implements Closeable {
 
     private static final int DEVICE_NAME_FIELD_LENGTH = 64;
 
-    private final Socket videoSocket;
+    private final Options options;
 
-    private final Socket audioSocket;
+    // The transports are replaced on reconnection (if session resume is enabled)
+    private Transport videoTransport;
 
-    private final Socket controlSocket;
+    private Transport audioTransport;
+
+    // Reopened along with the other media stream, not yet taken by the streamer (guarded by this)
+    private Transport pendingVideoTransport;
+    private Transport pendingAudioTransport;
+
+    // Single connection shared by video and audio (if the streams are multiplexed)
+    private final Transport mediaTransport;
+
+    private Transport controlTransport;
     private final ControlChannel controlChannel;
 
-    private DesktopConnection(Socket videoSocket, Socket audioSocket, Socket controlSocket) throws IOException {
-        this.videoSocket = videoSocket;
-        this.audioSocket = audioSocket;
-        this.controlSocket = controlSocket;
+    private boolean closed;
 
-        controlChannel = controlSocket != null ? new ControlChannel(controlSocket) : null;
+    private DesktopConnection(Options options, Transport videoTransport, Transport audioTransport, Transport mediaTransport,
+            Transport controlTransport) throws IOException {
+        this.options = options;
+        this.videoTransport = videoTransport;
+        this.audioTransport = audioTransport;
+        this.mediaTransport = mediaTransport;
+        this.controlTransport = controlTransport;
+
+        if (controlTransport != null) {
+            Reconnector reconnector = createReconnector(this::reconnectControl);
+            controlChannel = new ControlChannel(controlTransport, reconnector);
+        } else {
+            controlChannel = null;
+        }
     }
 
-    private static Socket connect(int port) throws IOException {
-        Ln.i("connectin to " + port);
+    private static Transport connect(Options options, boolean control) throws IOException {
+        if (options.getTransport() == TransportType.LOCAL) {
+            String socketName = control ? options.getControlerSocketName() : options.getMediaSocketName();
+            return LocalTransport.connect(socketName, options.getSendBufferSize());
+        }
 
-        return new Socket("127.0.0.1", port);
+        int port = control ? options.getControlerPort() : options.getMediaPort();
+        // Only the media sockets are written through a channel
+        return TcpTransport.connect(port, !control, options.getTcpNoDelay(), options.getSendBufferSize(), options.getSendLowWaterMark());
     }
 
-    public static DesktopConnection open(int controlerPort, int mediaPort, boolean video, boolean audio, boolean control, boolean sendDummyByte)
-            throws IOException {
-        Socket videoSocket = null;
-        Socket audioSocket = null;
-        Socket controlSocket = null;
+    public static DesktopConnection open(Options options) throws IOException {
+        boolean video = options.getVideo();
+        boolean audio = options.getAudio();
+        boolean control = options.getControl();
+
+        Transport videoTransport = null;
+        Transport audioTransport = null;
+        Transport mediaTransport = null;
+        Transport controlTransport = null;
 
         try {
-            if (video) {
-                videoSocket = connect(mediaPort);
-            }
+            if (options.getMediaMux()) {
+                if (video || audio) {
+                    mediaTransport = connect(options, false);
+                }
+            } else {
+                if (video) {
+                    videoTransport = connect(options, false);
+                }
 
-            if (audio) {
-                audioSocket = connect(mediaPort);
+                if (audio) {
+                    audioTransport = connect(options, false);
+                }
             }
 
             if (control) {
-                controlSocket = connect(controlerPort);
+                controlTransport = connect(options, true);
             }
         } catch (IOException | RuntimeException e) {
-            if (videoSocket != null) {
-                videoSocket.close();
+            if (videoTransport != null) {
+                videoTransport.close();
+            }
+
+            if (audioTransport != null) {
+                audioTransport.close();
             }
 
-            if (audioSocket != null) {
-                audioSocket.close();
+            if (mediaTransport != null) {
+                mediaTransport.close();
             }
 
-            if (controlSocket != null) {
-                controlSocket.close();
+            if (controlTransport != null) {
+                controlTransport.close();
             }
 
             throw e;
         }
 
-        return new DesktopConnection(videoSocket, audioSocket, controlSocket);
+        return new DesktopConnection(options, videoTransport, audioTransport, mediaTransport, controlTransport);
+    }
+
+    private Reconnector createReconnector(Reconnector.Connector connector) {
+        int resumeTimeout = options.getResumeTimeout();
+        return resumeTimeout > 0 ? new Reconnector(connector, resumeTimeout) : null;
     }
 
-    private Socket getFirstSocket() {
-        if (controlSocket != null) {
-            return controlSocket;
+    /**
+     * Return the reconnector for the video stream, or {@code null} if session resume is disabled.
+     */
+    public Reconnector getVideoReconnector() {
+        return videoTransport != null ? createReconnector(this::reconnectVideo) : null;
+    }
+
+    /**
+     * Return the reconnector for the audio stream, or {@code null} if session resume is disabled.
+     */
+    public Reconnector getAudioReconnector() {
+        return audioTransport != null ? createReconnector(this::reconnectAudio) : null;
+    }
+
+    private synchronized Transport reconnectVideo() throws IOException {
+        if (closed) {
+            return null;
+        }
+        if (pendingVideoTransport == null) {
+            reconnectMedia();
         }
+        Transport transport = pendingVideoTransport;
+        pendingVideoTransport = null;
+        return transport;
+    }
 
-        if (videoSocket != null) {
-            return videoSocket;
+    private synchronized Transport reconnectAudio() throws IOException {
+        if (closed) {
+            return null;
         }
+        if (pendingAudioTransport == null) {
+            reconnectMedia();
+        }
+        Transport transport = pendingAudioTransport;
+        pendingAudioTransport = null;
+        return transport;
+    }
 
-        if (audioSocket != null) {
-            return audioSocket;
+    /**
+     * Reopen both media connections, in the same order as on start (video, then audio).
+     * <p>
+     * The client accepts both on the same port, and identifies them by their order (nothing else identifies a raw stream). The connection
+     * of the other stream is kept until its streamer notices the loss of its previous connection (which is closed to notify it).
+     */
+    private void reconnectMedia() throws IOException {
+        Transport video = null;
+        Transport audio = null;
+        try {
+            if (videoTransport != null) {
+                video = connect(options, false);
+            }
+            if (audioTransport != null) {
+                audio = connect(options, false);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (video != null) {
+                video.close();
+            }
+            throw e;
+        }
+
+        // A pending transport (reopened by a previous attempt, never taken) is the current one, so it is closed too
+        if (video != null) {
+            videoTransport.close();
+            videoTransport = video;
+            pendingVideoTransport = video;
+        }
+        if (audio != null) {
+            audioTransport.close();
+            audioTransport = audio;
+            pendingAudioTransport = audio;
+        }
+    }
+
+    private synchronized Transport reconnectControl() throws IOException {
+        if (closed) {
+            return null;
+        }
+        Transport transport = connect(options, true);
+        controlTransport.close();
+        controlTransport = transport;
+        return transport;
+    }
+
+    private synchronized Transport getFirstTransport() {
+        if (controlTransport != null) {
+            return controlTransport;
+        }
+
+        if (videoTransport != null) {
+            return videoTransport;
+        }
+
+        if (audioTransport != null) {
+            return audioTransport;
+        }
+
+        if (mediaTransport != null) {
+            return mediaTransport;
         }
 
         return null;
     }
 
-    public void shutdown() throws IOException {
-        if (videoSocket != null) {
-            videoSocket.shutdownInput();
-            videoSocket.shutdownOutput();
+    public synchronized void shutdown() throws IOException {
+        // Never reconnect once the session is closing
+        closed = true;
+        if (videoTransport != null) {
+            videoTransport.shutdown();
+        }
+        if (audioTransport != null) {
+            audioTransport.shutdown();
         }
-        if (audioSocket != null) {
-            audioSocket.shutdownInput();
-            audioSocket.shutdownOutput();
+        if (mediaTransport != null) {
+            mediaTransport.shutdown();
         }
-        if (controlSocket != null) {
-            controlSocket.shutdownInput();
-            controlSocket.shutdownOutput();
+        if (controlTransport != null) {
+            controlTransport.shutdown();
         }
     }
 
-    public void close() throws IOException {
-        if (videoSocket != null) {
-            videoSocket.close();
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (videoTransport != null) {
+            videoTransport.close();
+        }
+        if (audioTransport != null) {
+            audioTransport.close();
         }
-        if (audioSocket != null) {
-            audioSocket.close();
+        if (mediaTransport != null) {
+            mediaTransport.close();
         }
-        if (controlSocket != null) {
-            controlSocket.close();
+        if (controlTransport != null) {
+            controlTransport.close();
         }
     }
 
-    public Socket getVideoSocket() {
-        return videoSocket;
+    public synchronized Transport getVideoTransport() {
+        return videoTransport;
+    }
+
+    public synchronized Transport getAudioTransport() {
+        return audioTransport;
     }
 
-    public Socket getAudioSocket() {
-        return audioSocket;
+    public Transport getMediaTransport() {
+        return mediaTransport;
     }
 
     public ControlChannel getControlChannel() {
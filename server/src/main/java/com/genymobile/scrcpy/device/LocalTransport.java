@@ -0,0 +1,115 @@
+package com.genymobile.scrcpy.device;
+
+import com.genymobile.scrcpy.util.IO;
+import com.genymobile.scrcpy.util.Ln;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+final class LocalTransport implements Transport {
+
+    /**
+     * Write the buffers directly to the socket file descriptor (LocalSocket has no channel).
+     * <p>
+     * Direct buffers (like MediaCodec output buffers) are passed as is to {@code Os.write()}, without any copy to the Java heap. Unlike a
+     * socket channel, each buffer is written by a separate syscall.
+     */
+    private static final class FileDescriptorChannel implements GatheringByteChannel {
+        private final FileDescriptor fd;
+        private volatile boolean open = true;
+
+        FileDescriptorChannel(FileDescriptor fd) {
+            this.fd = fd;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; ++i) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int remaining = src.remaining();
+            IO.writeFully(fd, src);
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            // The socket itself is closed by the transport
+            open = false;
+        }
+    }
+
+    private final LocalSocket socket;
+    private final GatheringByteChannel channel;
+
+    private LocalTransport(LocalSocket socket) {
+        this.socket = socket;
+        this.channel = new FileDescriptorChannel(socket.getFileDescriptor());
+    }
+
+    static LocalTransport connect(String socketName, int sendBufferSize) throws IOException {
+        Ln.i("connectin to @" + socketName);
+
+        LocalSocket socket = new LocalSocket();
+        try {
+            if (sendBufferSize > 0) {
+                socket.setSendBufferSize(sendBufferSize);
+            }
+            socket.connect(new LocalSocketAddress(socketName, LocalSocketAddress.Namespace.ABSTRACT));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        return new LocalTransport(socket);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public GatheringByteChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        socket.shutdownInput();
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
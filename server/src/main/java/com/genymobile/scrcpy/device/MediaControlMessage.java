@@ -0,0 +1,105 @@
+package com.genymobile.scrcpy.device;
+
+/**
+ * Message received from the client on a media socket (the back-channel of a media stream), identified by its {@code type}.
+ */
+public final class MediaControlMessage {
+
+    public static final int TYPE_REQUEST_KEY_FRAME = 1;
+    public static final int TYPE_SET_BIT_RATE = 2;
+    public static final int TYPE_SET_MAX_FPS = 3;
+    public static final int TYPE_PAUSE = 4;
+    public static final int TYPE_RESUME = 5;
+    public static final int TYPE_GET_STATS = 6;
+    // Only on the wire: read as a TYPE_REQUEST_KEY_FRAME for the target stream
+    public static final int TYPE_REQUEST_STREAM_KEY_FRAME = 7;
+    public static final int TYPE_SET_RENDITION = 8;
+    public static final int TYPE_REQUEST_PARAMETER_SETS = 9;
+
+    // The message is intended for the main stream of the connection
+    public static final int SCID_DEFAULT = -1;
+    // The message is intended for the audio stream of the connection (which has the same scid as the main video stream)
+    public static final int SCID_AUDIO = -2;
+
+    private int type;
+    private int scid; // the target stream
+    private int bitRate;
+    private float maxFps;
+    private int id;
+    private int renditionScid;
+    private boolean enabled;
+
+    private MediaControlMessage() {
+    }
+
+    public static MediaControlMessage createEmpty(int type, int scid) {
+        MediaControlMessage msg = new MediaControlMessage();
+        msg.type = type;
+        msg.scid = scid;
+        return msg;
+    }
+
+    public static MediaControlMessage createSetBitRate(int scid, int bitRate) {
+        MediaControlMessage msg = new MediaControlMessage();
+        msg.type = TYPE_SET_BIT_RATE;
+        msg.scid = scid;
+        msg.bitRate = bitRate;
+        return msg;
+    }
+
+    public static MediaControlMessage createSetMaxFps(int scid, float maxFps) {
+        MediaControlMessage msg = new MediaControlMessage();
+        msg.type = TYPE_SET_MAX_FPS;
+        msg.scid = scid;
+        msg.maxFps = maxFps;
+        return msg;
+    }
+
+    public static MediaControlMessage createGetStats(int scid, int id) {
+        MediaControlMessage msg = new MediaControlMessage();
+        msg.type = TYPE_GET_STATS;
+        msg.scid = scid;
+        msg.id = id;
+        return msg;
+    }
+
+    public static MediaControlMessage createSetRendition(int scid, int renditionScid, boolean enabled) {
+        MediaControlMessage msg = new MediaControlMessage();
+        msg.type = TYPE_SET_RENDITION;
+        msg.scid = scid;
+        msg.renditionScid = renditionScid;
+        msg.enabled = enabled;
+        return msg;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Return the scid of the target stream, {@link #SCID_DEFAULT} or {@link #SCID_AUDIO}.
+     */
+    public int getScid() {
+        return scid;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public float getMaxFps() {
+        return maxFps;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getRenditionScid() {
+        return renditionScid;
+    }
+
+    public boolean getEnabled() {
+        return enabled;
+    }
+}
@@ -0,0 +1,85 @@
+package com.genymobile.scrcpy.device;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read the messages of a media back-channel.
+ * <p>
+ * Each message starts with its type (1 byte), the scid of the target stream (int32, {@code -1} for the main stream of the connection,
+ * {@code -2} for its audio stream) and the length of its payload (uint16), followed by the payload:
+ * <ul>
+ *     <li>{@code REQUEST_STREAM_KEY_FRAME}, {@code PAUSE}, {@code RESUME}, {@code REQUEST_PARAMETER_SETS}: no payload;</li>
+ *     <li>{@code SET_BIT_RATE}: the bitrate in bps (int32);</li>
+ *     <li>{@code SET_MAX_FPS}: the max frame rate (float32);</li>
+ *     <li>{@code GET_STATS}: a request id (int32), returned in the stats packet;</li>
+ *     <li>{@code SET_RENDITION}: the scid of a video rendition (int32), and whether to enable it (uint8); the target stream is the video
+ *     stream the rendition is encoded from.</li>
+ * </ul>
+ * The messages of unknown types (or too short for their type) are skipped, so that a newer client does not break the back-channel. A
+ * payload longer than expected is accepted (the extra bytes are ignored).
+ * <p>
+ * As an exception, the legacy key frame request of existing clients (a single {@code REQUEST_KEY_FRAME} byte, for the main stream) is
+ * still supported.
+ */
+public class MediaControlMessageReader {
+
+    private final DataInputStream dis;
+
+    public MediaControlMessageReader(InputStream rawInputStream) {
+        dis = new DataInputStream(new BufferedInputStream(rawInputStream));
+    }
+
+    public MediaControlMessage read() throws IOException {
+        while (true) {
+            int type = dis.readUnsignedByte();
+            if (type == MediaControlMessage.TYPE_REQUEST_KEY_FRAME) {
+                return MediaControlMessage.createEmpty(type, MediaControlMessage.SCID_DEFAULT);
+            }
+
+            int scid = dis.readInt();
+            int length = dis.readUnsignedShort();
+            byte[] payload = new byte[length];
+            dis.readFully(payload);
+
+            MediaControlMessage msg = parse(type, scid, ByteBuffer.wrap(payload));
+            if (msg != null) {
+                return msg;
+            }
+        }
+    }
+
+    private static MediaControlMessage parse(int type, int scid, ByteBuffer payload) {
+        try {
+            switch (type) {
+                case MediaControlMessage.TYPE_REQUEST_STREAM_KEY_FRAME:
+                    return MediaControlMessage.createEmpty(MediaControlMessage.TYPE_REQUEST_KEY_FRAME, scid);
+                case MediaControlMessage.TYPE_PAUSE:
+                case MediaControlMessage.TYPE_RESUME:
+                case MediaControlMessage.TYPE_REQUEST_PARAMETER_SETS:
+                    return MediaControlMessage.createEmpty(type, scid);
+                case MediaControlMessage.TYPE_SET_BIT_RATE:
+                    return MediaControlMessage.createSetBitRate(scid, payload.getInt());
+                case MediaControlMessage.TYPE_SET_MAX_FPS:
+                    return MediaControlMessage.createSetMaxFps(scid, payload.getFloat());
+                case MediaControlMessage.TYPE_GET_STATS:
+                    return MediaControlMessage.createGetStats(scid, payload.getInt());
+                case MediaControlMessage.TYPE_SET_RENDITION:
+                    int renditionScid = payload.getInt();
+                    return MediaControlMessage.createSetRendition(scid, renditionScid, (payload.get() & 0xff) != 0);
+                default:
+                    Ln.w("Unknown media control message type: " + type + " (" + payload.remaining() + " bytes skipped)");
+                    return null;
+            }
+        } catch (BufferUnderflowException e) {
+            Ln.w("Media control message too short (type " + type + ", " + payload.capacity() + " bytes), skipped");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.genymobile.scrcpy.device;
+
+import com.genymobile.scrcpy.util.Codec;
+import com.genymobile.scrcpy.util.IO;
+import com.genymobile.scrcpy.util.Ln;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multiplex all the media streams of a session on a single connection.
+ * <p>
+ * Each stream is identified by the stream type already present in the frame header. A single sender thread writes the packets of all the
+ * streams: audio packets are always sent first, and large video packets are split into fragments, so that an audio packet is never delayed
+ * behind a whole key frame.
+ * <p>
+ * A fragment has the same header as the original packet (with its own size), and {@link #PACKET_FLAG_FRAGMENT} is set in its flags for all
+ * the fragments except the last one.
+ */
+public final class MediaMux {
+
+    public static final int PACKET_FLAG_FRAGMENT = 1 << 30;
+
+    private static final int DEFAULT_QUEUE_SIZE = 16;
+    private static final int FRAGMENT_SIZE = 16 * 1024;
+    // length (4) + scid (4) + type (1) + flags (4) + pts (8)
+    private static final int FRAME_HEADER_SIZE = 21;
+
+    private static final class Stream {
+        private final Streamer streamer;
+        private final SendQueue queue;
+        private final boolean priority;
+
+        private Stream(Streamer streamer, SendQueue queue, boolean priority) {
+            this.streamer = streamer;
+            this.queue = queue;
+            this.priority = priority;
+        }
+    }
+
+    private final Transport transport;
+    private final OutputStream stream;
+    private final GatheringByteChannel channel;
+    private final int queueSize;
+    private final CongestionPolicy congestionPolicy;
+    // If false, only the key frame requests are accepted from the back-channel
+    private final boolean fullControl;
+
+    private final Object lock = new Object();
+    private final List<Stream> streams = new ArrayList<>();
+    private boolean stopped;
+
+    private final ByteBuffer fragmentHeader = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE);
+    private final ByteBuffer[] packetBuffers = new ByteBuffer[2];
+
+    // Written only by the sender thread
+    private volatile long sendTime;
+
+    private Thread senderThread;
+    private Thread readerThread;
+
+    public MediaMux(Transport transport, int queueSize, CongestionPolicy congestionPolicy) throws IOException {
+        this(transport, queueSize, congestionPolicy, true);
+    }
+
+    MediaMux(Transport transport, int queueSize, CongestionPolicy congestionPolicy, boolean fullControl) throws IOException {
+        this.transport = transport;
+        this.fullControl = fullControl;
+        this.stream = transport.getOutputStream();
+        this.channel = transport.getChannel();
+        this.queueSize = queueSize > 0 ? queueSize : DEFAULT_QUEUE_SIZE;
+        this.congestionPolicy = congestionPolicy;
+    }
+
+    /**
+     * Register a new stream and return its send queue.
+     * <p>
+     * Must be called before {@link #start()}.
+     */
+    SendQueue register(Streamer streamer) {
+        boolean audio = streamer.getCodec().getType() == Codec.Type.AUDIO;
+        // Audio is never blocked by video, and it must never block the video encoder either
+        CongestionPolicy policy = audio ? CongestionPolicy.LATENCY : congestionPolicy;
+        SendQueue queue = new SendQueue(queueSize, policy, lock);
+        synchronized (lock) {
+            streams.add(new Stream(streamer, queue, audio));
+        }
+        return queue;
+    }
+
+    long getSendTime() {
+        return sendTime;
+    }
+
+    public void start() {
+        senderThread = new Thread(this::sendLoop, "mux-send");
+        senderThread.start();
+
+        readerThread = new Thread(() -> {
+            try {
+                MediaControlMessageReader reader = new MediaControlMessageReader(transport.getInputStream());
+                while (true) {
+                    MediaControlMessage msg = reader.read();
+                    if (fullControl || msg.getType() == MediaControlMessage.TYPE_REQUEST_KEY_FRAME) {
+                        Streamer target = getControlTarget(msg.getScid());
+                        if (target != null) {
+                            target.handleControlMessage(msg);
+                        } else {
+                            Ln.w("No media stream for scid " + Integer.toHexString(msg.getScid()) + ", message ignored");
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+                // this is expected on close
+            } catch (Exception e) {
+                Ln.e("mux read error: " + e.getMessage());
+            }
+        }, "mux-recv");
+        readerThread.start();
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            stopped = true;
+            for (Stream s : streams) {
+                s.queue.stop();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public void join() throws InterruptedException {
+        if (senderThread != null) {
+            senderThread.join();
+        }
+
+        for (Stream s : streams) {
+            Codec codec = s.streamer.getCodec();
+            Ln.d(codec.getName() + " stream: queueing latency avg=" + s.queue.getAverageLatencyUs() + "us max=" + s.queue.getMaxLatencyUs() + "us");
+        }
+    }
+
+    /**
+     * Wait for the end of the back-channel reader, which only terminates once the transport is closed.
+     */
+    void joinReader() throws InterruptedException {
+        if (readerThread != null) {
+            readerThread.join();
+        }
+    }
+
+    private Streamer getControlTarget(int scid) {
+        // The back-channel messages (key frame requests, bitrate...) are intended for the main video stream by default, otherwise for the
+        // stream identified by the scid (a rendition or an additional display). The main audio stream shares its scid with the main video
+        // stream, so it is only targeted explicitly by SCID_AUDIO (or by its scid if there is no video stream).
+        boolean audio = scid == MediaControlMessage.SCID_AUDIO;
+        boolean any = scid == MediaControlMessage.SCID_DEFAULT;
+        synchronized (lock) {
+            if (audio) {
+                for (Stream s : streams) {
+                    if (s.priority) {
+                        return s.streamer;
+                    }
+                }
+                return null;
+            }
+
+            Streamer target = null;
+            for (Stream s : streams) {
+                if (any || s.streamer.getScid() == scid) {
+                    if (!s.priority) {
+                        return s.streamer;
+                    }
+                    if (target == null) {
+                        target = s.streamer;
+                    }
+                }
+            }
+            return target;
+        }
+    }
+
+    private Stream selectStream() {
+        Stream selected = null;
+        for (Stream s : streams) {
+            if (!s.queue.isEmpty()) {
+                if (s.priority) {
+                    return s;
+                }
+                if (selected == null) {
+                    selected = s;
+                }
+            }
+        }
+        return selected;
+    }
+
+    private void sendLoop() {
+        try {
+            while (true) {
+                Stream s = null;
+                SendQueue.Packet packet;
+                synchronized (lock) {
+                    while (!stopped && (s = selectStream()) == null) {
+                        lock.wait();
+                    }
+                    if (stopped) {
+                        return;
+                    }
+                    packet = s.queue.peek();
+                }
+
+                if (sendNextFragment(packet)) {
+                    s.queue.release();
+                }
+            }
+        } catch (IOException e) {
+            // Broken pipe is expected on close, it will be reported by the producers on the next push
+            synchronized (lock) {
+                for (Stream s : streams) {
+                    s.queue.fail(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Send the packet, or only its next fragment if it is a large frame.
+     *
+     * @return {@code true} if the packet has been sent completely
+     */
+    private boolean sendNextFragment(SendQueue.Packet packet) throws IOException {
+        ByteBuffer header = packet.getHeader();
+        ByteBuffer payload = packet.getPayload();
+        int offset = packet.getFragmentOffset();
+
+        if (!packet.isFrame() || (offset == 0 && payload.remaining() <= FRAGMENT_SIZE)) {
+            // Send the packet as is
+            send(header, payload);
+            return true;
+        }
+
+        int remaining = payload.remaining() - offset;
+        int len = Math.min(remaining, FRAGMENT_SIZE);
+        boolean last = len == remaining;
+
+        // The original header is never sent, its values are read with absolute gets
+        int base = header.position();
+        int flags = header.getInt(base + 9);
+        if (!last) {
+            flags |= PACKET_FLAG_FRAGMENT;
+        }
+
+        fragmentHeader.clear();
+        fragmentHeader.putInt(len + FRAME_HEADER_SIZE - 4);
+        fragmentHeader.putInt(header.getInt(base + 4)); // scid
+        fragmentHeader.put(header.get(base + 8)); // stream type
+        fragmentHeader.putInt(flags);
+        fragmentHeader.putLong(header.getLong(base + 13)); // pts
+        fragmentHeader.flip();
+
+        // Send a window of the payload, then restore it (the progress is only stored in the fragment offset)
+        int position = payload.position();
+        int limit = payload.limit();
+        payload.limit(position + offset + len);
+        payload.position(position + offset);
+        try {
+            send(fragmentHeader, payload);
+        } finally {
+            payload.limit(limit);
+            payload.position(position);
+        }
+
+        packet.setFragmentOffset(offset + len);
+        return last;
+    }
+
+    private void send(ByteBuffer header, ByteBuffer payload) throws IOException {
+        long start = System.nanoTime();
+        if (channel != null) {
+            packetBuffers[0] = header;
+            packetBuffers[1] = payload;
+            IO.writeFully(channel, packetBuffers);
+        } else {
+            IO.writeFully(stream, header);
+            IO.writeFully(stream, payload);
+        }
+        sendTime += System.nanoTime() - start;
+    }
+}
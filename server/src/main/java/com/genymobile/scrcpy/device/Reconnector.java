@@ -0,0 +1,100 @@
+package com.genymobile.scrcpy.device;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Reopen a connection lost during a session, so that the capture and the encoders survive a client reconnection.
+ */
+public final class Reconnector {
+
+    public interface Connector {
+        /**
+         * Open a new connection to the client.
+         *
+         * @return the new transport, or {@code null} if the session is closed (no reconnection must be attempted)
+         */
+        Transport connect() throws IOException;
+    }
+
+    public interface Handshake {
+        /**
+         * Initialize a new connection (typically by sending the stream configuration again).
+         * <p>
+         * A failure means that the client is not reconnected yet (with {@code adb reverse}, the connection may succeed even if the client
+         * is not listening).
+         */
+        void init(Transport transport) throws IOException;
+    }
+
+    private static final long RETRY_DELAY_MS = 100;
+
+    private final Connector connector;
+    private final int timeoutMs;
+
+    public Reconnector(Connector connector, int timeoutMs) {
+        assert timeoutMs > 0;
+        this.connector = connector;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Wait for the client to accept a new connection, within the grace period.
+     *
+     * @param cause the error which closed the previous connection
+     * @return the new transport
+     * @throws IOException the {@code cause} if the client did not reconnect in time
+     */
+    public Transport reconnect(IOException cause) throws IOException {
+        return reconnect(cause, null);
+    }
+
+    /**
+     * Wait for the client to accept a new connection, within the grace period, and initialize it.
+     * <p>
+     * If the initialization fails, the connection is closed and retried until the deadline.
+     *
+     * @param cause the error which closed the previous connection
+     * @param handshake the initialization of the new connection (may be {@code null})
+     * @return the new transport, initialized
+     * @throws IOException the {@code cause} if the client did not reconnect in time
+     */
+    public Transport reconnect(IOException cause, Handshake handshake) throws IOException {
+        Ln.i("Connection lost (" + cause.getMessage() + "), waiting " + timeoutMs + "ms for the client to reconnect");
+        long deadline = SystemClock.uptimeMillis() + timeoutMs;
+        while (true) {
+            try {
+                Transport transport = connector.connect();
+                if (transport == null) {
+                    // The session is closing
+                    throw cause;
+                }
+                if (handshake != null) {
+                    try {
+                        handshake.init(transport);
+                    } catch (IOException e) {
+                        transport.close();
+                        throw e;
+                    }
+                }
+                Ln.i("Client reconnected");
+                return transport;
+            } catch (IOException e) {
+                if (e == cause || SystemClock.uptimeMillis() >= deadline) {
+                    throw cause;
+                }
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the client to reconnect");
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.genymobile.scrcpy.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded queue of packets between a producer (the encoder) and a sender thread (writing to the socket).
+ * <p>
+ * All the packets are preallocated (and their direct buffers are reused), so that queueing does not allocate memory in the steady state.
+ * <p>
+ * When the queue is full, the {@link CongestionPolicy} decides whether the producer must wait (quality first) or whether the packet must be
+ * dropped (latency first). Config packets, metadata and key frames are never dropped.
+ */
+final class SendQueue {
+
+    /** Metadata or config packet, never dropped */
+    static final int KIND_CONTROL = 0;
+    /** Key frame, never dropped */
+    static final int KIND_KEY_FRAME = 1;
+    /** Frame which may be referenced by the following frames: dropping it requires a new key frame */
+    static final int KIND_FRAME = 2;
+    /** Frame not referenced by any other frame (or audio packet), which may be dropped alone */
+    static final int KIND_DISPOSABLE = 3;
+
+    /** The packet has been queued */
+    static final int RESULT_QUEUED = 0;
+    /** The packet has been dropped, no recovery is needed */
+    static final int RESULT_DROPPED = 1;
+    /** The packet has been dropped, a key frame must be requested to recover */
+    static final int RESULT_DROPPED_NEED_KEY_FRAME = 2;
+    /** The queue is full and the packet must not be dropped (only for non-blocking pushes) */
+    static final int RESULT_FULL = 3;
+
+    static final class Packet {
+        private ByteBuffer header = ByteBuffer.allocateDirect(64);
+        private ByteBuffer payload = ByteBuffer.allocateDirect(0);
+        private int kind;
+        private boolean frame;
+        // Number of payload bytes already sent as fragments (only for frames)
+        private int fragmentOffset;
+        private long enqueueTime;
+
+        ByteBuffer getHeader() {
+            return header;
+        }
+
+        ByteBuffer getPayload() {
+            return payload;
+        }
+
+        int getKind() {
+            return kind;
+        }
+
+        /**
+         * Indicate whether the header is a frame header (length, scid, type, flags, pts), so that the payload may be split into fragments.
+         */
+        boolean isFrame() {
+            return frame;
+        }
+
+        int getFragmentOffset() {
+            return fragmentOffset;
+        }
+
+        void setFragmentOffset(int fragmentOffset) {
+            this.fragmentOffset = fragmentOffset;
+        }
+
+        private void set(ByteBuffer newHeader, ByteBuffer newPayload, int newKind, boolean newFrame) {
+            header = copy(header, newHeader);
+            payload = copy(payload, newPayload);
+            kind = newKind;
+            frame = newFrame;
+            fragmentOffset = 0;
+            enqueueTime = System.nanoTime();
+        }
+
+        private static ByteBuffer copy(ByteBuffer target, ByteBuffer source) {
+            int size = source == null ? 0 : source.remaining();
+            if (target.capacity() < size) {
+                // Grow by steps, to avoid reallocating for every slightly bigger packet
+                int capacity = Math.max(size, target.capacity() + target.capacity() / 2);
+                target = ByteBuffer.allocateDirect(capacity);
+            }
+            target.clear();
+            if (source != null) {
+                target.put(source);
+            }
+            target.flip();
+            return target;
+        }
+    }
+
+    private final Object lock;
+    private final Packet[] ring;
+    private final CongestionPolicy policy;
+
+    private int head;
+    private int count;
+    // The packet at head is being written by the sender
+    private boolean sending;
+    // A referenced frame has been dropped, so all frames must be dropped until the next key frame
+    private boolean waitingKeyFrame;
+    private IOException failure;
+    private boolean stopped;
+
+    private long droppedPackets;
+    private long droppedBytes;
+    private int maxDepth;
+
+    // Time between the push and the end of the send (queueing latency)
+    private long sentPackets;
+    private long totalLatency;
+    private long maxLatency;
+
+    SendQueue(int capacity, CongestionPolicy policy) {
+        this(capacity, policy, new Object());
+    }
+
+    /**
+     * Create a send queue synchronized on a lock shared with other queues, so that a single sender may wait for any of them.
+     */
+    SendQueue(int capacity, CongestionPolicy policy, Object lock) {
+        assert capacity > 0;
+        this.lock = lock;
+        this.policy = policy;
+        ring = new Packet[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            ring[i] = new Packet();
+        }
+    }
+
+    Object getLock() {
+        return lock;
+    }
+
+    /**
+     * Copy and queue a packet.
+     *
+     * @param header the packet header (may be {@code null})
+     * @param payload the packet payload (may be {@code null})
+     * @param kind the kind of packet ({@code KIND_*})
+     * @param frame whether the header is a frame header (see {@link Packet#isFrame()})
+     * @return {@code RESULT_QUEUED}, {@code RESULT_DROPPED} or {@code RESULT_DROPPED_NEED_KEY_FRAME}
+     * @throws IOException if the sender failed
+     */
+    int push(ByteBuffer header, ByteBuffer payload, int kind, boolean frame) throws IOException, InterruptedException {
+        return push(header, payload, kind, frame, true);
+    }
+
+    /**
+     * Copy and queue a packet.
+     *
+     * @param wait whether to wait if the queue is full and the packet must not be dropped (otherwise {@code RESULT_FULL} is returned)
+     * @see #push(ByteBuffer, ByteBuffer, int, boolean)
+     */
+    int push(ByteBuffer header, ByteBuffer payload, int kind, boolean frame, boolean wait) throws IOException, InterruptedException {
+        synchronized (lock) {
+            checkFailure();
+
+            if (kind == KIND_KEY_FRAME) {
+                boolean congested = waitingKeyFrame || count == ring.length;
+                waitingKeyFrame = false;
+                if (congested && policy == CongestionPolicy.LATENCY) {
+                    // The pending frames are late, and useless once a key frame is available
+                    dropPendingFrames();
+                }
+            } else if (waitingKeyFrame && (kind == KIND_FRAME || kind == KIND_DISPOSABLE)) {
+                drop(header, payload);
+                return RESULT_DROPPED;
+            }
+
+            if (count == ring.length && policy == CongestionPolicy.LATENCY) {
+                if (kind == KIND_DISPOSABLE) {
+                    drop(header, payload);
+                    return RESULT_DROPPED;
+                }
+                if (kind == KIND_FRAME) {
+                    drop(header, payload);
+                    waitingKeyFrame = true;
+                    return RESULT_DROPPED_NEED_KEY_FRAME;
+                }
+            }
+
+            if (count == ring.length && !wait) {
+                return RESULT_FULL;
+            }
+
+            while (count == ring.length) {
+                lock.wait();
+                checkFailure();
+            }
+
+            Packet packet = ring[(head + count) % ring.length];
+            packet.set(header, payload, kind, frame);
+            ++count;
+            if (count > maxDepth) {
+                maxDepth = count;
+            }
+            lock.notifyAll();
+            return RESULT_QUEUED;
+        }
+    }
+
+    /**
+     * Drop all the frames until the next key frame (for example for a stream joined in the middle).
+     */
+    void waitKeyFrame() {
+        synchronized (lock) {
+            waitingKeyFrame = true;
+        }
+    }
+
+    /**
+     * Return the next packet to send, without removing it, or {@code null} if there is none.
+     * <p>
+     * The packet remains owned by the caller until {@link #release()} is called.
+     */
+    Packet peek() {
+        synchronized (lock) {
+            if (count == 0) {
+                return null;
+            }
+            sending = true;
+            return ring[head];
+        }
+    }
+
+    /**
+     * Wait for the next packet to send (see {@link #peek()}).
+     *
+     * @return the next packet, or {@code null} if the queue is stopped
+     */
+    Packet take() throws InterruptedException {
+        synchronized (lock) {
+            while (count == 0 && !stopped) {
+                lock.wait();
+            }
+            return stopped ? null : peek();
+        }
+    }
+
+    /**
+     * Release the packet returned by {@link #peek()} or {@link #take()} once it has been sent.
+     */
+    void release() {
+        synchronized (lock) {
+            assert sending && count > 0;
+            long latency = System.nanoTime() - ring[head].enqueueTime;
+            ++sentPackets;
+            totalLatency += latency;
+            if (latency > maxLatency) {
+                maxLatency = latency;
+            }
+            sending = false;
+            head = (head + 1) % ring.length;
+            --count;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Notify that the sender failed, so that the producer fails on the next push.
+     */
+    void fail(IOException e) {
+        synchronized (lock) {
+            failure = e;
+            lock.notifyAll();
+        }
+    }
+
+    void stop() {
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+    }
+
+    boolean isEmpty() {
+        synchronized (lock) {
+            return count == 0;
+        }
+    }
+
+    /**
+     * Return the average queueing latency (from push to the end of the send), in microseconds.
+     */
+    int getAverageLatencyUs() {
+        synchronized (lock) {
+            return sentPackets != 0 ? (int) (totalLatency / sentPackets / 1000) : 0;
+        }
+    }
+
+    /**
+     * Return the maximum queueing latency (from push to the end of the send), in microseconds.
+     */
+    int getMaxLatencyUs() {
+        synchronized (lock) {
+            return (int) (maxLatency / 1000);
+        }
+    }
+
+    int getDepth() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    int getCapacity() {
+        return ring.length;
+    }
+
+    long getDroppedPackets() {
+        synchronized (lock) {
+            return droppedPackets;
+        }
+    }
+
+    long getDroppedBytes() {
+        synchronized (lock) {
+            return droppedBytes;
+        }
+    }
+
+    int getMaxDepth() {
+        synchronized (lock) {
+            return maxDepth;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            // Rethrow the original exception, so that the caller may detect a broken pipe
+            throw failure;
+        }
+        if (stopped) {
+            throw new IOException("Send queue stopped");
+        }
+    }
+
+    private void drop(ByteBuffer header, ByteBuffer payload) {
+        ++droppedPackets;
+        droppedBytes += (header != null ? header.remaining() : 0) + (payload != null ? payload.remaining() : 0);
+    }
+
+    private void dropPendingFrames() {
+        // Never remove the packet currently being sent
+        int first = sending ? 1 : 0;
+        int kept = first;
+        for (int i = first; i < count; ++i) {
+            Packet packet = ring[(head + i) % ring.length];
+            if (packet.kind == KIND_FRAME || packet.kind == KIND_DISPOSABLE) {
+                ++droppedPackets;
+                droppedBytes += packet.header.remaining() + packet.payload.remaining();
+            } else {
+                if (kept != i) {
+                    // Swap the slots, so that the preallocated packets are never lost
+                    int keptIndex = (head + kept) % ring.length;
+                    int index = (head + i) % ring.length;
+                    Packet tmp = ring[keptIndex];
+                    ring[keptIndex] = packet;
+                    ring[index] = tmp;
+                }
+                ++kept;
+            }
+        }
+        count = kept;
+        lock.notifyAll();
+    }
+}
@@ -1,60 +1,183 @@
 package com.genymobile.scrcpy.device;
 
+import com.genymobile.scrcpy.Options;
 import com.genymobile.scrcpy.audio.AudioCodec;
 import com.genymobile.scrcpy.util.Codec;
 import com.genymobile.scrcpy.util.IO;
 import com.genymobile.scrcpy.util.Ln;
+import com.genymobile.scrcpy.util.NalUnits;
+import com.genymobile.scrcpy.util.ParameterSets;
 import com.genymobile.scrcpy.video.VideoCodec;
 
+import android.graphics.Rect;
 import android.media.MediaCodec;
 import android.os.Looper;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class Streamer {
 
+    /**
+     * Handle the runtime requests received on the back-channel of the media socket.
+     * <p>
+     * The methods are called from the streamer reading thread.
+     */
+    public interface Listener {
+        void onBitRateRequested(int bitRate) throws IOException;
+
+        void onMaxFpsRequested(float maxFps) throws IOException;
+
+        void onPauseRequested(boolean paused) throws IOException;
+
+        void onRenditionRequested(int scid, boolean enabled);
+
+        /**
+         * Called when a key frame is requested (by the client or internally), from any thread.
+         * <p>
+         * The request itself is polled by the encoder after each packet ({@link #isKeyFrameRequest()}, {@link #isRefreshRequest()}).
+         */
+        void onKeyFrameRequested();
+    }
+
     private static final long PACKET_FLAG_CONFIG = 1L << 63;
-    private static final byte KEY_FRAME_REQUEST = 1;
     private static final int MEDIA_STREAM_TYPE_VIDEO = 0;
     private static final int MEDIA_STREAM_TYPE_VIDEO_METADATA = 1;
     private static final int MEDIA_STREAM_TYPE_AUDIO = 2;
     private static final int MEDIA_STREAM_TYPE_AUDIO_METADATA = 3;
-
-    private final OutputStream stream;
-    private final Codec codec;
+    private static final int MEDIA_STREAM_TYPE_VIDEO_BITRATE = 4;
+    private static final int MEDIA_STREAM_TYPE_STATS = 5;
+    private static final int MEDIA_STREAM_TYPE_VIDEO_RECONFIGURED = 6;
+    private static final int MEDIA_STREAM_TYPE_THUMBNAIL = 7;
+    private static final int MEDIA_STREAM_TYPE_VIDEO_CONTENT_RECT = 8;
+    private static final int MEDIA_STREAM_TYPE_STREAM_DISABLED = 9;
+
+    private static final int VIDEO_RECONFIGURED_VERSION = 1;
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocateDirect(0);
+
+    // Replaced on reconnection (guarded by this)
+    private OutputStream stream;
+    // Non-null if the transport supports channels (packets are then written without any copy)
+    private GatheringByteChannel channel;
+    // May only change on video encoder failover
+    private volatile Codec codec;
     private final boolean sendCodecMeta;
     private final boolean sendFrameMeta;
     private final int scid;
-    private final ByteBuffer headerBuffer = ByteBuffer.allocate(21);
-    private final Thread thread;
-    private boolean keyFrameRequest = false;
-
-    public Streamer(int scid, Socket stream, Codec codec, boolean sendCodecMeta, boolean sendFrameMeta) throws IOException {
-        this.stream = stream.getOutputStream();
+    // Direct, so that the header can be written along with the (direct) MediaCodec buffer in a single gathering write
+    private final ByteBuffer headerBuffer = ByteBuffer.allocateDirect(21);
+    private final ByteBuffer[] packetBuffers = new ByteBuffer[2];
+    // Internal key frame requests (resume, new subscriber, dropped frames): the consumer drops the frames until the next key frame
+    private final AtomicBoolean keyFrameRequest = new AtomicBoolean();
+    // Key frame requests from the client, which may be served by an intra refresh cycle instead of a key frame
+    private final AtomicBoolean refreshRequest = new AtomicBoolean();
+
+    // Non-null if the packets are written asynchronously by a sender thread
+    private final SendQueue sendQueue;
+    private Thread senderThread;
+    // Non-null if the stream shares a single media connection with the other streams
+    private final MediaMux mux;
+
+    // Non-null if the connection must be reopened when it is lost (session resume)
+    private final Reconnector reconnector;
+    // Non-null if the packets are also broadcast to additional subscribers
+    private BroadcastHub broadcastHub;
+    // Held while reconnecting, so that a single thread reopens the connection (the other ones wait for it)
+    private final Object resumeLock = new Object();
+    // Incremented on every reconnection (guarded by this)
+    private int generation;
+    private IOException resumeFailure;
+    // Last codec metadata, to be sent again on reconnection (guarded by this)
+    private ByteBuffer codecHeader;
+    // Latest parameter sets (or config packet), to be sent again to a consumer joining in the middle of the stream
+    private volatile ParameterSets parameterSets;
+    private final boolean prependParameterSets;
+    // After a reconnection, the queued frames are not sent until the next key frame
+    private volatile boolean sendWaitingKeyFrame;
+
+    // Total time spent in socket writes (written only by the thread which writes to the socket)
+    private volatile long sendTime;
+
+    private Listener listener;
+    private volatile boolean paused;
+    // After a resume, video frames are dropped until the next key frame
+    private volatile boolean waitingKeyFrame;
+
+    // Written only by the encoder thread
+    private volatile long packetCount;
+    private volatile long byteCount;
+    private volatile int bitRate;
+    // Incremented on every video stream reconfiguration (written only by the encoder thread)
+    private int reconfigureSequence;
+
+    public Streamer(int scid, Transport transport, Reconnector reconnector, Codec codec, Options options) throws IOException {
+        this.stream = transport.getOutputStream();
+        this.channel = transport.getChannel();
+        this.reconnector = reconnector;
         this.scid = scid;
         this.codec = codec;
-        this.sendCodecMeta = sendCodecMeta;
-        this.sendFrameMeta = sendFrameMeta;
+        this.sendCodecMeta = options.getSendCodecMeta();
+        this.sendFrameMeta = options.getSendFrameMeta();
+        this.parameterSets = new ParameterSets(codec);
+        this.prependParameterSets = options.getPrependParameterSets();
 
-        InputStream inputStream = stream.getInputStream();
-        thread = new Thread(() -> {
-            try {
-                byte[] buffer = new byte[1024];
-                int len;
+        int sendQueueSize = options.getSendQueueSize();
+        sendQueue = sendQueueSize > 0 ? new SendQueue(sendQueueSize, options.getCongestionPolicy()) : null;
+        mux = null;
+
+        startReader(transport, 0);
+
+        if (sendQueue != null) {
+            senderThread = new Thread(this::sendLoop, "streamer-send");
+            senderThread.start();
+        }
+    }
 
-                while ((len = inputStream.read(buffer)) != -1) {
-                    ByteBuffer payload = ByteBuffer.wrap(buffer, 0, len);
+    /**
+     * Create a streamer writing its packets to a connection shared with the other streams.
+     * <p>
+     * The packets are always queued, and written by the mux sender thread.
+     */
+    public Streamer(int scid, MediaMux mux, Codec codec, Options options) {
+        this.stream = null;
+        this.channel = null;
+        this.scid = scid;
+        this.codec = codec;
+        this.sendCodecMeta = options.getSendCodecMeta();
+        this.sendFrameMeta = options.getSendFrameMeta();
+        this.parameterSets = new ParameterSets(codec);
+        this.prependParameterSets = options.getPrependParameterSets();
+        this.mux = mux;
+        this.reconnector = null;
+        sendQueue = mux.register(this);
+    }
 
-                    byte ty = payload.get();
-                    if (ty == KEY_FRAME_REQUEST) {
-                        keyFrameRequest = true;
+    private void startReader(Transport transport, int readerGeneration) throws IOException {
+        MediaControlMessageReader reader = new MediaControlMessageReader(transport.getInputStream());
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    handleControlMessage(reader.read());
+                }
+            } catch (IOException e) {
+                if (reconnector != null) {
+                    // The client closed the connection, do not wait for the next packet to reconnect
+                    try {
+                        resume(readerGeneration, e);
+                    } catch (IOException re) {
+                        Ln.e("streamer resume error: " + re.getMessage());
                     }
+                } else if (!(e instanceof EOFException)) {
+                    // EOF is expected on close
+                    Ln.e("streamer read error: " + e.getMessage());
                 }
             } catch (Exception e) {
                 Ln.e("streamer read error: " + e.getMessage());
@@ -64,20 +187,335 @@ public final class Streamer {
         thread.start();
     }
 
-    public boolean isKeyFrameRequest() {
-        if (keyFrameRequest) {
-            keyFrameRequest = false;
+    /**
+     * Reopen the connection, and send the codec metadata and config packets again, so that the client may decode from the next key frame.
+     * <p>
+     * The connection is reopened outside the monitor of the streamer, so that the other writers (metadata, broadcast subscribers...) are
+     * not blocked until the deadline. The new transport is only swapped in once it is initialized.
+     */
+    private void resume(int failedGeneration, IOException cause) throws IOException {
+        synchronized (resumeLock) {
+            synchronized (this) {
+                if (failedGeneration != generation) {
+                    // Already reconnected
+                    return;
+                }
+                if (resumeFailure != null) {
+                    throw resumeFailure;
+                }
+            }
 
-            return true;
+            while (true) {
+                ByteBuffer[] replayed = new ByteBuffer[2];
+                Transport transport;
+                try {
+                    transport = reconnector.reconnect(cause, t -> writeConfig(t, replayed));
+                } catch (IOException e) {
+                    synchronized (this) {
+                        resumeFailure = e;
+                    }
+                    throw e;
+                }
+
+                synchronized (this) {
+                    stream = transport.getOutputStream();
+                    channel = transport.getChannel();
+                    ++generation;
+                    try {
+                        // The configuration may have changed while the connection was initialized
+                        if (codecHeader != replayed[0]) {
+                            rawSend(codecHeader.duplicate(), EMPTY_BUFFER);
+                        }
+                        ByteBuffer config = parameterSets.get();
+                        if (config != null && !config.equals(replayed[1])) {
+                            rawSend(createConfigHeader(config.remaining()), config);
+                        }
+                    } catch (IOException e) {
+                        // Lost again, reconnect
+                        try {
+                            transport.close();
+                        } catch (IOException ce) {
+                            // ignore
+                        }
+                        cause = e;
+                        continue;
+                    }
+
+                    if (codec.getType() == Codec.Type.VIDEO) {
+                        waitingKeyFrame = true;
+                        sendWaitingKeyFrame = true;
+                        requestKeyFrame();
+                    }
+
+                    startReader(transport, generation);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the codec metadata and the config packet to a new connection, not yet visible to the other writers.
+     */
+    private void writeConfig(Transport transport, ByteBuffer[] replayed) throws IOException {
+        ByteBuffer header;
+        synchronized (this) {
+            header = codecHeader;
+        }
+        ByteBuffer config = parameterSets.get();
+
+        OutputStream output = transport.getOutputStream();
+        if (header != null) {
+            IO.writeFully(output, header.duplicate());
+        }
+        if (config != null) {
+            IO.writeFully(output, createConfigHeader(config.remaining()));
+            IO.writeFully(output, config.duplicate());
+        }
+        replayed[0] = header;
+        replayed[1] = config;
+    }
+
+    /**
+     * Attach a broadcast hub, to which all the packets (except the replies to the client requests, like the stats) are also published.
+     * <p>
+     * Must be called before the stream starts.
+     */
+    void setBroadcastHub(BroadcastHub broadcastHub) {
+        this.broadcastHub = broadcastHub;
+    }
+
+    /**
+     * Request a key frame from the encoder (for example for a new subscriber).
+     */
+    void requestKeyFrame() {
+        keyFrameRequest.set(true);
+        if (listener != null) {
+            listener.onKeyFrameRequested();
+        }
+    }
+
+    /**
+     * Queue the last codec metadata and parameter sets, so that a late subscriber may decode the stream from the next key frame.
+     */
+    synchronized void replayConfig(SendQueue queue) throws IOException, InterruptedException {
+        if (codecHeader != null) {
+            queue.push(null, codecHeader.duplicate(), SendQueue.KIND_CONTROL, false, false);
+        }
+        ByteBuffer config = parameterSets.get();
+        if (config != null) {
+            queue.push(createConfigHeader(config.remaining()), config, SendQueue.KIND_CONTROL, sendFrameMeta, false);
+        }
+    }
+
+    /**
+     * Write the latest parameter sets (or config packet) again, as a config packet.
+     * <p>
+     * This allows a consumer which started to read the stream in the middle (a recorder, a proxy...) to decode from the next key frame,
+     * without waiting for the encoder to emit new parameter sets. It is requested by a {@code REQUEST_PARAMETER_SETS} back-channel message,
+     * or before each key frame without in-band parameter sets if {@code prepend_parameter_sets} is enabled.
+     */
+    private void writeParameterSets() throws IOException {
+        ByteBuffer config = parameterSets.get();
+        if (config == null) {
+            return;
+        }
+
+        ByteBuffer header = createConfigHeader(config.remaining());
+        BroadcastHub hub = broadcastHub;
+        if (hub != null) {
+            hub.publish(this, header, config, SendQueue.KIND_CONTROL, sendFrameMeta);
+        }
+
+        if (sendQueue != null) {
+            push(header, config, SendQueue.KIND_CONTROL, sendFrameMeta);
         } else {
-            return false;
+            send(header, config);
+        }
+    }
+
+    private ByteBuffer createConfigHeader(int packetSize) {
+        if (!sendFrameMeta) {
+            return EMPTY_BUFFER;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(21);
+        header.putInt(packetSize + 17);
+        header.putInt(scid);
+        header.put(codec.getType() == Codec.Type.VIDEO ? (byte) MEDIA_STREAM_TYPE_VIDEO : (byte) MEDIA_STREAM_TYPE_AUDIO);
+        header.putInt(MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        header.putLong(0);
+        header.flip();
+        return header;
+    }
+
+    private boolean isReplayEnabled() {
+        return reconnector != null || broadcastHub != null;
+    }
+
+    private synchronized void cacheCodecHeader(ByteBuffer buffer) {
+        codecHeader = copy(buffer);
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Set the listener for the back-channel requests.
+     * <p>
+     * Must be called before the stream starts.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    void handleControlMessage(MediaControlMessage msg) throws IOException {
+        switch (msg.getType()) {
+            case MediaControlMessage.TYPE_REQUEST_KEY_FRAME:
+                refreshRequest.set(true);
+                if (listener != null) {
+                    listener.onKeyFrameRequested();
+                }
+                break;
+            case MediaControlMessage.TYPE_SET_BIT_RATE:
+                if (listener != null) {
+                    listener.onBitRateRequested(msg.getBitRate());
+                }
+                break;
+            case MediaControlMessage.TYPE_SET_MAX_FPS:
+                if (listener != null) {
+                    listener.onMaxFpsRequested(msg.getMaxFps());
+                }
+                break;
+            case MediaControlMessage.TYPE_PAUSE:
+            case MediaControlMessage.TYPE_RESUME:
+                boolean pause = msg.getType() == MediaControlMessage.TYPE_PAUSE;
+                if (pause != paused) {
+                    Ln.i(codec.getName() + " stream " + (pause ? "paused" : "resumed"));
+                    waitingKeyFrame = !pause && codec.getType() == Codec.Type.VIDEO;
+                    paused = pause;
+                    if (listener != null) {
+                        listener.onPauseRequested(pause);
+                    }
+                    if (!pause) {
+                        // The client may not decode the following frames without a key frame
+                        requestKeyFrame();
+                    }
+                }
+                break;
+            case MediaControlMessage.TYPE_GET_STATS:
+                writeStats(msg.getId());
+                break;
+            case MediaControlMessage.TYPE_SET_RENDITION:
+                if (listener != null) {
+                    listener.onRenditionRequested(msg.getRenditionScid(), msg.getEnabled());
+                }
+                break;
+            case MediaControlMessage.TYPE_REQUEST_PARAMETER_SETS:
+                writeParameterSets();
+                break;
+            default:
+                // do nothing
         }
     }
 
+    /**
+     * Return whether a key frame has been requested internally, and reset the request.
+     * <p>
+     * The request must be served by an actual key frame (flagged {@code BUFFER_FLAG_KEY_FRAME}), because the packets are dropped until
+     * then.
+     */
+    public boolean isKeyFrameRequest() {
+        return keyFrameRequest.getAndSet(false);
+    }
+
+    /**
+     * Return whether the client requested a key frame, and reset the request.
+     * <p>
+     * The client only needs a picture it can decode from, so the request may be served by an intra refresh cycle.
+     */
+    public boolean isRefreshRequest() {
+        return refreshRequest.getAndSet(false);
+    }
+
+    /**
+     * Stop the sender thread, if any.
+     */
+    public void stop() {
+        if (senderThread != null) {
+            sendQueue.stop();
+        }
+    }
+
+    public void join() throws InterruptedException {
+        if (senderThread != null) {
+            senderThread.join();
+        }
+
+        if (sendQueue != null) {
+            long dropped = sendQueue.getDroppedPackets();
+            if (dropped > 0) {
+                Ln.i(codec.getName() + " stream: " + dropped + " packets (" + sendQueue.getDroppedBytes() + " bytes) dropped due to congestion");
+            }
+        }
+    }
+
+    /**
+     * Return the number of packets dropped due to congestion (always 0 if the send queue is disabled).
+     */
+    public long getDroppedPackets() {
+        return sendQueue != null ? sendQueue.getDroppedPackets() : 0;
+    }
+
+    /**
+     * Return the number of packets waiting to be sent (always 0 if the send queue is disabled).
+     */
+    public int getQueueDepth() {
+        return sendQueue != null ? sendQueue.getDepth() : 0;
+    }
+
+    /**
+     * Return the capacity of the send queue (0 if the send queue is disabled).
+     */
+    public int getQueueCapacity() {
+        return sendQueue != null ? sendQueue.getCapacity() : 0;
+    }
+
+    /**
+     * Return the total time spent blocked in socket writes, in nanoseconds.
+     */
+    public long getSendTime() {
+        // With a mux, the time blocked in socket writes is shared by all the streams
+        return mux != null ? mux.getSendTime() : sendTime;
+    }
+
     public Codec getCodec() {
         return codec;
     }
 
+    int getScid() {
+        return scid;
+    }
+
+    /**
+     * Change the video codec of the stream (on encoder failover).
+     * <p>
+     * The client is notified by the next video reconfiguration packet, which contains the new codec id.
+     */
+    public void setCodec(Codec newCodec) {
+        assert codec.getType() == Codec.Type.VIDEO && newCodec.getType() == Codec.Type.VIDEO;
+        codec = newCodec;
+        parameterSets = new ParameterSets(newCodec);
+    }
+
     public void writeAudioHeader(int sampleBits, int sampleRate, int channels) throws IOException {
         if (sendCodecMeta) {
             ByteBuffer buffer = ByteBuffer.allocate(25);
@@ -89,25 +527,173 @@ public final class Streamer {
             buffer.putInt(sampleRate);
             buffer.putInt(channels);
             buffer.flip();
-            IO.writeFully(stream, buffer);
+            if (isReplayEnabled()) {
+                cacheCodecHeader(buffer);
+            }
+            write(buffer);
         }
     }
 
     public void writeVideoHeader(Size videoSize, int bitrate, int framerate, int gopSize) throws IOException {
+        this.bitRate = bitrate;
         if (sendCodecMeta) {
-            ByteBuffer buffer = ByteBuffer.allocate(33);
-            buffer.putInt(29);
+            ByteBuffer buffer = createVideoHeader(videoSize, bitrate, framerate, gopSize);
+            if (isReplayEnabled()) {
+                cacheCodecHeader(buffer);
+            }
+            write(buffer);
+        }
+    }
+
+    /**
+     * Notify the client that the video stream has been reconfigured (typically with a new size, after a rotation), so that it may
+     * reconfigure its decoder before the next packets.
+     * <p>
+     * The packet is versioned, and contains a sequence number incremented on every reconfiguration.
+     */
+    public void writeVideoReconfigured(Size videoSize, int bitrate, int framerate, int gopSize) throws IOException {
+        this.bitRate = bitrate;
+        ++reconfigureSequence;
+        if (sendCodecMeta) {
+            if (isReplayEnabled()) {
+                // A late consumer must receive the current configuration
+                cacheCodecHeader(createVideoHeader(videoSize, bitrate, framerate, gopSize));
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(34);
+            buffer.putInt(30);
             buffer.putInt(scid);
-            buffer.put((byte)MEDIA_STREAM_TYPE_VIDEO_METADATA);
+            buffer.put((byte) MEDIA_STREAM_TYPE_VIDEO_RECONFIGURED);
+            buffer.put((byte) VIDEO_RECONFIGURED_VERSION);
+            buffer.putInt(reconfigureSequence);
             buffer.putInt(codec.getRawId());
             buffer.putInt(bitrate);
             buffer.putInt(videoSize.getWidth());
             buffer.putInt(videoSize.getHeight());
             buffer.putInt(framerate);
-            buffer.putInt(gopSize);
             buffer.flip();
-            IO.writeFully(stream, buffer);
+            write(buffer);
+        }
+    }
+
+    private ByteBuffer createVideoHeader(Size videoSize, int bitrate, int framerate, int gopSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(33);
+        buffer.putInt(29);
+        buffer.putInt(scid);
+        buffer.put((byte)MEDIA_STREAM_TYPE_VIDEO_METADATA);
+        buffer.putInt(codec.getRawId());
+        buffer.putInt(bitrate);
+        buffer.putInt(videoSize.getWidth());
+        buffer.putInt(videoSize.getHeight());
+        buffer.putInt(framerate);
+        buffer.putInt(gopSize);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Notify the client of the area of the video frames covered by the content (typically letterboxed in a fixed canvas), which applies
+     * to the following packets.
+     */
+    public void writeVideoContentRect(Rect contentRect) throws IOException {
+        if (sendCodecMeta) {
+            ByteBuffer buffer = ByteBuffer.allocate(25);
+            buffer.putInt(21);
+            buffer.putInt(scid);
+            buffer.put((byte) MEDIA_STREAM_TYPE_VIDEO_CONTENT_RECT);
+            buffer.putInt(contentRect.left);
+            buffer.putInt(contentRect.top);
+            buffer.putInt(contentRect.width());
+            buffer.putInt(contentRect.height());
+            buffer.flip();
+            write(buffer);
+        }
+    }
+
+    /**
+     * Notify the client that the encoder bitrate changed at runtime.
+     */
+    public void writeVideoBitrate(int bitrate) throws IOException {
+        this.bitRate = bitrate;
+        if (sendCodecMeta) {
+            ByteBuffer buffer = ByteBuffer.allocate(13);
+            buffer.putInt(9);
+            buffer.putInt(scid);
+            buffer.put((byte) MEDIA_STREAM_TYPE_VIDEO_BITRATE);
+            buffer.putInt(bitrate);
+            buffer.flip();
+            write(buffer);
+        }
+    }
+
+    private void writeStats(int requestId) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(54);
+        buffer.putInt(50);
+        buffer.putInt(scid);
+        buffer.put((byte) MEDIA_STREAM_TYPE_STATS);
+        buffer.putInt(requestId);
+        buffer.putLong(packetCount);
+        buffer.putLong(byteCount);
+        buffer.putLong(getDroppedPackets());
+        buffer.putInt(getQueueDepth());
+        buffer.putInt(bitRate);
+        buffer.put((byte) (paused ? 1 : 0));
+        buffer.putInt(sendQueue != null ? sendQueue.getAverageLatencyUs() : 0);
+        buffer.putInt(sendQueue != null ? sendQueue.getMaxLatencyUs() : 0);
+        buffer.flip();
+        // A reply to a request of the client, not published to the subscribers
+        writeToClient(buffer);
+    }
+
+    /**
+     * Write a JPEG thumbnail of the capture, decodable independently of the video packets.
+     * <p>
+     * A thumbnail never waits for the send queue: if it is full, the thumbnail is dropped (the next one will replace it anyway).
+     */
+    public void writeThumbnail(Size size, long ptsUs, byte[] data) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(25);
+        header.putInt(21 + data.length);
+        header.putInt(scid);
+        header.put((byte) MEDIA_STREAM_TYPE_THUMBNAIL);
+        header.putInt(size.getWidth());
+        header.putInt(size.getHeight());
+        header.putLong(ptsUs);
+        header.flip();
+        ByteBuffer payload = ByteBuffer.wrap(data);
+
+        BroadcastHub hub = broadcastHub;
+        if (hub != null) {
+            hub.publish(this, header, payload, SendQueue.KIND_CONTROL, false, false);
+        }
+
+        if (sendQueue != null) {
+            try {
+                // Not a video frame, so that it is not dropped while the queue waits for a key frame
+                sendQueue.push(header, payload, SendQueue.KIND_CONTROL, false, false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queueing thumbnail");
+            }
+        } else {
+            send(header, payload);
+        }
+    }
+
+    /**
+     * Notify the client that no more packets will be sent on this stream (typically a video rendition whose encoder failed), while the
+     * other streams of the connection continue.
+     */
+    public void writeStreamDisabled() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(9);
+        buffer.putInt(5);
+        buffer.putInt(scid);
+        buffer.put((byte) MEDIA_STREAM_TYPE_STREAM_DISABLED);
+        buffer.flip();
+        if (isReplayEnabled()) {
+            // A late consumer must not wait for this stream
+            cacheCodecHeader(buffer);
         }
+        write(buffer);
     }
 
     public void writeDisableStream(boolean error) throws IOException {
@@ -125,25 +711,114 @@ public final class Streamer {
 
     public void writePacket(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo) throws IOException {
         boolean config = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        if (!config) {
+            if (paused) {
+                // The client is not interested in the stream for now
+                return;
+            }
+            if (waitingKeyFrame) {
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                    // The client could not decode this frame
+                    return;
+                }
+                waitingKeyFrame = false;
+            }
+        }
+
+        ++packetCount;
+        byteCount += bufferInfo.size;
+
         if (config) {
             if (codec == AudioCodec.OPUS) {
                 fixOpusConfigPacket(buffer);
             } else if (codec == AudioCodec.FLAC) {
                 fixFlacConfigPacket(buffer);
             }
+            parameterSets.update(buffer, true);
+        } else if (codec.getType() == Codec.Type.VIDEO && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            boolean inBand = parameterSets.update(buffer, false);
+            if (prependParameterSets && !inBand) {
+                writeParameterSets();
+            }
         }
 
+        ByteBuffer header = null;
         if (sendFrameMeta) {
-            writeFrameMeta(stream, bufferInfo);
+            prepareFrameMeta(bufferInfo, buffer.remaining());
+            header = headerBuffer;
+        }
+
+        BroadcastHub hub = broadcastHub;
+        int kind = sendQueue != null || hub != null ? getPacketKind(buffer, bufferInfo) : SendQueue.KIND_CONTROL;
+        if (hub != null) {
+            // Before the main stream, which consumes the buffers
+            hub.publish(this, header, buffer, kind, header != null);
+        }
+
+        if (sendQueue != null) {
+            push(header, buffer, kind, header != null);
+        } else if (header != null) {
+            send(header, buffer);
+        } else {
+            send(buffer, EMPTY_BUFFER);
+        }
+    }
+
+    private int getPacketKind(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return SendQueue.KIND_CONTROL;
+        }
+        if (codec.getType() == Codec.Type.AUDIO) {
+            // Audio packets are independent from each other
+            return SendQueue.KIND_DISPOSABLE;
+        }
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            return SendQueue.KIND_KEY_FRAME;
+        }
+        return NalUnits.isDisposableFrame(codec, buffer) ? SendQueue.KIND_DISPOSABLE : SendQueue.KIND_FRAME;
+    }
+
+    private void push(ByteBuffer header, ByteBuffer payload, int kind, boolean frame) throws IOException {
+        try {
+            int result = sendQueue.push(header, payload, kind, frame);
+            if (result == SendQueue.RESULT_DROPPED_NEED_KEY_FRAME) {
+                // The following frames are dropped until the next key frame, so request one immediately
+                requestKeyFrame();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing packet");
         }
+    }
 
-        IO.writeFully(stream, buffer);
+    private void sendLoop() {
+        try {
+            SendQueue.Packet packet;
+            while ((packet = sendQueue.take()) != null) {
+                try {
+                    int kind = packet.getKind();
+                    if (kind == SendQueue.KIND_KEY_FRAME) {
+                        sendWaitingKeyFrame = false;
+                    }
+                    if (!sendWaitingKeyFrame || (kind != SendQueue.KIND_FRAME && kind != SendQueue.KIND_DISPOSABLE)) {
+                        send(packet.getHeader(), packet.getPayload());
+                    }
+                } finally {
+                    sendQueue.release();
+                }
+            }
+        } catch (IOException e) {
+            // Broken pipe is expected on close, it will be reported by the producer on the next push
+            sendQueue.fail(e);
+        } catch (InterruptedException e) {
+            // stopped
+        }
     }
 
-    private void writeFrameMeta(OutputStream stream, MediaCodec.BufferInfo bufferInfo) throws IOException {
+    private void prepareFrameMeta(MediaCodec.BufferInfo bufferInfo, int packetSize) {
         headerBuffer.clear();
 
-        int size = bufferInfo.size + 17;
+        int size = packetSize + 17;
         boolean isVideo = codec == VideoCodec.AV1 || codec == VideoCodec.H264 || codec == VideoCodec.H265;
 
         headerBuffer.putInt(size);
@@ -152,8 +827,58 @@ public final class Streamer {
         headerBuffer.putInt(bufferInfo.flags);
         headerBuffer.putLong(bufferInfo.presentationTimeUs);
         headerBuffer.flip();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        BroadcastHub hub = broadcastHub;
+        if (hub != null) {
+            hub.publish(this, null, buffer, SendQueue.KIND_CONTROL, false);
+        }
 
-        IO.writeFully(stream, headerBuffer);
+        writeToClient(buffer);
+    }
+
+    private void writeToClient(ByteBuffer buffer) throws IOException {
+        if (sendQueue != null) {
+            // Keep the order of metadata and packets
+            push(null, buffer, SendQueue.KIND_CONTROL, false);
+        } else {
+            send(buffer, EMPTY_BUFFER);
+        }
+    }
+
+    private void send(ByteBuffer header, ByteBuffer payload) throws IOException {
+        int currentGeneration;
+        IOException failure;
+        // Synchronized, because metadata (like stats) may be written from the streamer reading thread
+        synchronized (this) {
+            currentGeneration = generation;
+            try {
+                rawSend(header, payload);
+                return;
+            } catch (IOException e) {
+                if (reconnector == null) {
+                    throw e;
+                }
+                failure = e;
+            }
+        }
+        // The packet is dropped, the client restarts from the config packets and the next key frame
+        resume(currentGeneration, failure);
+    }
+
+    private void rawSend(ByteBuffer header, ByteBuffer payload) throws IOException {
+        long start = System.nanoTime();
+        if (channel != null) {
+            // Header and payload without copying the payload (in a single syscall for a socket channel)
+            packetBuffers[0] = header;
+            packetBuffers[1] = payload;
+            IO.writeFully(channel, packetBuffers);
+        } else {
+            IO.writeFully(stream, header);
+            IO.writeFully(stream, payload);
+        }
+        sendTime += System.nanoTime() - start;
     }
 
     private static void fixOpusConfigPacket(ByteBuffer buffer) throws IOException {
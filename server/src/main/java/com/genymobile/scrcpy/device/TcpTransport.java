@@ -0,0 +1,96 @@
+package com.genymobile.scrcpy.device;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+final class TcpTransport implements Transport {
+
+    // Not exposed by OsConstants (<linux/tcp.h>)
+    private static final int TCP_NOTSENT_LOWAT = 25;
+
+    private final Socket socket;
+
+    TcpTransport(Socket socket) {
+        this.socket = socket;
+    }
+
+    static TcpTransport connect(int port, boolean useChannel, boolean tcpNoDelay, int sendBufferSize, int sendLowWaterMark) throws IOException {
+        Ln.i("connectin to " + port);
+
+        Socket socket;
+        if (useChannel) {
+            // Open the socket through a SocketChannel, so that the media streams can write the packets with a single gathering write,
+            // directly from the MediaCodec buffers (Socket.getChannel() returns null for a plain Socket)
+            socket = SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).socket();
+        } else {
+            // The streams of a channel socket share a single lock for reads and writes: a thread blocked on read() would prevent any
+            // write() from another thread. The control socket is read and written concurrently, so it must be a plain Socket.
+            socket = new Socket("127.0.0.1", port);
+        }
+        try {
+            if (tcpNoDelay) {
+                socket.setTcpNoDelay(true);
+            }
+            if (sendBufferSize > 0) {
+                socket.setSendBufferSize(sendBufferSize);
+            }
+            if (sendLowWaterMark > 0) {
+                setNotSentLowWaterMark(socket, sendLowWaterMark);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        return new TcpTransport(socket);
+    }
+
+    private static void setNotSentLowWaterMark(Socket socket, int value) throws IOException {
+        // Limit the amount of unsent data in the kernel buffer, so that the congestion is detected (and handled) by the send queue rather
+        // than hidden in the socket buffer
+        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.fromSocket(socket)) {
+            Os.setsockoptInt(pfd.getFileDescriptor(), OsConstants.IPPROTO_TCP, TCP_NOTSENT_LOWAT, value);
+        } catch (ErrnoException e) {
+            // Not supported by old kernels, this is not fatal
+            Ln.w("Could not set TCP_NOTSENT_LOWAT: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public GatheringByteChannel getChannel() {
+        return socket.getChannel();
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        socket.shutdownInput();
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.genymobile.scrcpy.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A connection to the desktop client, independent of the underlying socket type.
+ */
+public interface Transport extends Closeable {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Return a channel to write the packets without any copy, or {@code null} if the transport does not support it (the output stream must
+     * then be used).
+     */
+    GatheringByteChannel getChannel();
+
+    void shutdown() throws IOException;
+}
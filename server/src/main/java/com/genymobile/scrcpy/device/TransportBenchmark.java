@@ -0,0 +1,218 @@
+package com.genymobile.scrcpy.device;
+
+import com.genymobile.scrcpy.Options;
+import com.genymobile.scrcpy.util.IO;
+import com.genymobile.scrcpy.util.Ln;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Process;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compare the throughput and the latency of the transports on the device, through the actual {@link TcpTransport} and
+ * {@link LocalTransport} implementations.
+ * <p>
+ * The transport is connected to a peer in the same process, which reads (or echoes) everything. The packets are written like the media
+ * packets of a {@link Streamer}: through the channel of the transport if it has one, through its output stream otherwise.
+ */
+public final class TransportBenchmark {
+
+    private static final int HEADER_SIZE = 12;
+    private static final int PACKET_SIZE = 32 * 1024;
+    private static final int THROUGHPUT_PACKETS = 8_000; // ~256 MB
+    private static final int WARMUP_ROUND_TRIPS = 1_000;
+    private static final int ROUND_TRIPS = 10_000;
+
+    /**
+     * The accepted side of a transport connection.
+     */
+    private static final class Peer implements Closeable {
+        private final Closeable socket;
+        private final InputStream input;
+        private final OutputStream output;
+
+        Peer(Closeable socket, InputStream input, OutputStream output) {
+            this.socket = socket;
+            this.input = input;
+            this.output = output;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private final Options options;
+
+    private TransportBenchmark(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Benchmark all the transports (with the socket options, like {@code tcp_nodelay}, from {@code options}), and return the report.
+     */
+    public static String run(Options options) {
+        TransportBenchmark benchmark = new TransportBenchmark(options);
+        StringBuilder builder = new StringBuilder("Transport benchmark (").append(PACKET_SIZE).append("-byte packets):");
+        for (TransportType type : TransportType.values()) {
+            Ln.i("Benchmarking the " + type.getName() + " transport...");
+            builder.append("\n    --transport=").append(type.getName());
+            try {
+                float throughput = benchmark.measureThroughput(type);
+                long[] roundTrips = benchmark.measureRoundTrips(type);
+                builder.append(String.format(Locale.US, " throughput=%.0fMB/s round_trip_p50=%dus round_trip_p99=%dus", throughput,
+                        percentile(roundTrips, 50), percentile(roundTrips, 99)));
+            } catch (IOException | InterruptedException e) {
+                builder.append(" error=").append(e.getMessage());
+            }
+        }
+        return builder.toString();
+    }
+
+    private Transport connect(TransportType type, Peer[] peer) throws IOException {
+        if (type == TransportType.LOCAL) {
+            String socketName = "scrcpy_benchmark_" + Process.myPid();
+            LocalServerSocket serverSocket = new LocalServerSocket(socketName);
+            try {
+                Transport transport = LocalTransport.connect(socketName, options.getSendBufferSize());
+                LocalSocket socket = serverSocket.accept();
+                peer[0] = new Peer(socket, socket.getInputStream(), socket.getOutputStream());
+                return transport;
+            } finally {
+                serverSocket.close();
+            }
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Transport transport = TcpTransport.connect(serverSocket.getLocalPort(), true, options.getTcpNoDelay(), options.getSendBufferSize(),
+                    options.getSendLowWaterMark());
+            Socket socket = serverSocket.accept();
+            peer[0] = new Peer(socket, socket.getInputStream(), socket.getOutputStream());
+            return transport;
+        }
+    }
+
+    private static void writePacket(Transport transport, ByteBuffer[] buffers) throws IOException {
+        GatheringByteChannel channel = transport.getChannel();
+        if (channel != null) {
+            IO.writeFully(channel, buffers);
+        } else {
+            OutputStream stream = transport.getOutputStream();
+            for (ByteBuffer buffer : buffers) {
+                IO.writeFully(stream, buffer);
+            }
+        }
+    }
+
+    private static void readFully(InputStream input, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int r = input.read(buffer, offset, buffer.length - offset);
+            if (r == -1) {
+                throw new EOFException("Unexpected end of stream");
+            }
+            offset += r;
+        }
+    }
+
+    /**
+     * Return the throughput, in MB/s.
+     */
+    private float measureThroughput(TransportType type) throws IOException, InterruptedException {
+        Peer[] peer = new Peer[1];
+        try (Transport transport = connect(type, peer); Peer reader = peer[0]) {
+            long total = (long) THROUGHPUT_PACKETS * (HEADER_SIZE + PACKET_SIZE);
+            long[] received = new long[1];
+            Thread readerThread = new Thread(() -> {
+                byte[] buffer = new byte[256 * 1024];
+                try {
+                    int r;
+                    while (received[0] < total && (r = reader.input.read(buffer)) != -1) {
+                        received[0] += r;
+                    }
+                } catch (IOException e) {
+                    // the count will not match
+                }
+            }, "benchmark-reader");
+
+            // Like a MediaCodec output buffer
+            ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+            ByteBuffer payload = ByteBuffer.allocateDirect(PACKET_SIZE);
+            ByteBuffer[] buffers = {header, payload};
+
+            long start = System.nanoTime();
+            readerThread.start();
+            for (int i = 0; i < THROUGHPUT_PACKETS; ++i) {
+                header.clear();
+                payload.clear();
+                writePacket(transport, buffers);
+            }
+            readerThread.join();
+            long duration = System.nanoTime() - start;
+
+            if (received[0] != total) {
+                throw new IOException("Received " + received[0] + " bytes instead of " + total);
+            }
+            return total * 1000f / duration; // bytes/ns -> MB/s
+        }
+    }
+
+    /**
+     * Return the round trip times of a packet header, in microseconds.
+     */
+    private long[] measureRoundTrips(TransportType type) throws IOException, InterruptedException {
+        Peer[] peer = new Peer[1];
+        try (Transport transport = connect(type, peer); Peer echo = peer[0]) {
+            Thread echoThread = new Thread(() -> {
+                byte[] buffer = new byte[HEADER_SIZE];
+                try {
+                    for (int i = 0; i < WARMUP_ROUND_TRIPS + ROUND_TRIPS; ++i) {
+                        readFully(echo.input, buffer);
+                        echo.output.write(buffer);
+                    }
+                } catch (IOException e) {
+                    // the writer will fail
+                }
+            }, "benchmark-echo");
+            echoThread.start();
+
+            ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+            ByteBuffer[] buffers = {header};
+            byte[] response = new byte[HEADER_SIZE];
+            InputStream input = transport.getInputStream();
+            long[] roundTrips = new long[ROUND_TRIPS];
+            for (int i = 0; i < WARMUP_ROUND_TRIPS + ROUND_TRIPS; ++i) {
+                long start = System.nanoTime();
+                header.clear();
+                writePacket(transport, buffers);
+                readFully(input, response);
+                if (i >= WARMUP_ROUND_TRIPS) {
+                    roundTrips[i - WARMUP_ROUND_TRIPS] = (System.nanoTime() - start) / 1000;
+                }
+            }
+            echoThread.join();
+
+            Arrays.sort(roundTrips);
+            return roundTrips;
+        }
+    }
+
+    private static long percentile(long[] sortedValues, int percent) {
+        int index = (sortedValues.length - 1) * percent / 100;
+        return sortedValues[index];
+    }
+}
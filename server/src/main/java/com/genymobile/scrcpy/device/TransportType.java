@@ -0,0 +1,28 @@
+package com.genymobile.scrcpy.device;
+
+public enum TransportType {
+    /** TCP socket on localhost */
+    TCP("tcp"),
+    /** Unix domain socket in the abstract namespace (does not go through the TCP/IP stack) */
+    LOCAL("local");
+
+    private final String name;
+
+    TransportType(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static TransportType findByName(String name) {
+        for (TransportType type : TransportType.values()) {
+            if (name.equals(type.name)) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+}
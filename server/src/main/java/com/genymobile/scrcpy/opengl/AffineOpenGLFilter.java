@@ -12,7 +12,8 @@ public class AffineOpenGLFilter implements OpenGLFilter {
     private int program;
     private FloatBuffer vertexBuffer;
     private FloatBuffer texCoordsBuffer;
-    private final float[] userMatrix;
+    // May be replaced from another thread while rendering
+    private volatile float[] userMatrix;
 
     private int vertexPosLoc;
     private int texCoordsInLoc;
@@ -25,6 +26,13 @@ public class AffineOpenGLFilter implements OpenGLFilter {
         userMatrix = transform.to4x4();
     }
 
+    /**
+     * Replace the transform, applied from the next rendered frame.
+     */
+    public void setTransform(AffineMatrix transform) {
+        userMatrix = transform.to4x4();
+    }
+
     @Override
     public void init() throws OpenGLException {
         // @formatter:off
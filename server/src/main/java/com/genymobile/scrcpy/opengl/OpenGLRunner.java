@@ -15,18 +15,62 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.view.Surface;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 
 public final class OpenGLRunner {
 
+    public interface FrameListener {
+        /**
+         * Called on the OpenGL thread when a frame has been drawn, just before it is queued to the output surface.
+         *
+         * @param timestamp the presentation timestamp of the frame, in nanoseconds
+         */
+        void onFrameRendered(long timestamp);
+    }
+
+    public interface OutputErrorListener {
+        /**
+         * Called on the OpenGL thread when an additional output could not be rendered. The output is disabled.
+         */
+        void onOutputError();
+    }
+
+    /**
+     * Additional output surface, rendered from the same input, possibly at a different size and a lower rate.
+     */
+    private static final class Output {
+        private final Surface surface;
+        private final Size size;
+        private final long minFrameInterval; // in nanoseconds
+        private final OutputErrorListener errorListener;
+        private EGLSurface eglSurface;
+        private long lastTimestamp = -1;
+        private volatile boolean enabled;
+        private volatile boolean failed;
+
+        private Output(Surface surface, Size size, float maxFps, boolean enabled, OutputErrorListener errorListener) {
+            this.surface = surface;
+            this.size = size;
+            this.minFrameInterval = maxFps > 0 ? (long) (1_000_000_000 / maxFps) : 0;
+            this.enabled = enabled;
+            this.errorListener = errorListener;
+        }
+    }
+
     private static HandlerThread handlerThread;
     private static Handler handler;
     private static boolean quit;
 
     private EGLDisplay eglDisplay;
+    private EGLConfig eglConfig;
     private EGLContext eglContext;
     private EGLSurface eglSurface;
 
+    // Additional outputs (read on every frame, rarely written)
+    private final List<Output> outputs = new CopyOnWriteArrayList<>();
+
     private final OpenGLFilter filter;
     private final float[] overrideTransformMatrix;
 
@@ -36,6 +80,8 @@ public final class OpenGLRunner {
 
     private boolean stopped;
 
+    private volatile FrameListener frameListener;
+
     public OpenGLRunner(OpenGLFilter filter, float[] overrideTransformMatrix) {
         this.filter = filter;
         this.overrideTransformMatrix = overrideTransformMatrix;
@@ -77,6 +123,13 @@ public final class OpenGLRunner {
         }
     }
 
+    /**
+     * Set the listener notified whenever a frame is about to be queued to the main output surface.
+     */
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
     public Surface start(Size inputSize, Size outputSize, Surface outputSurface) throws OpenGLException {
         initOnce();
 
@@ -115,6 +168,17 @@ public final class OpenGLRunner {
         return inputSurface;
     }
 
+    /**
+     * Change the size of the input buffers (typically because the captured display has been rotated), without restarting the runner.
+     */
+    public void resizeInput(Size inputSize) {
+        handler.post(() -> {
+            if (!stopped) {
+                surfaceTexture.setDefaultBufferSize(inputSize.getWidth(), inputSize.getHeight());
+            }
+        });
+    }
+
     private void run(Size inputSize, Size outputSize, Surface outputSurface) throws OpenGLException {
         eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
         if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
@@ -143,7 +207,7 @@ public final class OpenGLRunner {
             EGL14.eglTerminate(eglDisplay);
             throw new OpenGLException("Unable to find ES2 EGL config");
         }
-        EGLConfig eglConfig = configs[0];
+        eglConfig = configs[0];
 
         // @formatter:off
         int[] contextAttribList = {
@@ -219,8 +283,119 @@ public final class OpenGLRunner {
 
         filter.draw(textureId, matrix);
 
-        EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, surfaceTexture.getTimestamp());
+        long timestamp = surfaceTexture.getTimestamp();
+        FrameListener listener = frameListener;
+        if (listener != null) {
+            // Before queuing, so that the consumer may prepare for the frame (for example, resume a suspended encoder)
+            listener.onFrameRendered(timestamp);
+        }
+
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, timestamp);
         EGL14.eglSwapBuffers(eglDisplay, eglSurface);
+
+        if (!outputs.isEmpty()) {
+            renderOutputs(matrix, timestamp);
+        }
+    }
+
+    private void renderOutputs(float[] matrix, long timestamp) {
+        boolean switched = false;
+        for (Output output : outputs) {
+            if (!output.enabled || output.failed
+                    || (output.lastTimestamp != -1 && timestamp - output.lastTimestamp < output.minFrameInterval)) {
+                continue;
+            }
+            output.lastTimestamp = timestamp;
+
+            switched = true;
+            if (!EGL14.eglMakeCurrent(eglDisplay, output.eglSurface, output.eglSurface, eglContext)) {
+                failOutput(output);
+                continue;
+            }
+            GLES20.glViewport(0, 0, output.size.getWidth(), output.size.getHeight());
+            GLUtils.checkGlError();
+            filter.draw(textureId, matrix);
+            EGLExt.eglPresentationTimeANDROID(eglDisplay, output.eglSurface, timestamp);
+            if (!EGL14.eglSwapBuffers(eglDisplay, output.eglSurface)) {
+                // Typically, the encoder of this output failed and abandoned its input surface
+                failOutput(output);
+            }
+        }
+
+        if (switched) {
+            EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext);
+        }
+    }
+
+    private static void failOutput(Output output) {
+        // Never render into this output anymore, but keep rendering into the others
+        output.failed = true;
+        output.enabled = false;
+        if (output.errorListener != null) {
+            output.errorListener.onOutputError();
+        }
+    }
+
+    /**
+     * Render the input frames into an additional surface (typically the input surface of another encoder).
+     * <p>
+     * Must be called after {@link #start(Size, Size, Surface)}.
+     *
+     * @param surface the output surface
+     * @param size the output size
+     * @param maxFps the max frame rate of this output (0 for unlimited)
+     * @param enabled {@code true} to render into this output immediately
+     * @param errorListener the listener notified if this output could not be rendered (may be {@code null})
+     */
+    public void addOutput(Surface surface, Size size, float maxFps, boolean enabled, OutputErrorListener errorListener)
+            throws OpenGLException {
+        Output output = new Output(surface, size, maxFps, enabled, errorListener);
+
+        final Semaphore sem = new Semaphore(0);
+        Throwable[] throwableRef = new Throwable[1];
+
+        handler.post(() -> {
+            try {
+                int[] surfaceAttribList = {
+                        EGL14.EGL_NONE
+                };
+                output.eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, surface, surfaceAttribList, 0);
+                if (output.eglSurface == null || output.eglSurface == EGL14.EGL_NO_SURFACE) {
+                    throw new OpenGLException("Failed to create EGL window surface for additional output");
+                }
+                outputs.add(output);
+            } catch (Throwable throwable) {
+                throwableRef[0] = throwable;
+            } finally {
+                sem.release();
+            }
+        });
+
+        try {
+            sem.acquire();
+        } catch (InterruptedException e) {
+            // Behave as if this method call was synchronous
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable throwable = throwableRef[0];
+        if (throwable != null) {
+            if (throwable instanceof OpenGLException) {
+                throw (OpenGLException) throwable;
+            }
+            throw new OpenGLException("Could not add OpenGL output", throwable);
+        }
+    }
+
+    /**
+     * Enable or disable the rendering into an additional output.
+     */
+    public void setOutputEnabled(Surface surface, boolean enabled) {
+        for (Output output : outputs) {
+            if (output.surface == surface && !output.failed) {
+                output.enabled = enabled;
+            }
+        }
     }
 
     public void stopAndRelease() {
@@ -236,6 +411,11 @@ public final class OpenGLRunner {
             GLES20.glDeleteTextures(1, textures, 0);
             GLUtils.checkGlError();
 
+            for (Output output : outputs) {
+                EGL14.eglDestroySurface(eglDisplay, output.eglSurface);
+            }
+            outputs.clear();
+
             EGL14.eglDestroySurface(eglDisplay, eglSurface);
             EGL14.eglDestroyContext(eglDisplay, eglContext);
             EGL14.eglTerminate(eglDisplay);
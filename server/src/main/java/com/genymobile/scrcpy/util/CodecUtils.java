@@ -1,13 +1,7 @@
 package com.genymobile.scrcpy.util;
 
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
 public final class CodecUtils {
 
     private CodecUtils() {
@@ -25,14 +19,4 @@ public final class CodecUtils {
             format.setString(key, (String) value);
         }
     }
-
-    public static MediaCodecInfo[] getEncoders(MediaCodecList codecs, String mimeType) {
-        List<MediaCodecInfo> result = new ArrayList<>();
-        for (MediaCodecInfo codecInfo : codecs.getCodecInfos()) {
-            if (codecInfo.isEncoder() && Arrays.asList(codecInfo.getSupportedTypes()).contains(mimeType)) {
-                result.add(codecInfo);
-            }
-        }
-        return result.toArray(new MediaCodecInfo[result.size()]);
-    }
 }
@@ -0,0 +1,368 @@
+package com.genymobile.scrcpy.util;
+
+import com.genymobile.scrcpy.AndroidVersions;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-device cache of the available encoders and their capabilities, to avoid enumerating {@link MediaCodecList} (which is slow on low-end
+ * devices) on every start.
+ * <p>
+ * The cache is stored in a small binary file, invalidated when the build fingerprint changes (for example on system update). It also
+ * records the encoders known to fail on this device, so that they are skipped when selecting a default encoder. An encoder is not
+ * considered bad anymore once it produced a frame, or after {@link #BAD_ENCODER_EXPIRATION_MS}.
+ */
+public final class EncoderCache {
+
+    private static final String FILE_PATH = "/data/local/tmp/scrcpy-encoders.bin";
+    private static final int MAGIC = 0x73456e63; // "sEnc"
+    private static final int VERSION = 3;
+
+    // A bad encoder may be selected again after this delay (the failure may have been caused by a transient device state)
+    private static final long BAD_ENCODER_EXPIRATION_MS = 24 * 60 * 60 * 1000;
+
+    private static final int FLAG_VENDOR = 1;
+    private static final int FLAG_ALIAS = 1 << 1;
+
+    public static final class Entry {
+        private final String name;
+        private final String canonicalName;
+        private final String mimeType;
+        private final int flags;
+        private final String hwType; // empty if unknown (before Android 10)
+        private final int maxWidth; // 0 for audio encoders
+        private final int maxHeight; // 0 for audio encoders
+
+        private Entry(String name, String canonicalName, String mimeType, int flags, String hwType, int maxWidth, int maxHeight) {
+            this.name = name;
+            this.canonicalName = canonicalName;
+            this.mimeType = mimeType;
+            this.flags = flags;
+            this.hwType = hwType;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getCanonicalName() {
+            return canonicalName;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public boolean isVendor() {
+            return (flags & FLAG_VENDOR) != 0;
+        }
+
+        public boolean isAlias() {
+            return (flags & FLAG_ALIAS) != 0;
+        }
+
+        public String getHwType() {
+            return hwType;
+        }
+
+        /**
+         * Return whether the video size does not exceed the maximum supported width and height, in either orientation.
+         */
+        public boolean supportsSize(int width, int height) {
+            return (width <= maxWidth && height <= maxHeight) || (height <= maxWidth && width <= maxHeight);
+        }
+    }
+
+    private static boolean persistent = true;
+    private static EncoderCache instance;
+
+    private final List<Entry> entries;
+    // Encoder name -> time when it was marked as bad (System.currentTimeMillis())
+    private final Map<String, Long> badEncoders;
+
+    private EncoderCache(List<Entry> entries, Map<String, Long> badEncoders) {
+        this.entries = entries;
+        this.badEncoders = badEncoders;
+    }
+
+    /**
+     * Enable or disable the cache file (if disabled, the encoders are enumerated on every start).
+     * <p>
+     * Must be called before the first call to {@link #get()}.
+     */
+    public static synchronized void setPersistent(boolean persistent) {
+        EncoderCache.persistent = persistent;
+    }
+
+    /**
+     * Return the cache, loaded from the file if it is valid for the current build, or built from {@link MediaCodecList} otherwise.
+     */
+    public static synchronized EncoderCache get() {
+        if (instance == null) {
+            instance = persistent ? load() : null;
+            if (instance == null) {
+                long start = System.nanoTime();
+                instance = new EncoderCache(enumerate(), new HashMap<>());
+                Ln.d("Encoders enumerated in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+                instance.save();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Return the cache if it has already been loaded, or {@code null} (to avoid enumerating the encoders just to update it).
+     */
+    public static synchronized EncoderCache getIfLoaded() {
+        return instance;
+    }
+
+    /**
+     * Return the name of the default encoder for the given mime type (the first one not known to fail), or {@code null} to let
+     * {@link android.media.MediaCodec#createEncoderByType(String)} select it.
+     * <p>
+     * If the cache is not persistent, the encoders are not enumerated just for that: no encoder may be known to fail unless the cache has
+     * already been built during this session.
+     */
+    public static String findDefaultEncoderName(String mimeType) {
+        EncoderCache cache = persistent ? get() : getIfLoaded();
+        return cache != null ? cache.findDefaultEncoder(mimeType) : null;
+    }
+
+    /**
+     * Return the cached capabilities of an encoder, or {@code null} if they are not known without enumerating the encoders (if the cache
+     * is not persistent).
+     */
+    public static Entry findCachedEncoder(String name, String mimeType) {
+        EncoderCache cache = persistent ? get() : getIfLoaded();
+        if (cache != null) {
+            for (Entry entry : cache.entries) {
+                if (entry.name.equals(name) && entry.mimeType.equals(mimeType)) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the encoders for the given mime type, in the {@link MediaCodecList} order.
+     */
+    public List<Entry> getEncoders(String mimeType) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.mimeType.equals(mimeType)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the name of the first encoder for the given mime type not known to fail, or {@code null} if there is none.
+     */
+    public synchronized String findDefaultEncoder(String mimeType) {
+        for (Entry entry : entries) {
+            if (entry.mimeType.equals(mimeType) && !isBad(entry.name)) {
+                return entry.name;
+            }
+        }
+        return null;
+    }
+
+    public synchronized boolean isBad(String encoderName) {
+        Long time = badEncoders.get(encoderName);
+        return time != null && !isExpired(time);
+    }
+
+    private static boolean isExpired(long badTime) {
+        long elapsed = System.currentTimeMillis() - badTime;
+        // A negative value means that the clock has been changed
+        return elapsed < 0 || elapsed >= BAD_ENCODER_EXPIRATION_MS;
+    }
+
+    /**
+     * Remember that the encoder does not work on this device.
+     */
+    public synchronized void markBad(String encoderName) {
+        if (badEncoders.put(encoderName, System.currentTimeMillis()) == null) {
+            Ln.w("Encoder '" + encoderName + "' marked as not working on this device");
+        }
+        save();
+    }
+
+    /**
+     * Remember that the encoder works on this device (it produced a frame).
+     */
+    public synchronized void markGood(String encoderName) {
+        if (badEncoders.remove(encoderName) != null) {
+            Ln.i("Encoder '" + encoderName + "' works again on this device");
+            save();
+        }
+    }
+
+    private static List<Entry> enumerate() {
+        List<Entry> result = new ArrayList<>();
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String mimeType : info.getSupportedTypes()) {
+                result.add(createEntry(info, mimeType));
+            }
+        }
+        return result;
+    }
+
+    private static Entry createEntry(MediaCodecInfo info, String mimeType) {
+        int flags = 0;
+        String canonicalName = info.getName();
+        String hwType = "";
+        if (Build.VERSION.SDK_INT >= AndroidVersions.API_29_ANDROID_10) {
+            if (info.isVendor()) {
+                flags |= FLAG_VENDOR;
+            }
+            if (info.isAlias()) {
+                flags |= FLAG_ALIAS;
+            }
+            canonicalName = info.getCanonicalName();
+            hwType = getHwType(info);
+        }
+
+        int maxWidth = 0;
+        int maxHeight = 0;
+        MediaCodecInfo.VideoCapabilities videoCaps = info.getCapabilitiesForType(mimeType).getVideoCapabilities();
+        if (videoCaps != null) {
+            maxWidth = videoCaps.getSupportedWidths().getUpper();
+            maxHeight = videoCaps.getSupportedHeights().getUpper();
+        }
+
+        return new Entry(info.getName(), canonicalName, mimeType, flags, hwType, maxWidth, maxHeight);
+    }
+
+    @TargetApi(AndroidVersions.API_29_ANDROID_10)
+    private static String getHwType(MediaCodecInfo info) {
+        if (info.isSoftwareOnly()) {
+            return "sw";
+        }
+        if (info.isHardwareAccelerated()) {
+            return "hw";
+        }
+        return "hybrid";
+    }
+
+    private static EncoderCache load() {
+        File file = new File(FILE_PATH);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !Build.FINGERPRINT.equals(in.readUTF())) {
+                Ln.d("Encoder cache outdated");
+                return null;
+            }
+
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                String name = in.readUTF();
+                String canonicalName = in.readUTF();
+                String mimeType = in.readUTF();
+                int flags = in.readInt();
+                String hwType = in.readUTF();
+                int maxWidth = in.readInt();
+                int maxHeight = in.readInt();
+                entries.add(new Entry(name, canonicalName, mimeType, flags, hwType, maxWidth, maxHeight));
+            }
+
+            int badCount = in.readInt();
+            Map<String, Long> badEncoders = new HashMap<>();
+            for (int i = 0; i < badCount; ++i) {
+                String name = in.readUTF();
+                long badTime = in.readLong();
+                if (!isExpired(badTime)) {
+                    badEncoders.put(name, badTime);
+                }
+            }
+
+            return new EncoderCache(Collections.unmodifiableList(entries), badEncoders);
+        } catch (IOException e) {
+            Ln.w("Could not read encoder cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void save() {
+        if (!persistent) {
+            return;
+        }
+
+        // Write to a temporary file, then rename it atomically, so that a concurrent server never reads a partial file. The temporary file
+        // name is unique, because several servers may save the cache concurrently.
+        File file = new File(FILE_PATH);
+        File tmp;
+        try {
+            tmp = File.createTempFile("scrcpy-encoders", ".tmp", file.getParentFile());
+        } catch (IOException e) {
+            Ln.w("Could not write encoder cache: " + e.getMessage());
+            return;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.name);
+                out.writeUTF(entry.canonicalName);
+                out.writeUTF(entry.mimeType);
+                out.writeInt(entry.flags);
+                out.writeUTF(entry.hwType);
+                out.writeInt(entry.maxWidth);
+                out.writeInt(entry.maxHeight);
+            }
+
+            out.writeInt(badEncoders.size());
+            for (Map.Entry<String, Long> bad : badEncoders.entrySet()) {
+                out.writeUTF(bad.getKey());
+                out.writeLong(bad.getValue());
+            }
+        } catch (IOException e) {
+            Ln.w("Could not write encoder cache: " + e.getMessage());
+            if (!tmp.delete()) {
+                Ln.w("Could not delete " + tmp);
+            }
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            Ln.w("Could not write encoder cache");
+            if (!tmp.delete()) {
+                Ln.w("Could not delete " + tmp);
+            }
+        }
+    }
+}
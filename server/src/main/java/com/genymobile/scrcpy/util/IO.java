@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.Scanner;
 
 public final class IO {
@@ -60,24 +61,40 @@ public final class IO {
         writeFully(fd, ByteBuffer.wrap(buffer, offset, len));
     }
 
+    /**
+     * Write all the remaining bytes of the buffers, in order, using gathering writes.
+     * <p>
+     * No data is copied to the Java heap: direct buffers (like MediaCodec output buffers) are passed as is to the kernel.
+     */
+    public static void writeFully(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+
+        while (remaining > 0) {
+            // In blocking mode, write() should write everything, but be defensive against partial writes
+            remaining -= channel.write(buffers);
+        }
+    }
+
     public static void writeFully(OutputStream stream, ByteBuffer from) throws IOException {
         if (stream == null || from == null || !from.hasRemaining()) {
             return;
         }
 
-        final int CHUNK_SIZE = 64 * 1024;
-        int remaining = from.remaining();
-
-        if (remaining <= CHUNK_SIZE) {
-            byte[] data = new byte[remaining];
-            from.get(data);
-            stream.write(data);
+        if (from.hasArray()) {
+            // Heap buffer: write the backing array directly, without any intermediate copy
+            int remaining = from.remaining();
+            stream.write(from.array(), from.arrayOffset() + from.position(), remaining);
+            from.position(from.position() + remaining);
         } else {
+            final int CHUNK_SIZE = 64 * 1024;
+            byte[] chunk = new byte[Math.min(from.remaining(), CHUNK_SIZE)];
             while (from.hasRemaining()) {
-                int currentChunk = Math.min(from.remaining(), CHUNK_SIZE);
-                byte[] chunk = new byte[currentChunk];
-                from.get(chunk);
-                stream.write(chunk);
+                int len = Math.min(from.remaining(), CHUNK_SIZE);
+                from.get(chunk, 0, len);
+                stream.write(chunk, 0, len);
             }
         }
 
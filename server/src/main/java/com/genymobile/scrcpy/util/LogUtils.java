@@ -1,6 +1,5 @@
 package com.genymobile.scrcpy.util;
 
-import com.genymobile.scrcpy.AndroidVersions;
 import com.genymobile.scrcpy.audio.AudioCodec;
 import com.genymobile.scrcpy.device.Device;
 import com.genymobile.scrcpy.device.DeviceApp;
@@ -11,16 +10,12 @@ import com.genymobile.scrcpy.wrappers.DisplayManager;
 import com.genymobile.scrcpy.wrappers.ServiceManager;
 
 import android.annotation.SuppressLint;
-import android.annotation.TargetApi;
 import android.graphics.Rect;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
-import android.os.Build;
 import android.util.Range;
 
 import java.util.Collections;
@@ -37,29 +32,30 @@ public final class LogUtils {
 
     private static String buildEncoderListMessage(String type, Codec[] codecs) {
         StringBuilder builder = new StringBuilder("List of ").append(type).append(" encoders:");
-        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        EncoderCache cache = EncoderCache.get();
         for (Codec codec : codecs) {
-            MediaCodecInfo[] encoders = CodecUtils.getEncoders(codecList, codec.getMimeType());
-            for (MediaCodecInfo info : encoders) {
+            for (EncoderCache.Entry encoder : cache.getEncoders(codec.getMimeType())) {
                 int lineStart = builder.length();
                 builder.append("\n    --").append(type).append("-codec=").append(codec.getName());
-                builder.append(" --").append(type).append("-encoder=").append(info.getName());
-                if (Build.VERSION.SDK_INT >= AndroidVersions.API_29_ANDROID_10) {
+                builder.append(" --").append(type).append("-encoder=").append(encoder.getName());
+                if (!encoder.getHwType().isEmpty()) {
                     int lineLength = builder.length() - lineStart;
                     final int column = 70;
                     if (lineLength < column) {
                         int padding = column - lineLength;
                         builder.append(String.format("%" + padding + "s", " "));
                     }
-                    builder.append(" (").append(getHwCodecType(info)).append(')');
-                    if (info.isVendor()) {
+                    builder.append(" (").append(encoder.getHwType()).append(')');
+                    if (encoder.isVendor()) {
                         builder.append(" [vendor]");
                     }
-                    if (info.isAlias()) {
-                        builder.append(" (alias for ").append(info.getCanonicalName()).append(')');
+                    if (encoder.isAlias()) {
+                        builder.append(" (alias for ").append(encoder.getCanonicalName()).append(')');
                     }
                 }
-
+                if (cache.isBad(encoder.getName())) {
+                    builder.append(" [not working]");
+                }
             }
         }
 
@@ -74,17 +70,6 @@ public final class LogUtils {
         return buildEncoderListMessage("audio", AudioCodec.values());
     }
 
-    @TargetApi(AndroidVersions.API_29_ANDROID_10)
-    private static String getHwCodecType(MediaCodecInfo info) {
-        if (info.isSoftwareOnly()) {
-            return "sw";
-        }
-        if (info.isHardwareAccelerated()) {
-            return "hw";
-        }
-        return "hybrid";
-    }
-
     public static String buildDisplayListMessage() {
         StringBuilder builder = new StringBuilder("List of displays:");
         DisplayManager displayManager = ServiceManager.getDisplayManager();
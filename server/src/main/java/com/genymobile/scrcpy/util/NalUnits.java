@@ -0,0 +1,61 @@
+package com.genymobile.scrcpy.util;
+
+import com.genymobile.scrcpy.video.VideoCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal inspection of Annex B (start code prefixed) H.264/H.265 packets, as produced by MediaCodec.
+ * <p>
+ * The buffer position and limit are never modified.
+ */
+public final class NalUnits {
+
+    private NalUnits() {
+        // not instantiable
+    }
+
+    /**
+     * Find the first byte of the next NAL unit (just after a start code).
+     *
+     * @return the absolute index of the NAL unit header, or -1 if there is none
+     */
+    public static int findNextNalUnit(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i + 3 < end; ++i) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Indicate whether the frame contained in the packet is not used as a reference by any other frame, so that it can be dropped without
+     * breaking the decoding of the following frames.
+     * <p>
+     * Only the first VCL NAL unit is inspected. For unsupported codecs, this always returns {@code false}.
+     */
+    public static boolean isDisposableFrame(Codec codec, ByteBuffer buffer) {
+        int end = buffer.limit();
+        int i = buffer.position();
+        while ((i = findNextNalUnit(buffer, i, end)) != -1) {
+            int header = buffer.get(i) & 0xFF;
+            if (codec == VideoCodec.H264) {
+                int type = header & 0x1F;
+                if (type >= 1 && type <= 5) {
+                    // Non-IDR slice with nal_ref_idc == 0
+                    return type == 1 && (header & 0x60) == 0;
+                }
+            } else if (codec == VideoCodec.H265) {
+                int type = (header >> 1) & 0x3F;
+                if (type < 32) {
+                    // TRAIL_N, TSA_N, STSA_N, RADL_N, RASL_N and RSV_VCL_N10/12/14 are sub-layer non-reference pictures
+                    return type <= 14 && type % 2 == 0;
+                }
+            } else {
+                return false;
+            }
+        }
+        return false;
+    }
+}
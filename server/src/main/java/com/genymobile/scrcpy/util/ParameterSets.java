@@ -0,0 +1,275 @@
+package com.genymobile.scrcpy.util;
+
+import com.genymobile.scrcpy.video.VideoCodec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cache of the latest parameter sets of a stream, so that a consumer joining in the middle of the stream may decode from the next key
+ * frame.
+ * <p>
+ * For H.264 and H.265, the parameter set NAL units (VPS, SPS, PPS) are extracted from the config packets and from the key frames (some
+ * encoders repeat or update them in-band). For the other codecs (AV1, audio codecs), the last config packet is cached as is.
+ * <p>
+ * The parameter sets are kept by id, since a stream may refer to several parameter sets of the same type (for example two PPS): an in-band
+ * parameter set only replaces the one with the same id. A config packet describes all the parameter sets of the stream, so it replaces the
+ * whole cache.
+ */
+public final class ParameterSets {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    // Returned by getSlot() for a VCL NAL unit (no parameter set may follow in the same access unit)
+    private static final int SLOT_VCL = -2;
+    private static final int SLOT_NONE = -1;
+
+    private final Codec codec;
+    // Maximum number of bytes (after removing the emulation prevention bytes) inspected to read the id of a parameter set
+    private static final int MAX_ID_BYTES = 128;
+
+    // H.264: SPS, PPS; H.265: VPS, SPS, PPS (each one indexed by the id of its parameter sets)
+    private final List<Map<Integer, byte[]>> nalUnits = new ArrayList<>();
+    // Whole config packet, if the parameter sets could not be extracted
+    private byte[] config;
+
+    public ParameterSets(Codec codec) {
+        this.codec = codec;
+        for (int i = 0; i < 3; ++i) {
+            nalUnits.add(new TreeMap<>());
+        }
+    }
+
+    private boolean isAnnexB() {
+        return codec == VideoCodec.H264 || codec == VideoCodec.H265;
+    }
+
+    /**
+     * Update the cache from a config packet or a key frame.
+     * <p>
+     * The buffer position and limit are not modified.
+     *
+     * @return {@code true} if the packet contains parameter sets
+     */
+    public synchronized boolean update(ByteBuffer buffer, boolean configPacket) {
+        if (isAnnexB()) {
+            int end = buffer.limit();
+            List<byte[]> found = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            // AUD and SEI NAL units may precede the parameter sets, only a slice ends the search
+            int i = NalUnits.findNextNalUnit(buffer, buffer.position(), end);
+            while (i != -1) {
+                int next = NalUnits.findNextNalUnit(buffer, i, end);
+                int slot = getSlot(buffer.get(i) & 0xFF);
+                if (slot == SLOT_VCL) {
+                    break;
+                }
+                if (slot != SLOT_NONE) {
+                    int nalEnd = next == -1 ? end : getStartCodeIndex(buffer, i, next);
+                    found.add(toArray(buffer, i, nalEnd));
+                    slots.add(slot);
+                }
+                i = next;
+            }
+
+            if (!found.isEmpty()) {
+                if (configPacket) {
+                    clear();
+                }
+                for (int j = 0; j < found.size(); ++j) {
+                    byte[] nalUnit = found.get(j);
+                    int slot = slots.get(j);
+                    nalUnits.get(slot).put(getParameterSetId(slot, nalUnit), nalUnit);
+                }
+                return true;
+            }
+
+            if (!configPacket) {
+                return false;
+            }
+        }
+
+        if (configPacket) {
+            clear();
+            config = toArray(buffer, buffer.position(), buffer.limit());
+            return true;
+        }
+
+        return false;
+    }
+
+    private void clear() {
+        for (Map<Integer, byte[]> map : nalUnits) {
+            map.clear();
+        }
+        config = null;
+    }
+
+    /**
+     * Return the cached parameter sets (in Annex B format for H.264 and H.265), or {@code null} if none has been received yet.
+     */
+    public synchronized ByteBuffer get() {
+        int size = 0;
+        for (Map<Integer, byte[]> map : nalUnits) {
+            for (byte[] nalUnit : map.values()) {
+                size += START_CODE.length + nalUnit.length;
+            }
+        }
+
+        if (size == 0) {
+            return config != null ? ByteBuffer.wrap(config) : null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Map<Integer, byte[]> map : nalUnits) {
+            for (byte[] nalUnit : map.values()) {
+                buffer.put(START_CODE);
+                buffer.put(nalUnit);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private int getSlot(int nalHeader) {
+        if (codec == VideoCodec.H264) {
+            int type = nalHeader & 0x1F;
+            if (type >= 1 && type <= 5) {
+                return SLOT_VCL;
+            }
+            if (type == 7) {
+                return 0; // SPS
+            }
+            if (type == 8) {
+                return 1; // PPS
+            }
+        } else {
+            int type = (nalHeader >> 1) & 0x3F;
+            if (type < 32) {
+                return SLOT_VCL;
+            }
+            if (type <= 34) {
+                return type - 32; // VPS, SPS, PPS
+            }
+        }
+        return SLOT_NONE;
+    }
+
+    /**
+     * Read the id of a parameter set NAL unit.
+     * <p>
+     * If it could not be read (truncated NAL unit), 0 is returned, so that the parameter set replaces the usual single one.
+     */
+    private int getParameterSetId(int slot, byte[] nalUnit) {
+        BitReader reader = new BitReader(nalUnit);
+        if (codec == VideoCodec.H264) {
+            reader.skip(8); // NAL unit header
+            if (slot == 0) {
+                reader.skip(24); // profile_idc, constraint flags, level_idc
+            }
+            return reader.readUnsignedExpGolomb();
+        }
+
+        reader.skip(16); // NAL unit header
+        if (slot == 0) {
+            return reader.read(4); // vps_video_parameter_set_id
+        }
+        if (slot == 1) {
+            reader.skip(4); // sps_video_parameter_set_id
+            int maxSubLayersMinus1 = reader.read(3);
+            reader.skip(1); // sps_temporal_id_nesting_flag
+            skipProfileTierLevel(reader, maxSubLayersMinus1);
+        }
+        return reader.readUnsignedExpGolomb();
+    }
+
+    private static void skipProfileTierLevel(BitReader reader, int maxSubLayersMinus1) {
+        reader.skip(88 + 8); // general profile and level
+        boolean[] profilePresent = new boolean[maxSubLayersMinus1];
+        boolean[] levelPresent = new boolean[maxSubLayersMinus1];
+        for (int i = 0; i < maxSubLayersMinus1; ++i) {
+            profilePresent[i] = reader.read(1) != 0;
+            levelPresent[i] = reader.read(1) != 0;
+        }
+        if (maxSubLayersMinus1 > 0) {
+            reader.skip(2 * (8 - maxSubLayersMinus1)); // reserved_zero_2bits
+        }
+        for (int i = 0; i < maxSubLayersMinus1; ++i) {
+            reader.skip((profilePresent[i] ? 88 : 0) + (levelPresent[i] ? 8 : 0));
+        }
+    }
+
+    /**
+     * Read the first bits of a NAL unit, without its emulation prevention bytes.
+     * <p>
+     * Reading past the end returns zero bits, so that a truncated parameter set gets the id 0.
+     */
+    private static final class BitReader {
+        private final byte[] data;
+        private final int size;
+        private int bitIndex;
+
+        private BitReader(byte[] nalUnit) {
+            data = new byte[Math.min(nalUnit.length, MAX_ID_BYTES)];
+            int n = 0;
+            int zeros = 0;
+            for (int i = 0; i < nalUnit.length && n < data.length; ++i) {
+                byte b = nalUnit[i];
+                if (zeros >= 2 && b == 3) {
+                    // emulation_prevention_three_byte
+                    zeros = 0;
+                    continue;
+                }
+                zeros = b == 0 ? zeros + 1 : 0;
+                data[n++] = b;
+            }
+            size = n;
+        }
+
+        private void skip(int bits) {
+            bitIndex += bits;
+        }
+
+        private int read(int bits) {
+            int value = 0;
+            for (int i = 0; i < bits; ++i) {
+                int byteIndex = bitIndex >> 3;
+                int bit = byteIndex < size ? (data[byteIndex] >> (7 - (bitIndex & 7))) & 1 : 0;
+                value = (value << 1) | bit;
+                ++bitIndex;
+            }
+            return value;
+        }
+
+        private int readUnsignedExpGolomb() {
+            int leadingZeros = 0;
+            while (read(1) == 0) {
+                if (++leadingZeros >= 31 || bitIndex >= size * 8) {
+                    return 0;
+                }
+            }
+            return (1 << leadingZeros) - 1 + read(leadingZeros);
+        }
+    }
+
+    private static int getStartCodeIndex(ByteBuffer buffer, int from, int nalUnitIndex) {
+        // nalUnitIndex is just after a 3-byte start code, which may be preceded by a zero byte (4-byte start code)
+        int index = nalUnitIndex - 3;
+        if (index > from && buffer.get(index - 1) == 0) {
+            --index;
+        }
+        return index;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer, int from, int to) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        byte[] data = new byte[to - from];
+        slice.get(data);
+        return data;
+    }
+}
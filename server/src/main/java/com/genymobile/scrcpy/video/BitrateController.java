@@ -0,0 +1,97 @@
+package com.genymobile.scrcpy.video;
+
+/**
+ * Adapt the video bitrate to the network congestion (AIMD: additive increase, multiplicative decrease).
+ * <p>
+ * The congestion is estimated periodically from the send queue depth, the dropped packets and the time spent blocked in socket writes.
+ */
+public final class BitrateController {
+
+    private static final long SAMPLE_PERIOD_NS = 500_000_000; // 500ms
+    private static final long INCREASE_DELAY_NS = 2_000_000_000; // 2s without congestion before increasing
+    // Congested if the socket write calls were blocking for more than this ratio of the time
+    private static final float MAX_SEND_BUSY_RATIO = 0.5f;
+    private static final float DECREASE_FACTOR = 0.75f;
+    private static final int INCREASE_STEPS = 20; // number of steps to go from min to max
+
+    private final int minBitRate;
+    private final int maxBitRate;
+    private final int increaseStep;
+
+    private int bitRate;
+
+    private long lastSampleTime = -1;
+    private long lastSendTime;
+    private long lastDropped;
+    private long lastCongestionTime;
+
+    public BitrateController(int initialBitRate, int minBitRate, int maxBitRate) {
+        assert minBitRate > 0 && minBitRate <= maxBitRate;
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+        this.bitRate = Math.max(minBitRate, Math.min(maxBitRate, initialBitRate));
+        this.increaseStep = Math.max(1, (maxBitRate - minBitRate) / INCREASE_STEPS);
+    }
+
+    public synchronized int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * Force the current bitrate (typically on client request), within the allowed range.
+     *
+     * @return the bitrate actually set
+     */
+    public synchronized int setBitRate(int newBitRate) {
+        bitRate = Math.max(minBitRate, Math.min(maxBitRate, newBitRate));
+        return bitRate;
+    }
+
+    /**
+     * Update the controller with the current stream state.
+     *
+     * @param now the current time, in nanoseconds
+     * @param queueDepth the number of packets waiting to be sent
+     * @param queueCapacity the capacity of the send queue (0 if there is no queue)
+     * @param sendTime the total time spent in socket writes since the beginning of the stream, in nanoseconds
+     * @param dropped the total number of packets dropped since the beginning of the stream
+     * @return the new bitrate if it must be changed, or 0 otherwise
+     */
+    public synchronized int update(long now, int queueDepth, int queueCapacity, long sendTime, long dropped) {
+        if (lastSampleTime == -1) {
+            lastSampleTime = now;
+            lastSendTime = sendTime;
+            lastDropped = dropped;
+            lastCongestionTime = now;
+            return 0;
+        }
+
+        long elapsed = now - lastSampleTime;
+        if (elapsed < SAMPLE_PERIOD_NS) {
+            return 0;
+        }
+
+        float sendBusyRatio = (float) (sendTime - lastSendTime) / elapsed;
+        boolean queueCongested = queueCapacity > 0 && queueDepth * 2 > queueCapacity;
+        boolean congested = dropped > lastDropped || queueCongested || sendBusyRatio > MAX_SEND_BUSY_RATIO;
+
+        lastSampleTime = now;
+        lastSendTime = sendTime;
+        lastDropped = dropped;
+
+        int newBitRate = bitRate;
+        if (congested) {
+            lastCongestionTime = now;
+            newBitRate = Math.max(minBitRate, (int) (bitRate * DECREASE_FACTOR));
+        } else if (now - lastCongestionTime >= INCREASE_DELAY_NS) {
+            newBitRate = Math.min(maxBitRate, bitRate + increaseStep);
+        }
+
+        if (newBitRate == bitRate) {
+            return 0;
+        }
+
+        bitRate = newBitRate;
+        return newBitRate;
+    }
+}
@@ -258,6 +258,7 @@ public class CameraCapture extends SurfaceCapture {
             // The transform matrix returned by SurfaceTexture is incorrect for camera capture (it often contains an additional unexpected 90°
             // rotation). Use a vertical flip transform matrix instead.
             glRunner = new OpenGLRunner(glFilter, VFLIP_MATRIX);
+            glRunner.setFrameListener(getFrameListener());
             surface = glRunner.start(captureSize, videoSize, surface);
         }
 
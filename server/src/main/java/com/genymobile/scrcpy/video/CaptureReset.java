@@ -11,12 +11,27 @@ public class CaptureReset implements SurfaceCapture.CaptureListener {
     // Current instance of MediaCodec to "interrupt" on reset
     private MediaCodec runningMediaCodec;
 
+    // Time of the first reset request not consumed yet (0 if none)
+    private long requestTime;
+
     public boolean consumeReset() {
         return reset.getAndSet(false);
     }
 
+    /**
+     * Return the time (in nanoseconds) of the first reset request since the last call, or 0 if there was none.
+     */
+    public synchronized long consumeRequestTime() {
+        long time = requestTime;
+        requestTime = 0;
+        return time;
+    }
+
     public synchronized void reset() {
         reset.set(true);
+        if (requestTime == 0) {
+            requestTime = System.nanoTime();
+        }
         if (runningMediaCodec != null) {
             try {
                 runningMediaCodec.signalEndOfInputStream();
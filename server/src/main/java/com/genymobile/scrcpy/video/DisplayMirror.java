@@ -0,0 +1,56 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.device.DisplayInfo;
+import com.genymobile.scrcpy.device.Size;
+import com.genymobile.scrcpy.util.Ln;
+import com.genymobile.scrcpy.wrappers.ServiceManager;
+import com.genymobile.scrcpy.wrappers.SurfaceControl;
+
+import android.hardware.display.VirtualDisplay;
+import android.os.IBinder;
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * A display mirroring an existing display into a surface, for captures which do not go through the video encoder.
+ * <p>
+ * Like {@link ScreenCapture}, it uses the DisplayManager API, or the SurfaceControl API as a fallback.
+ */
+final class DisplayMirror {
+
+    private final VirtualDisplay virtualDisplay;
+    private final IBinder display;
+
+    private DisplayMirror(VirtualDisplay virtualDisplay, IBinder display) {
+        this.virtualDisplay = virtualDisplay;
+        this.display = display;
+    }
+
+    static DisplayMirror create(String name, int displayId, DisplayInfo displayInfo, Size size, Surface surface) throws IOException {
+        try {
+            VirtualDisplay virtualDisplay = ServiceManager.getDisplayManager()
+                    .createVirtualDisplay(name, size.getWidth(), size.getHeight(), displayId, surface);
+            return new DisplayMirror(virtualDisplay, null);
+        } catch (Exception displayManagerException) {
+            try {
+                IBinder display = ScreenCapture.createDisplay();
+                ScreenCapture.setDisplaySurface(display, surface, displayInfo.getSize().toRect(), size.toRect(), displayInfo.getLayerStack());
+                return new DisplayMirror(null, display);
+            } catch (Exception surfaceControlException) {
+                Ln.e("Could not create display using DisplayManager", displayManagerException);
+                Ln.e("Could not create display using SurfaceControl", surfaceControlException);
+                throw new IOException("Could not create display");
+            }
+        }
+    }
+
+    void release() {
+        if (virtualDisplay != null) {
+            virtualDisplay.release();
+        }
+        if (display != null) {
+            SurfaceControl.destroyDisplay(display);
+        }
+    }
+}
@@ -38,6 +38,21 @@ public class DisplaySizeMonitor {
 
     private Listener listener;
 
+    // Delay without any display event before checking the display size, 0 to check on every event
+    private final int settleDelay; // ms
+    private InvalidationCoalescer coalescer;
+    // Size at the last event of the current settle window (guarded by this), to count the events which would have caused a reset without
+    // coalescing
+    private Size lastEventSize;
+
+    public DisplaySizeMonitor() {
+        this(0);
+    }
+
+    public DisplaySizeMonitor(int settleDelay) {
+        this.settleDelay = settleDelay;
+    }
+
     public void start(int displayId, Listener listener) {
         // Once started, the listener and the displayId must never change
         assert listener != null;
@@ -46,17 +61,24 @@ public class DisplaySizeMonitor {
         assert this.displayId == Device.DISPLAY_ID_NONE;
         this.displayId = displayId;
 
-        if (USE_DEFAULT_METHOD) {
+        Handler handler = null;
+        if (USE_DEFAULT_METHOD || settleDelay > 0) {
             handlerThread = new HandlerThread("DisplayListener");
             handlerThread.start();
-            Handler handler = new Handler(handlerThread.getLooper());
+            handler = new Handler(handlerThread.getLooper());
+        }
+        if (settleDelay > 0) {
+            coalescer = new InvalidationCoalescer(handler, settleDelay, this::onSettled);
+        }
+
+        if (USE_DEFAULT_METHOD) {
             displayListenerHandle = ServiceManager.getDisplayManager().registerDisplayListener(eventDisplayId -> {
                 if (Ln.isEnabled(Ln.Level.VERBOSE)) {
                     Ln.v("DisplaySizeMonitor: onDisplayChanged(" + eventDisplayId + ")");
                 }
 
                 if (eventDisplayId == displayId) {
-                    checkDisplaySizeChanged();
+                    onDisplayEvent();
                 }
             }, handler);
         } else {
@@ -68,7 +90,7 @@ public class DisplaySizeMonitor {
                     }
 
                     if (eventDisplayId == displayId) {
-                        checkDisplaySizeChanged();
+                        onDisplayEvent();
                     }
                 }
             };
@@ -89,13 +111,49 @@ public class DisplaySizeMonitor {
                 ServiceManager.getDisplayManager().unregisterDisplayListener(displayListenerHandle);
                 displayListenerHandle = null;
             }
-
-            if (handlerThread != null) {
-                handlerThread.quitSafely();
-            }
         } else if (displayWindowListener != null) {
             ServiceManager.getWindowManager().unregisterDisplayWindowListener(displayWindowListener);
         }
+
+        if (coalescer != null) {
+            coalescer.cancel();
+            long suppressed = coalescer.getSuppressedCount();
+            if (suppressed > 0) {
+                Ln.i("Display " + displayId + ": " + suppressed + " capture resets suppressed by coalescing");
+            }
+        }
+        if (handlerThread != null) {
+            handlerThread.quitSafely();
+        }
+    }
+
+    private void onDisplayEvent() {
+        if (coalescer != null) {
+            // Check the final size once the events have settled
+            coalescer.invalidate(wouldReset());
+        } else {
+            checkDisplaySizeChanged();
+        }
+    }
+
+    /**
+     * Return whether the current event would have caused a reset without coalescing, that is if the display size differs from the size
+     * at the previous event of the window (or from the session size for the first one).
+     */
+    private synchronized boolean wouldReset() {
+        DisplayInfo di = ServiceManager.getDisplayManager().getDisplayInfo(displayId);
+        Size size = di != null ? di.getSize() : null;
+        Size previousSize = lastEventSize != null ? lastEventSize : sessionDisplaySize;
+        lastEventSize = size;
+        // An unknown size always causes a reset
+        return size == null || !size.equals(previousSize);
+    }
+
+    private boolean onSettled() {
+        synchronized (this) {
+            lastEventSize = null;
+        }
+        return checkDisplaySizeChanged();
     }
 
     private synchronized Size getSessionDisplaySize() {
@@ -106,7 +164,7 @@ public class DisplaySizeMonitor {
         this.sessionDisplaySize = sessionDisplaySize;
     }
 
-    private void checkDisplaySizeChanged() {
+    private boolean checkDisplaySizeChanged() {
         DisplayInfo di = ServiceManager.getDisplayManager().getDisplayInfo(displayId);
         if (di == null) {
             Ln.w("DisplayInfo for " + displayId + " cannot be retrieved");
@@ -116,26 +174,31 @@ public class DisplaySizeMonitor {
             }
             setSessionDisplaySize(null);
             listener.onDisplaySizeChanged();
-        } else {
-            Size size = di.getSize();
+            return true;
+        }
 
-            // The field is hidden on purpose, to read it with synchronization
-            @SuppressWarnings("checkstyle:HiddenField")
-            Size sessionDisplaySize = getSessionDisplaySize(); // synchronized
+        Size size = di.getSize();
 
-            // .equals() also works if sessionDisplaySize == null
-            if (!size.equals(sessionDisplaySize)) {
-                // Reset only if the size is different
-                if (Ln.isEnabled(Ln.Level.VERBOSE)) {
-                    Ln.v("DisplaySizeMonitor: requestReset(): " + sessionDisplaySize + " -> " + size);
-                }
-                // Set the new size immediately, so that a future onDisplayChanged() event called before the asynchronous prepare()
-                // considers that the current size is the requested size (to avoid a duplicate requestReset())
-                setSessionDisplaySize(size);
-                listener.onDisplaySizeChanged();
-            } else if (Ln.isEnabled(Ln.Level.VERBOSE)) {
-                Ln.v("DisplaySizeMonitor: Size not changed (" + size + "): do not requestReset()");
+        // The field is hidden on purpose, to read it with synchronization
+        @SuppressWarnings("checkstyle:HiddenField")
+        Size sessionDisplaySize = getSessionDisplaySize(); // synchronized
+
+        // .equals() also works if sessionDisplaySize == null
+        if (!size.equals(sessionDisplaySize)) {
+            // Reset only if the size is different
+            if (Ln.isEnabled(Ln.Level.VERBOSE)) {
+                Ln.v("DisplaySizeMonitor: requestReset(): " + sessionDisplaySize + " -> " + size);
             }
+            // Set the new size immediately, so that a future onDisplayChanged() event called before the asynchronous prepare()
+            // considers that the current size is the requested size (to avoid a duplicate requestReset())
+            setSessionDisplaySize(size);
+            listener.onDisplaySizeChanged();
+            return true;
+        }
+
+        if (Ln.isEnabled(Ln.Level.VERBOSE)) {
+            Ln.v("DisplaySizeMonitor: Size not changed (" + size + "): do not requestReset()");
         }
+        return false;
     }
 }
@@ -0,0 +1,246 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.AndroidVersions;
+import com.genymobile.scrcpy.device.Size;
+import com.genymobile.scrcpy.opengl.AffineOpenGLFilter;
+import com.genymobile.scrcpy.opengl.OpenGLException;
+import com.genymobile.scrcpy.opengl.OpenGLRunner;
+import com.genymobile.scrcpy.util.AffineMatrix;
+import com.genymobile.scrcpy.util.EncoderCache;
+import com.genymobile.scrcpy.util.Ln;
+
+import android.annotation.TargetApi;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Run every available video encoder against a synthetic moving test pattern, at several sizes and bitrates.
+ * <p>
+ * The test pattern is drawn into the input of an {@link OpenGLRunner}, which renders it to the encoder input surface, like a capture with a
+ * video filter.
+ */
+public final class EncoderBenchmark {
+
+    private static final Size[] SIZES = {new Size(1920, 1080), new Size(1280, 720)};
+    private static final int[] BIT_RATES = {4_000_000, 8_000_000};
+    private static final int FPS = 60;
+    private static final long TRIAL_DURATION_NS = 3_000_000_000L; // 3s
+    private static final long DRAIN_TIMEOUT_US = 100_000; // 100ms
+    private static final long END_OF_STREAM_TIMEOUT_MS = 2000;
+
+    private final Paint paint = new Paint();
+
+    private EncoderBenchmark() {
+        // use run()
+    }
+
+    /**
+     * Benchmark all the video encoders, and return the machine-readable report.
+     */
+    public static String run() {
+        EncoderBenchmark benchmark = new EncoderBenchmark();
+        List<EncoderBenchmarkResult> results = new ArrayList<>();
+        for (VideoCodec codec : VideoCodec.values()) {
+            for (EncoderCache.Entry encoder : EncoderCache.get().getEncoders(codec.getMimeType())) {
+                for (Size size : SIZES) {
+                    for (int bitRate : BIT_RATES) {
+                        Ln.i("Benchmarking " + encoder.getName() + " at " + size + ", " + bitRate + " bps...");
+                        EncoderBenchmarkResult result = new EncoderBenchmarkResult(codec.getName(), encoder.getName(), size.getWidth(),
+                                size.getHeight(), bitRate, FPS);
+                        benchmark.runTrial(codec, encoder.getName(), size, bitRate, result);
+                        results.add(result);
+                    }
+                }
+            }
+        }
+
+        OpenGLRunner.quit();
+        return EncoderBenchmarkResult.formatReport(results);
+    }
+
+    private void runTrial(VideoCodec codec, String encoderName, Size size, int bitRate, EncoderBenchmarkResult result) {
+        MediaCodec mediaCodec;
+        try {
+            mediaCodec = MediaCodec.createByCodecName(encoderName);
+        } catch (IOException | IllegalArgumentException e) {
+            result.setConfigError(e.getMessage());
+            return;
+        }
+
+        Surface encoderSurface = null;
+        OpenGLRunner glRunner = null;
+        boolean started = false;
+        try {
+            MediaFormat format = new MediaFormat();
+            format.setString(MediaFormat.KEY_MIME, codec.getMimeType());
+            format.setInteger(MediaFormat.KEY_WIDTH, size.getWidth());
+            format.setInteger(MediaFormat.KEY_HEIGHT, size.getHeight());
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, FPS);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+
+            try {
+                mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                encoderSurface = mediaCodec.createInputSurface();
+                glRunner = new OpenGLRunner(new AffineOpenGLFilter(AffineMatrix.IDENTITY));
+                Surface patternSurface = glRunner.start(size, size, encoderSurface);
+                mediaCodec.start();
+                started = true;
+
+                runFrames(mediaCodec, patternSurface, size, result);
+            } catch (IllegalStateException | IllegalArgumentException | OpenGLException e) {
+                if (!started) {
+                    result.setConfigError(e.getClass().getSimpleName() + ": " + e.getMessage());
+                } else {
+                    Ln.w("Encoder " + encoderName + " failed during the benchmark: " + e.getMessage());
+                    result.setRuntimeError(e.getClass().getSimpleName() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            if (started) {
+                try {
+                    mediaCodec.stop();
+                } catch (IllegalStateException e) {
+                    // ignore
+                }
+            }
+            if (glRunner != null) {
+                glRunner.stopAndRelease();
+            }
+            mediaCodec.release();
+            if (encoderSurface != null) {
+                encoderSurface.release();
+            }
+        }
+    }
+
+    private void runFrames(MediaCodec mediaCodec, Surface patternSurface, Size size, EncoderBenchmarkResult result) {
+        String[] drainError = new String[1];
+        Thread drainThread = new Thread(() -> drainError[0] = drain(mediaCodec, result), "benchmark-drain");
+        drainThread.start();
+
+        long frameInterval = 1_000_000_000L / FPS;
+        long start = System.nanoTime();
+        long next = start;
+        int index = 0;
+        while (next - start < TRIAL_DURATION_NS) {
+            drawPattern(patternSurface, size, index++);
+            next += frameInterval;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                SystemClock.sleep(sleep / 1_000_000);
+            }
+        }
+
+        mediaCodec.signalEndOfInputStream();
+        String error = null;
+        try {
+            drainThread.join(END_OF_STREAM_TIMEOUT_MS);
+            if (drainThread.isAlive()) {
+                // The encoder never signaled the end of stream: stop it, so that the drain thread fails to dequeue and terminates
+                error = "no end of stream after " + END_OF_STREAM_TIMEOUT_MS + "ms";
+                try {
+                    mediaCodec.stop();
+                } catch (IllegalStateException e) {
+                    // ignore
+                }
+                drainThread.join(END_OF_STREAM_TIMEOUT_MS);
+                if (drainThread.isAlive()) {
+                    // Do not wait forever for a stuck encoder, continue with the next trial
+                    Ln.w("Benchmark drain thread did not terminate");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        result.setDuration(System.nanoTime() - start);
+
+        if (error == null) {
+            error = drainError[0];
+        }
+        if (error != null) {
+            result.setRuntimeError(error);
+        }
+    }
+
+    /**
+     * Drain the encoder output until the end of stream.
+     *
+     * @return the error, or {@code null} if the end of stream has been reached
+     */
+    private static String drain(MediaCodec mediaCodec, EncoderBenchmarkResult result) {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        try {
+            while (true) {
+                int outputBufferId = mediaCodec.dequeueOutputBuffer(bufferInfo, DRAIN_TIMEOUT_US);
+                if (outputBufferId < 0) {
+                    continue;
+                }
+
+                boolean eos = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (!isConfig && bufferInfo.size > 0) {
+                    // The presentation time is the SurfaceTexture timestamp of the pattern frame (monotonic clock)
+                    long latency = System.nanoTime() - bufferInfo.presentationTimeUs * 1000;
+                    result.addFrame(bufferInfo.size, latency);
+                }
+                mediaCodec.releaseOutputBuffer(outputBufferId, false);
+                if (eos) {
+                    return null;
+                }
+            }
+        } catch (IllegalStateException e) {
+            Ln.w("Benchmark drain error: " + e.getMessage());
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+
+    private void drawPattern(Surface surface, Size size, int index) {
+        int width = size.getWidth();
+        int height = size.getHeight();
+        Canvas canvas = lockCanvas(surface);
+        try {
+            // Slowly changing background, with vertical bars and a square moving across the whole frame
+            canvas.drawColor(Color.HSVToColor(new float[] {index % 360, 0.5f, 0.5f}));
+
+            int barWidth = width / 16;
+            for (int i = 0; i < 16; i += 2) {
+                paint.setColor(Color.HSVToColor(new float[] {(i * 22 + index * 3) % 360, 1, 1}));
+                int x = (i * barWidth + index * 4) % width;
+                canvas.drawRect(x, 0, x + barWidth, height, paint);
+            }
+
+            int squareSize = height / 4;
+            int x = (index * 8) % (width - squareSize);
+            int y = (index * 5) % (height - squareSize);
+            paint.setColor(Color.WHITE);
+            canvas.drawRect(x, y, x + squareSize, y + squareSize, paint);
+        } finally {
+            surface.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    private static Canvas lockCanvas(Surface surface) {
+        if (Build.VERSION.SDK_INT >= AndroidVersions.API_23_ANDROID_6_0) {
+            return lockHardwareCanvas(surface);
+        }
+        return surface.lockCanvas(null);
+    }
+
+    @TargetApi(AndroidVersions.API_23_ANDROID_6_0)
+    private static Canvas lockHardwareCanvas(Surface surface) {
+        return surface.lockHardwareCanvas();
+    }
+}
@@ -0,0 +1,233 @@
+package com.genymobile.scrcpy.video;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measurements of a single encoder benchmark trial (one encoder, one size, one bitrate), and the report of a whole benchmark.
+ * <p>
+ * This class does not depend on the Android framework, so that the scoring and the report format do not depend on a real encoder.
+ */
+public final class EncoderBenchmarkResult {
+
+    private final String codecName;
+    private final String encoderName;
+    private final int width;
+    private final int height;
+    private final int targetBitRate;
+    private final float targetFps;
+
+    private String configError;
+    private String runtimeError;
+
+    private long durationNs;
+    private long totalBytes;
+    private long[] latencies = new long[64]; // in nanoseconds
+    private int frameCount;
+    private boolean sorted;
+
+    public EncoderBenchmarkResult(String codecName, String encoderName, int width, int height, int targetBitRate, float targetFps) {
+        this.codecName = codecName;
+        this.encoderName = encoderName;
+        this.width = width;
+        this.height = height;
+        this.targetBitRate = targetBitRate;
+        this.targetFps = targetFps;
+    }
+
+    public String getCodecName() {
+        return codecName;
+    }
+
+    public String getEncoderName() {
+        return encoderName;
+    }
+
+    /**
+     * Record that the encoder could not be configured (or started) for this trial.
+     */
+    public void setConfigError(String configError) {
+        this.configError = configError;
+    }
+
+    public boolean isConfigFailed() {
+        return configError != null;
+    }
+
+    /**
+     * Record that the encoder failed (or stalled) after it has been started.
+     */
+    public void setRuntimeError(String runtimeError) {
+        this.runtimeError = runtimeError;
+    }
+
+    public boolean isFailed() {
+        return configError != null || runtimeError != null;
+    }
+
+    /**
+     * Record an encoded frame.
+     *
+     * @param size the size of the encoded packet, in bytes
+     * @param latency the delay between the rendering of the input frame and the availability of the encoded packet, in nanoseconds
+     */
+    public void addFrame(int size, long latency) {
+        if (frameCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, frameCount * 2);
+        }
+        latencies[frameCount++] = latency;
+        totalBytes += size;
+        sorted = false;
+    }
+
+    public void setDuration(long durationNs) {
+        this.durationNs = durationNs;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public float getFps() {
+        return durationNs > 0 ? frameCount * 1_000_000_000f / durationNs : 0;
+    }
+
+    public long getOutputBitRate() {
+        return durationNs > 0 ? totalBytes * 8 * 1_000_000_000L / durationNs : 0;
+    }
+
+    /**
+     * Return the relative error of the output bitrate (positive if the encoder overshoots the target).
+     */
+    public float getBitRateError() {
+        return (float) (getOutputBitRate() - targetBitRate) / targetBitRate;
+    }
+
+    /**
+     * Return the latency percentile, in nanoseconds.
+     *
+     * @param percent the percentile, between 0 and 100
+     */
+    public long getLatencyPercentile(int percent) {
+        if (frameCount == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(latencies, 0, frameCount);
+            sorted = true;
+        }
+        // Nearest-rank method
+        int rank = (int) Math.ceil(percent / 100.0 * frameCount);
+        return latencies[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Return a score between 0 and 100 (the higher the better).
+     * <p>
+     * The sustained frame rate counts for 60%, the 90th percentile latency (relative to the frame interval) for 30% and the bitrate accuracy for
+     * 10%.
+     */
+    public int getScore() {
+        if (isFailed() || frameCount == 0) {
+            return 0;
+        }
+
+        float fpsScore = Math.min(1, getFps() / targetFps);
+        float frameInterval = 1_000_000_000f / targetFps;
+        float latencyScore = clamp(1 - getLatencyPercentile(90) / (4 * frameInterval));
+        float accuracyScore = clamp(1 - Math.abs(getBitRateError()));
+        return Math.round(60 * fpsScore + 30 * latencyScore + 10 * accuracyScore);
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0, Math.min(1, value));
+    }
+
+    /**
+     * Format the trial as a single line of space-separated {@code key=value} pairs.
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder("encoder_benchmark");
+        builder.append(" codec=").append(codecName);
+        builder.append(" encoder=").append(encoderName);
+        builder.append(" size=").append(width).append('x').append(height);
+        builder.append(" bitrate=").append(targetBitRate);
+        if (configError != null) {
+            builder.append(" status=config_failed");
+            appendError(builder, configError);
+            return builder.toString();
+        }
+        if (runtimeError != null) {
+            builder.append(" status=failed");
+            builder.append(" frames=").append(frameCount);
+            appendError(builder, runtimeError);
+            return builder.toString();
+        }
+
+        builder.append(" status=ok");
+        builder.append(" frames=").append(frameCount);
+        builder.append(" fps=").append(String.format(Locale.US, "%.1f", getFps()));
+        builder.append(" latency_p50_us=").append(getLatencyPercentile(50) / 1000);
+        builder.append(" latency_p90_us=").append(getLatencyPercentile(90) / 1000);
+        builder.append(" latency_p99_us=").append(getLatencyPercentile(99) / 1000);
+        builder.append(" output_bitrate=").append(getOutputBitRate());
+        builder.append(" bitrate_error=").append(String.format(Locale.US, "%+.3f", getBitRateError()));
+        builder.append(" score=").append(getScore());
+        return builder.toString();
+    }
+
+    private static void appendError(StringBuilder builder, String error) {
+        // Keep the line parsable
+        builder.append(" error=\"").append(error.replace('"', '\'').replace('\n', ' ')).append('"');
+    }
+
+    /**
+     * Format all the trials, followed by the ranking of the encoders for each codec (by average score over all their trials).
+     */
+    public static String formatReport(List<EncoderBenchmarkResult> results) {
+        StringBuilder builder = new StringBuilder();
+        // codec -> (encoder -> {score sum, trial count})
+        Map<String, Map<String, int[]>> scores = new LinkedHashMap<>();
+        for (EncoderBenchmarkResult result : results) {
+            builder.append(result.format()).append('\n');
+            Map<String, int[]> codecScores = scores.get(result.codecName);
+            if (codecScores == null) {
+                codecScores = new LinkedHashMap<>();
+                scores.put(result.codecName, codecScores);
+            }
+            int[] score = codecScores.get(result.encoderName);
+            if (score == null) {
+                score = new int[2];
+                codecScores.put(result.encoderName, score);
+            }
+            score[0] += result.getScore();
+            ++score[1];
+        }
+
+        for (Map.Entry<String, Map<String, int[]>> codecEntry : scores.entrySet()) {
+            List<Map.Entry<String, int[]>> ranking = new ArrayList<>(codecEntry.getValue().entrySet());
+            // Stable sort: on equality, keep the MediaCodecList order
+            Collections.sort(ranking, (a, b) -> Integer.compare(average(b.getValue()), average(a.getValue())));
+            builder.append("encoder_ranking codec=").append(codecEntry.getKey()).append(" encoders=");
+            for (int i = 0; i < ranking.size(); ++i) {
+                if (i != 0) {
+                    builder.append(',');
+                }
+                Map.Entry<String, int[]> entry = ranking.get(i);
+                builder.append(entry.getKey()).append(':').append(average(entry.getValue()));
+            }
+            builder.append('\n');
+        }
+
+        return builder.toString();
+    }
+
+    private static int average(int[] score) {
+        return score[1] > 0 ? score[0] / score[1] : 0;
+    }
+}
@@ -0,0 +1,135 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.util.EncoderCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The video encoders to switch to, in order, when the current one fails definitively.
+ * <p>
+ * The chain is either explicit ({@code <codec>[/<encoder>],...}, the default encoder of the codec being used if none is given), or
+ * {@code auto}: the other hardware encoders of the current codec, then its software encoders, then the same for H.264.
+ */
+public final class EncoderFailoverChain {
+
+    public static final class Entry {
+        private final VideoCodec codec;
+        private final String encoderName;
+
+        private Entry(VideoCodec codec, String encoderName) {
+            this.codec = codec;
+            this.encoderName = encoderName;
+        }
+
+        public VideoCodec getCodec() {
+            return codec;
+        }
+
+        public String getEncoderName() {
+            return encoderName;
+        }
+
+        @Override
+        public String toString() {
+            return codec.getName() + "/" + encoderName;
+        }
+    }
+
+    // null for the automatic chain (resolved on the first failure)
+    private List<Entry> entries;
+    private int index;
+    private final Set<String> tried = new HashSet<>();
+
+    private EncoderFailoverChain(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public static EncoderFailoverChain parse(String value) {
+        if ("auto".equals(value)) {
+            return new EncoderFailoverChain(null);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (String token : value.split(",")) {
+            int slashIndex = token.indexOf('/');
+            String codecName = slashIndex == -1 ? token : token.substring(0, slashIndex);
+            VideoCodec codec = VideoCodec.findByName(codecName);
+            if (codec == null) {
+                throw new IllegalArgumentException("Video codec " + codecName + " not supported");
+            }
+            String encoderName = slashIndex == -1 ? null : token.substring(slashIndex + 1);
+            entries.add(new Entry(codec, encoderName));
+        }
+        return new EncoderFailoverChain(entries);
+    }
+
+    /**
+     * Return the next encoder to use after the failure of the current one.
+     *
+     * @param currentCodec the codec of the failed encoder
+     * @param currentEncoderName the name of the failed encoder
+     * @return the next encoder, or {@code null} if the chain is exhausted
+     */
+    public Entry next(VideoCodec currentCodec, String currentEncoderName) {
+        tried.add(currentEncoderName);
+        if (entries == null) {
+            entries = createAutoEntries(currentCodec);
+        }
+
+        EncoderCache cache = EncoderCache.get();
+        while (index < entries.size()) {
+            Entry entry = entries.get(index++);
+            String name = entry.encoderName;
+            if (name == null) {
+                name = cache.findDefaultEncoder(entry.codec.getMimeType());
+                if (name == null) {
+                    continue;
+                }
+            }
+            if (!tried.contains(name) && !cache.isBad(name)) {
+                return new Entry(entry.codec, name);
+            }
+        }
+
+        return null;
+    }
+
+    private static List<Entry> createAutoEntries(VideoCodec currentCodec) {
+        List<Entry> result = new ArrayList<>();
+        addAutoEntries(result, currentCodec);
+        if (currentCodec != VideoCodec.H264) {
+            // H.264 is supported by all devices
+            addAutoEntries(result, VideoCodec.H264);
+        }
+        return result;
+    }
+
+    private static void addAutoEntries(List<Entry> result, VideoCodec codec) {
+        List<Entry> software = new ArrayList<>();
+        for (EncoderCache.Entry encoder : EncoderCache.get().getEncoders(codec.getMimeType())) {
+            if (encoder.isAlias()) {
+                // Same encoder as its canonical one
+                continue;
+            }
+            Entry entry = new Entry(codec, encoder.getName());
+            if (isSoftware(encoder)) {
+                software.add(entry);
+            } else {
+                result.add(entry);
+            }
+        }
+        result.addAll(software);
+    }
+
+    private static boolean isSoftware(EncoderCache.Entry encoder) {
+        if (!encoder.getHwType().isEmpty()) {
+            return "sw".equals(encoder.getHwType());
+        }
+        // Before Android 10, rely on the naming conventions of the platform software encoders
+        String name = encoder.getName();
+        return name.startsWith("c2.android.") || name.startsWith("OMX.google.");
+    }
+}
@@ -0,0 +1,110 @@
+package com.genymobile.scrcpy.video;
+
+/**
+ * Detect static content from the encoded frames, to throttle the encoder while nothing changes on screen.
+ * <p>
+ * When the content is static, the encoder only produces tiny packets (repeated frames, or frames with a negligible change). The content is
+ * considered idle once only such packets have been produced for a while, and active again as soon as a larger packet is produced.
+ * <p>
+ * The controller also accounts for the frames and bytes produced while active or throttled, to report the savings.
+ */
+public final class FrameRateController {
+
+    private static final long IDLE_DELAY_NS = 1_000_000_000; // 1s
+    // A frame smaller than this fraction of the average frame budget is considered "static"
+    private static final int STATIC_FRAME_BUDGET_DIVISOR = 20;
+    private static final int MIN_STATIC_FRAME_SIZE = 512; // bytes
+    private static final int BUDGET_FPS = 60;
+
+    private long lastActivityTime = -1;
+
+    private boolean throttled;
+    private long throttleStartTime;
+
+    private long startTime = -1;
+    private long lastTime;
+    private long throttledTime;
+    private long activeFrames;
+    private long activeBytes;
+    private long throttledFrames;
+    private long throttledBytes;
+
+    /**
+     * Update the controller on each encoded frame.
+     *
+     * @param now the current time, in nanoseconds
+     * @param frameSize the size of the encoded packet, in bytes
+     * @param bitRate the current video bitrate
+     * @return {@code true} if the content is considered static
+     */
+    public boolean update(long now, int frameSize, int bitRate) {
+        if (startTime == -1) {
+            startTime = now;
+        }
+        lastTime = now;
+
+        if (throttled) {
+            ++throttledFrames;
+            throttledBytes += frameSize;
+        } else {
+            ++activeFrames;
+            activeBytes += frameSize;
+        }
+
+        int staticFrameSize = Math.max(MIN_STATIC_FRAME_SIZE, bitRate / 8 / BUDGET_FPS / STATIC_FRAME_BUDGET_DIVISOR);
+        if (lastActivityTime == -1 || frameSize > staticFrameSize) {
+            lastActivityTime = now;
+            return false;
+        }
+
+        return now - lastActivityTime >= IDLE_DELAY_NS;
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public void setThrottled(long now, boolean throttled) {
+        if (throttled == this.throttled) {
+            return;
+        }
+
+        this.throttled = throttled;
+        if (throttled) {
+            throttleStartTime = now;
+        } else {
+            throttledTime += now - throttleStartTime;
+        }
+    }
+
+    /**
+     * Restart the activity detection (typically because the encoder has been reconfigured), keeping the statistics.
+     *
+     * @param now the current time, in nanoseconds
+     */
+    public void reset(long now) {
+        setThrottled(now, false);
+        lastActivityTime = -1;
+    }
+
+    public boolean isEmpty() {
+        return startTime == -1;
+    }
+
+    public String formatReport() {
+        long totalTime = lastTime - startTime;
+        long throttledTotal = throttled ? throttledTime + lastTime - throttleStartTime : throttledTime;
+        long activeTime = totalTime - throttledTotal;
+        float activeFps = activeTime > 0 ? activeFrames * 1_000_000_000f / activeTime : 0;
+        float throttledFps = throttledTotal > 0 ? throttledFrames * 1_000_000_000f / throttledTotal : 0;
+
+        // Estimate what the throttled periods would have cost at the active frame rate, with static frames
+        long savedFrames = Math.max(0, (long) (activeFps * throttledTotal / 1_000_000_000f) - throttledFrames);
+        long staticFrameSize = throttledFrames > 0 ? throttledBytes / throttledFrames : 0;
+
+        return "throttled " + (throttledTotal / 1_000_000) + "ms of " + (totalTime / 1_000_000) + "ms"
+                + ", fps active=" + Math.round(activeFps) + " throttled=" + Math.round(throttledFps)
+                + ", saved ~" + savedFrames + " frames (~" + (savedFrames * staticFrameSize) + "B)"
+                + ", bytes active=" + activeBytes + " throttled=" + throttledBytes;
+    }
+}
@@ -0,0 +1,93 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import android.os.Handler;
+
+/**
+ * Coalesce bursts of invalidation events (for example the successive display configuration changes during a fold/unfold or a resolution
+ * switch animation) into a single invalidation, once the events have settled.
+ * <p>
+ * When no event has been received for the settle delay, the listener checks whether the final state differs from the running one, and
+ * only then invalidates the capture.
+ */
+public final class InvalidationCoalescer {
+
+    public interface SettledListener {
+        /**
+         * Called once the events have settled.
+         *
+         * @return {@code true} if the capture has been invalidated, {@code false} if the final state is the running one
+         */
+        boolean onSettled();
+    }
+
+    private final Handler handler;
+    private final long settleDelay; // ms
+    private final SettledListener listener;
+    private final Runnable settledRunnable = this::settle;
+
+    // Guarded by this
+    private int pendingEvents;
+    // Pending events which would have caused a reset without coalescing
+    private int pendingResets;
+    private long suppressedCount;
+
+    public InvalidationCoalescer(Handler handler, long settleDelay, SettledListener listener) {
+        this.handler = handler;
+        this.settleDelay = settleDelay;
+        this.listener = listener;
+    }
+
+    /**
+     * Notify an invalidation event, which (re)starts the settle window.
+     *
+     * @param wouldReset whether the event would have caused a reset without coalescing (only for the statistics)
+     */
+    public synchronized void invalidate(boolean wouldReset) {
+        ++pendingEvents;
+        if (wouldReset) {
+            ++pendingResets;
+        }
+        handler.removeCallbacks(settledRunnable);
+        handler.postDelayed(settledRunnable, settleDelay);
+    }
+
+    private void settle() {
+        int events;
+        int resets;
+        synchronized (this) {
+            events = pendingEvents;
+            resets = pendingResets;
+            pendingEvents = 0;
+            pendingResets = 0;
+        }
+        if (events == 0) {
+            return;
+        }
+
+        boolean invalidated = listener.onSettled();
+        int suppressed = Math.max(0, invalidated ? resets - 1 : resets);
+        synchronized (this) {
+            suppressedCount += suppressed;
+        }
+        if (suppressed > 0 && Ln.isEnabled(Ln.Level.VERBOSE)) {
+            Ln.v("InvalidationCoalescer: " + events + " events settled, " + (invalidated ? "1 reset, " : "no reset, ") + suppressed
+                    + " suppressed");
+        }
+    }
+
+    /**
+     * Cancel the pending settle window, if any.
+     */
+    public void cancel() {
+        handler.removeCallbacks(settledRunnable);
+    }
+
+    /**
+     * Return the number of resets avoided thanks to the coalescing.
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+}
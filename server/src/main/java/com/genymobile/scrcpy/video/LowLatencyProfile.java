@@ -0,0 +1,170 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.AndroidVersions;
+import com.genymobile.scrcpy.util.Ln;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Range;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The format keys reducing the encoding latency, selected for a specific encoder.
+ * <p>
+ * The keys which can be probed from the encoder capabilities are only added if supported. The others are added anyway: if the encoder
+ * rejects the configuration, and accepts it without these keys, they are removed one by one (the least probable to be supported first)
+ * until it accepts it.
+ * <p>
+ * The removal only applies to the current capture session: the profile is probed again for the next one.
+ */
+public final class LowLatencyProfile {
+
+    private static final String KEY_LEVEL = "level"; // MediaFormat.KEY_LEVEL is public since Android 6
+
+    private static final class Key {
+        private final String name;
+        private final Object value;
+
+        private Key(String name, Object value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    // In order of probability to be supported
+    private final List<Key> keys = new ArrayList<>();
+
+    private LowLatencyProfile() {
+        // use probe()
+    }
+
+    /**
+     * Select the low-latency keys for the encoder.
+     *
+     * @param mediaCodec the encoder
+     * @param mimeType the video mime type
+     * @param maxFps the max fps (0 if unlimited)
+     * @return the profile
+     */
+    public static LowLatencyProfile probe(MediaCodec mediaCodec, String mimeType, float maxFps) {
+        LowLatencyProfile profile = new LowLatencyProfile();
+
+        MediaCodecInfo.CodecCapabilities caps;
+        try {
+            caps = mediaCodec.getCodecInfo().getCapabilitiesForType(mimeType);
+        } catch (IllegalArgumentException e) {
+            Ln.w("Could not get the capabilities of the video encoder: " + e.getMessage());
+            return profile;
+        }
+
+        if (Build.VERSION.SDK_INT >= AndroidVersions.API_30_ANDROID_11 && isLowLatencySupported(caps)) {
+            profile.add(MediaFormat.KEY_LOW_LATENCY, 1);
+        }
+        if (Build.VERSION.SDK_INT >= AndroidVersions.API_23_ANDROID_6_0) {
+            profile.add(MediaFormat.KEY_PRIORITY, 0); // realtime
+        }
+        if (Build.VERSION.SDK_INT >= AndroidVersions.API_29_ANDROID_10) {
+            profile.add(MediaFormat.KEY_MAX_B_FRAMES, 0);
+        }
+        if (Build.VERSION.SDK_INT >= AndroidVersions.API_23_ANDROID_6_0) {
+            // The profile must be set along with a level
+            profile.addProfile(caps, mimeType);
+            profile.addOperatingRate(caps, maxFps);
+        }
+        if (Build.VERSION.SDK_INT >= AndroidVersions.API_30_ANDROID_11) {
+            // Only defined (and honored by the encoders) since Android 11
+            profile.add(MediaFormat.KEY_LATENCY, 1);
+        }
+
+        return profile;
+    }
+
+    @TargetApi(AndroidVersions.API_30_ANDROID_11)
+    private static boolean isLowLatencySupported(MediaCodecInfo.CodecCapabilities caps) {
+        return caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency);
+    }
+
+    private void addProfile(MediaCodecInfo.CodecCapabilities caps, String mimeType) {
+        int[] candidates;
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+            // No B-frames in (constrained) baseline
+            candidates = new int[] {
+                MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline,
+            };
+        } else if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType)) {
+            candidates = new int[] {MediaCodecInfo.CodecProfileLevel.HEVCProfileMain};
+        } else {
+            return;
+        }
+
+        for (int candidate : candidates) {
+            int level = 0;
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : caps.profileLevels) {
+                if (profileLevel.profile == candidate && profileLevel.level > level) {
+                    level = profileLevel.level;
+                }
+            }
+            if (level != 0) {
+                add(MediaFormat.KEY_PROFILE, candidate);
+                add(KEY_LEVEL, level);
+                return;
+            }
+        }
+    }
+
+    private void addOperatingRate(MediaCodecInfo.CodecCapabilities caps, float maxFps) {
+        float rate = maxFps > 0 ? maxFps : 60;
+        MediaCodecInfo.VideoCapabilities videoCaps = caps.getVideoCapabilities();
+        if (videoCaps != null) {
+            Range<Integer> frameRates = videoCaps.getSupportedFrameRates();
+            rate = Math.min(rate, frameRates.getUpper());
+        }
+        add(MediaFormat.KEY_OPERATING_RATE, rate);
+    }
+
+    private void add(String name, Object value) {
+        keys.add(new Key(name, value));
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Set the selected keys to the format.
+     */
+    public void apply(MediaFormat format) {
+        for (Key key : keys) {
+            if (key.value instanceof Float) {
+                format.setFloat(key.name, (Float) key.value);
+            } else {
+                format.setInteger(key.name, (Integer) key.value);
+            }
+        }
+    }
+
+    /**
+     * Remove the last selected key (the least probable to be supported), typically because the encoder rejected the configuration.
+     * <p>
+     * The profile and the level are removed together.
+     *
+     * @return the name of the removed key, or {@code null} if there is no key anymore
+     */
+    public String removeLastKey() {
+        if (keys.isEmpty()) {
+            return null;
+        }
+
+        Key key = keys.remove(keys.size() - 1);
+        if (KEY_LEVEL.equals(key.name)) {
+            key = keys.remove(keys.size() - 1);
+        }
+        return key.name;
+    }
+}
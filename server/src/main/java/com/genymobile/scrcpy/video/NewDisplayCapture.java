@@ -40,7 +40,7 @@ public class NewDisplayCapture extends SurfaceCapture {
     private final VirtualDisplayListener vdListener;
     private final NewDisplay newDisplay;
 
-    private final DisplaySizeMonitor displaySizeMonitor = new DisplaySizeMonitor();
+    private final DisplaySizeMonitor displaySizeMonitor;
 
     private AffineMatrix displayTransform;
     private AffineMatrix eventTransform;
@@ -71,6 +71,7 @@ public class NewDisplayCapture extends SurfaceCapture {
         this.maxSize = options.getMaxSize();
         this.displayImePolicy = options.getDisplayImePolicy();
         this.crop = options.getCrop();
+        this.displaySizeMonitor = new DisplaySizeMonitor(options.getDisplaySettleDelay());
         assert options.getCaptureOrientationLock() != null;
         this.captureOrientationLocked = options.getCaptureOrientationLock() != Orientation.Lock.Unlocked;
         this.captureOrientation = options.getCaptureOrientation();
@@ -210,6 +211,7 @@ public class NewDisplayCapture extends SurfaceCapture {
             assert glRunner == null;
             OpenGLFilter glFilter = new AffineOpenGLFilter(displayTransform);
             glRunner = new OpenGLRunner(glFilter);
+            glRunner.setFrameListener(getFrameListener());
             surface = glRunner.start(physicalSize, videoSize, surface);
         }
 
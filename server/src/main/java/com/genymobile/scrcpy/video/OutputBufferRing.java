@@ -0,0 +1,125 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.util.Ln;
+
+import android.media.MediaCodec;
+
+/**
+ * Ring of the output buffers made available by an asynchronous MediaCodec, from the codec callback to the writer thread.
+ * <p>
+ * Only the buffer indices and info are stored, in preallocated arrays, so that no object is allocated per frame.
+ */
+final class OutputBufferRing {
+
+    private final int[] indices;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final int[] flags;
+    private final long[] ptsArray;
+    private final long[] availableTimes;
+
+    private int head;
+    private int count;
+    private boolean failed;
+
+    private int takenSlot;
+    private long takenAvailableTime;
+
+    OutputBufferRing(int capacity) {
+        indices = new int[capacity];
+        offsets = new int[capacity];
+        sizes = new int[capacity];
+        flags = new int[capacity];
+        ptsArray = new long[capacity];
+        availableTimes = new long[capacity];
+    }
+
+    /**
+     * Add an output buffer (called from the codec callback).
+     */
+    void put(int index, MediaCodec.BufferInfo bufferInfo) {
+        put(index, bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+    }
+
+    /**
+     * Add an output buffer, from its info fields (called from the codec callback).
+     */
+    synchronized void put(int index, int offset, int size, long presentationTimeUs, int bufferFlags) {
+        if (count == indices.length) {
+            // The capacity is greater than the number of codec output buffers, so this is not expected. Never overwrite a buffer which has
+            // not been released: fail, like on a codec error.
+            Ln.e("Video encoder output ring overflow (" + count + " buffers pending)");
+            fail();
+            return;
+        }
+
+        int i = (head + count) % indices.length;
+        indices[i] = index;
+        offsets[i] = offset;
+        sizes[i] = size;
+        flags[i] = bufferFlags;
+        ptsArray[i] = presentationTimeUs;
+        availableTimes[i] = System.nanoTime();
+        ++count;
+        notify();
+    }
+
+    /**
+     * Wait for the next output buffer.
+     *
+     * @param bufferInfo the buffer info to fill
+     * @return the output buffer index, or -1 if the codec failed
+     */
+    synchronized int take(MediaCodec.BufferInfo bufferInfo) throws InterruptedException {
+        int index = take();
+        if (index != -1) {
+            // The slot cannot be reused before the lock is released
+            int i = takenSlot;
+            bufferInfo.set(offsets[i], sizes[i], ptsArray[i], flags[i]);
+        }
+        return index;
+    }
+
+    /**
+     * Wait for the next output buffer, without retrieving its info.
+     *
+     * @return the output buffer index, or -1 if the codec failed
+     */
+    synchronized int take() throws InterruptedException {
+        while (count == 0 && !failed) {
+            wait();
+        }
+
+        if (failed) {
+            return -1;
+        }
+
+        int i = head;
+        takenSlot = i;
+        takenAvailableTime = availableTimes[i];
+        head = (head + 1) % indices.length;
+        --count;
+        return indices[i];
+    }
+
+    /**
+     * Return the time (in nanoseconds) when the buffer returned by the last {@link #take()} was made available.
+     */
+    synchronized long getTakenAvailableTime() {
+        return takenAvailableTime;
+    }
+
+    synchronized void fail() {
+        failed = true;
+        notify();
+    }
+
+    /**
+     * Reset the ring for a new codec session.
+     */
+    synchronized void clear() {
+        head = 0;
+        count = 0;
+        failed = false;
+    }
+}
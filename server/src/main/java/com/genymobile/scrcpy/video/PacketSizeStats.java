@@ -0,0 +1,74 @@
+package com.genymobile.scrcpy.video;
+
+/**
+ * Statistics about the size of the encoded video packets, to compare the bitrate smoothness (for example with or without intra refresh).
+ */
+public final class PacketSizeStats {
+
+    private static final long WINDOW_NS = 100_000_000; // 100ms
+
+    private long frameCount;
+    private long totalBytes;
+    private int maxFrameSize;
+
+    private long keyFrameCount;
+    private long keyFrameBytes;
+    private int maxKeyFrameSize;
+
+    // Bytes over a sliding window, to estimate the peak bitrate
+    private long windowStart = -1;
+    private long windowBytes;
+    private long maxWindowBytes;
+    private long firstTime = -1;
+    private long lastTime;
+
+    /**
+     * Record an encoded frame.
+     *
+     * @param now the current time, in nanoseconds
+     * @param size the packet size, in bytes
+     * @param keyFrame {@code true} if the packet is a key frame
+     */
+    public void record(long now, int size, boolean keyFrame) {
+        if (firstTime == -1) {
+            firstTime = now;
+        }
+        lastTime = now;
+
+        ++frameCount;
+        totalBytes += size;
+        maxFrameSize = Math.max(maxFrameSize, size);
+        if (keyFrame) {
+            ++keyFrameCount;
+            keyFrameBytes += size;
+            maxKeyFrameSize = Math.max(maxKeyFrameSize, size);
+        }
+
+        if (windowStart == -1 || now - windowStart >= WINDOW_NS) {
+            windowStart = now;
+            windowBytes = 0;
+        }
+        windowBytes += size;
+        maxWindowBytes = Math.max(maxWindowBytes, windowBytes);
+    }
+
+    public boolean isEmpty() {
+        return frameCount == 0;
+    }
+
+    public String format() {
+        long avgFrameSize = frameCount > 0 ? totalBytes / frameCount : 0;
+        long duration = lastTime - firstTime;
+        long avgBitRate = duration > 0 ? totalBytes * 8 * 1_000_000_000L / duration : 0;
+        long peakBitRate = maxWindowBytes * 8 * 1_000_000_000L / WINDOW_NS;
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(frameCount).append(" frames, avg=").append(avgFrameSize).append("B max=").append(maxFrameSize).append('B');
+        if (keyFrameCount > 0) {
+            builder.append(", ").append(keyFrameCount).append(" key frames avg=").append(keyFrameBytes / keyFrameCount).append("B max=")
+                    .append(maxKeyFrameSize).append('B');
+        }
+        builder.append(", bitrate avg=").append(avgBitRate).append("bps peak(100ms)=").append(peakBitRate).append("bps");
+        return builder.toString();
+    }
+}
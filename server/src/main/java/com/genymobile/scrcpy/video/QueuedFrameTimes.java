@@ -0,0 +1,72 @@
+package com.genymobile.scrcpy.video;
+
+/**
+ * Count the frames queued to the encoder input surface, and remember the timestamps of the last ones.
+ * <p>
+ * This allows to compare the number of frames output by the encoder to the number of frames queued to it, excluding the frames repeated by
+ * the encoder itself. The capacity is fixed: the encoder never holds more frames.
+ */
+final class QueuedFrameTimes {
+
+    private static final int CAPACITY = 64;
+
+    private final long[] timestamps = new long[CAPACITY]; // in microseconds
+    private int head; // index of the next write
+    private int count;
+    // Never reset, so that the caller may count the frames queued during any period
+    private long total;
+
+    /**
+     * Record that a frame has been queued now.
+     * <p>
+     * If a frame with the same timestamp is already recorded (the same frame rendered through several OpenGL runners), it is counted only
+     * once.
+     *
+     * @param timestampNs the presentation timestamp of the frame, in nanoseconds
+     */
+    synchronized void record(long timestampNs) {
+        long timestampUs = timestampNs / 1000;
+        if (indexOf(timestampUs) != -1) {
+            return;
+        }
+        timestamps[head] = timestampUs;
+        head = (head + 1) % CAPACITY;
+        if (count < CAPACITY) {
+            ++count;
+        }
+        ++total;
+    }
+
+    /**
+     * Indicate whether the frame with the given timestamp has been queued recently.
+     *
+     * @param timestampUs the presentation timestamp of the encoded frame, in microseconds
+     * @return {@code false} if the frame was not recorded (for example, a frame repeated by the encoder)
+     */
+    synchronized boolean contains(long timestampUs) {
+        return indexOf(timestampUs) != -1;
+    }
+
+    /**
+     * Return the total number of frames recorded (including before the last {@link #clear()}).
+     */
+    synchronized long getTotal() {
+        return total;
+    }
+
+    synchronized void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    private int indexOf(long timestampUs) {
+        // Search from the most recent frame
+        for (int i = 1; i <= count; ++i) {
+            int index = (head - i + CAPACITY) % CAPACITY;
+            if (timestamps[index] == timestampUs) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
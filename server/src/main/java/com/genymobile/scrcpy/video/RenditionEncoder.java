@@ -0,0 +1,263 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.device.Size;
+import com.genymobile.scrcpy.device.Streamer;
+import com.genymobile.scrcpy.opengl.OpenGLRunner;
+import com.genymobile.scrcpy.util.Codec;
+import com.genymobile.scrcpy.util.EncoderCache;
+import com.genymobile.scrcpy.util.IO;
+import com.genymobile.scrcpy.util.Ln;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Encode a {@link VideoRendition} of the capture, rendered by the {@link OpenGLRunner} of the main encoder into an additional output.
+ * <p>
+ * The encoder is restarted on every capture session (the capture size may change), along with the main encoder.
+ * <p>
+ * A rendition never fails the main stream: if its encoder could not be started or fails at runtime, only this rendition is disabled (for
+ * the rest of the session), and the client is notified on its scid.
+ */
+public final class RenditionEncoder {
+
+    private static final int I_FRAME_INTERVAL = 10; // seconds
+    private static final long REPEAT_FRAME_DELAY_US = 100_000; // repeat after 100ms (or the frame interval, if longer)
+    private static final long DEQUEUE_TIMEOUT_US = 100_000;
+
+    private final VideoRendition rendition;
+    private final Streamer streamer;
+
+    private volatile boolean enabled = true;
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    // Current session (guarded by this)
+    private MediaCodec mediaCodec;
+    private Surface inputSurface;
+    private OpenGLRunner glRunner;
+    private Thread drainThread;
+    private volatile boolean running;
+
+    private boolean headerWritten;
+
+    public RenditionEncoder(VideoRendition rendition, Streamer streamer) {
+        this.rendition = rendition;
+        this.streamer = streamer;
+    }
+
+    public int getScid() {
+        return rendition.getScid();
+    }
+
+    /**
+     * Start encoding the rendition for a new capture session.
+     * <p>
+     * On failure, the rendition is disabled instead: the caller is never interrupted.
+     *
+     * @param captureSize the size of the main video stream
+     * @param glRunner the runner rendering the capture into the main encoder
+     */
+    public synchronized void start(Size captureSize, OpenGLRunner glRunner) {
+        if (failed.get()) {
+            return;
+        }
+
+        Size size = captureSize.limit(rendition.getMaxSize()).round8();
+        Codec codec = streamer.getCodec();
+        float maxFps = rendition.getMaxFps();
+
+        String encoderName = EncoderCache.findDefaultEncoderName(codec.getMimeType());
+        try {
+            mediaCodec = encoderName != null ? MediaCodec.createByCodecName(encoderName) : MediaCodec.createEncoderByType(codec.getMimeType());
+        } catch (IOException | RuntimeException e) {
+            // For example, no more hardware encoder instance is available
+            fail("Could not create video rendition encoder: " + e.getMessage());
+            return;
+        }
+
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, codec.getMimeType());
+        format.setInteger(MediaFormat.KEY_WIDTH, size.getWidth());
+        format.setInteger(MediaFormat.KEY_HEIGHT, size.getHeight());
+        format.setInteger(MediaFormat.KEY_BIT_RATE, rendition.getBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, maxFps > 0 ? Math.round(maxFps) : 60);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+        long frameIntervalUs = maxFps > 0 ? (long) (1_000_000 / maxFps) : 0;
+        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, Math.max(REPEAT_FRAME_DELAY_US, frameIntervalUs)); // µs
+
+        boolean started = false;
+        try {
+            mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = mediaCodec.createInputSurface();
+            mediaCodec.start();
+            started = true;
+            if (!enabled) {
+                setSuspended(true);
+            }
+
+            int gopSize = I_FRAME_INTERVAL * (maxFps > 0 ? Math.round(maxFps) : 60);
+            if (!headerWritten) {
+                streamer.writeVideoHeader(size, rendition.getBitRate(), Math.round(maxFps), gopSize);
+                headerWritten = true;
+            } else {
+                streamer.writeVideoReconfigured(size, rendition.getBitRate(), Math.round(maxFps), gopSize);
+            }
+
+            glRunner.addOutput(inputSurface, size, maxFps, enabled, () -> fail("Could not render video rendition"));
+        } catch (IOException | RuntimeException e) {
+            // Leave no half-started session behind (stop() ignores a rendition which is not started)
+            releaseEncoder(started);
+            fail("Could not start video rendition encoder: " + e.getClass().getName() + ": " + e.getMessage());
+            return;
+        }
+        this.glRunner = glRunner;
+
+        running = true;
+        MediaCodec codecRef = mediaCodec;
+        Surface surfaceRef = inputSurface;
+        drainThread = new Thread(() -> drain(codecRef, glRunner, surfaceRef), "video-rendition-" + Integer.toHexString(rendition.getScid()));
+        drainThread.start();
+    }
+
+    /**
+     * Stop encoding the rendition.
+     * <p>
+     * Must be called after the OpenGL runner is stopped.
+     */
+    public synchronized void stop() {
+        if (mediaCodec == null) {
+            return;
+        }
+
+        running = false;
+        if (drainThread != null) {
+            try {
+                drainThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            drainThread = null;
+        }
+
+        releaseEncoder(true);
+    }
+
+    private void releaseEncoder(boolean started) {
+        if (started) {
+            try {
+                mediaCodec.stop();
+            } catch (IllegalStateException e) {
+                // ignore
+            }
+        }
+        mediaCodec.release();
+        if (inputSurface != null) {
+            inputSurface.release();
+        }
+
+        mediaCodec = null;
+        inputSurface = null;
+        glRunner = null;
+    }
+
+    /**
+     * Switch the rendition on or off (the encoder is suspended while off).
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled == this.enabled) {
+            return;
+        }
+        if (failed.get()) {
+            Ln.w("Video rendition " + Integer.toHexString(rendition.getScid()) + " failed, ignored");
+            return;
+        }
+
+        this.enabled = enabled;
+        Ln.i("Video rendition " + Integer.toHexString(rendition.getScid()) + (enabled ? " enabled" : " disabled"));
+        if (mediaCodec != null) {
+            try {
+                setSuspended(!enabled);
+            } catch (IllegalStateException e) {
+                // The encoder is being stopped, the state will be applied on the next session
+            }
+            glRunner.setOutputEnabled(inputSurface, enabled);
+        }
+    }
+
+    private void setSuspended(boolean suspended) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+        if (!suspended) {
+            // The client may not decode the following frames without a key frame
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        }
+        mediaCodec.setParameters(params);
+    }
+
+    /**
+     * Disable this rendition for the rest of the session, and notify the client on its scid.
+     * <p>
+     * May be called from any thread (the drain thread or the OpenGL thread on a runtime failure).
+     */
+    private void fail(String message) {
+        if (!failed.compareAndSet(false, true)) {
+            // Already notified
+            return;
+        }
+
+        Ln.e(message + " (video rendition " + Integer.toHexString(rendition.getScid()) + " disabled)");
+        try {
+            streamer.writeStreamDisabled();
+        } catch (IOException e) {
+            // The connection is broken, the main stream will report it
+        }
+    }
+
+    private void drain(MediaCodec codec, OpenGLRunner runner, Surface surface) {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        try {
+            while (running) {
+                int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, DEQUEUE_TIMEOUT_US);
+                if (outputBufferId < 0) {
+                    continue;
+                }
+
+                try {
+                    if (bufferInfo.size > 0) {
+                        ByteBuffer buffer = codec.getOutputBuffer(outputBufferId);
+                        streamer.writePacket(buffer, bufferInfo);
+                    }
+                } finally {
+                    codec.releaseOutputBuffer(outputBufferId, false);
+                }
+
+                // A rendition does not use intra refresh, so the client requests are served by a key frame too
+                boolean keyFrameRequest = streamer.isKeyFrameRequest();
+                if (streamer.isRefreshRequest() || keyFrameRequest) {
+                    Bundle params = new Bundle();
+                    params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                    codec.setParameters(params);
+                }
+            }
+        } catch (IOException e) {
+            if (!IO.isBrokenPipe(e)) {
+                Ln.e("Video rendition error", e);
+            }
+        } catch (IllegalStateException e) {
+            // Includes MediaCodec.CodecException
+            if (running) {
+                // Stop rendering into the failed encoder, the main encoder and the other renditions continue
+                runner.setOutputEnabled(surface, false);
+                fail("Video rendition encoder error: " + e.getMessage());
+            }
+        }
+    }
+}
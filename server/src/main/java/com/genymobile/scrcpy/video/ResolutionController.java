@@ -0,0 +1,145 @@
+package com.genymobile.scrcpy.video;
+
+/**
+ * Decide when to step the capture resolution down (or back up) at runtime, depending on whether the encoder keeps up.
+ * <p>
+ * The encoder load is estimated periodically by comparing the number of frames output by the encoder to the number of frames queued to it
+ * during the same period: an overloaded encoder drops (or accumulates) frames. The absolute frame rate is not relevant: a low frame rate
+ * usually means that the content changes rarely, not that the encoder is overloaded. A step down is requested only if the encoder is too
+ * slow for a sustained window, and a step up only after a longer window during which it kept up with frames queued at (nearly) the target
+ * frame rate. The delay before stepping up is doubled each time a step up is quickly followed by a step
+ * down, to avoid oscillating between two sizes.
+ */
+public final class ResolutionController {
+
+    public static final int STEP_NONE = 0;
+    public static final int STEP_DOWN = -1;
+    public static final int STEP_UP = 1;
+
+    private static final long SAMPLE_PERIOD_NS = 1_000_000_000; // 1s
+    // A sample spanning more than this period means that the screen was static, so it does not reflect the encoder load
+    private static final long MAX_SAMPLE_PERIOD_NS = 2 * SAMPLE_PERIOD_NS;
+    // A sample with fewer queued frames is too noisy to judge the encoder load
+    private static final int MIN_SAMPLE_FRAMES = 5;
+    // Frames queued at the end of a sample may legitimately be output during the next one
+    private static final int MAX_PENDING_FRAMES = 2;
+    // The encoder is too slow if it misses more than 1/10 of the expected frames
+    private static final int MISSED_FRAMES_DIVISOR = 10;
+    // The encoder has headroom only if the frames were queued at 80% of the target frame rate at least
+    private static final float HEADROOM_MIN_FPS_RATIO = 0.8f;
+    private static final int DOWN_SAMPLES = 3; // 3s too slow before stepping down
+    private static final int MIN_UP_SAMPLES = 10; // 10s with headroom before stepping up
+    private static final int MAX_UP_SAMPLES = 160;
+    private static final float DEFAULT_TARGET_FPS = 60;
+
+    private int upSamples = MIN_UP_SAMPLES;
+
+    private long sampleStartTime = -1;
+    private long sampleStartQueuedFrames;
+    private int sampleFrames;
+
+    private int slowCount;
+    private int headroomCount;
+
+    // Number of samples since the last step up (-1 if the last step was not up)
+    private int samplesSinceUp = -1;
+
+    /**
+     * Update the controller on each encoded frame (excluding the frames repeated by the encoder).
+     *
+     * @param now the current time, in nanoseconds
+     * @param queuedFrames the total number of frames queued to the encoder so far
+     * @param maxFps the configured max fps (0 if unlimited)
+     * @return {@link #STEP_DOWN}, {@link #STEP_UP} or {@link #STEP_NONE}
+     */
+    public int update(long now, long queuedFrames, float maxFps) {
+        if (sampleStartTime == -1) {
+            // This frame was queued before the sample
+            sampleStartTime = now;
+            sampleStartQueuedFrames = queuedFrames;
+            return STEP_NONE;
+        }
+
+        ++sampleFrames;
+
+        long elapsed = now - sampleStartTime;
+        if (elapsed < SAMPLE_PERIOD_NS) {
+            return STEP_NONE;
+        }
+
+        int outputFrames = sampleFrames;
+        long queued = queuedFrames - sampleStartQueuedFrames;
+        sampleStartTime = now;
+        sampleStartQueuedFrames = queuedFrames;
+        sampleFrames = 0;
+
+        if (elapsed > MAX_SAMPLE_PERIOD_NS || queued < MIN_SAMPLE_FRAMES) {
+            // The screen was (at least partially) static, ignore this sample
+            return STEP_NONE;
+        }
+
+        // With a max fps, the encoder itself drops the frames queued above the limit
+        long expected = queued;
+        if (maxFps > 0) {
+            expected = Math.min(expected, (long) (maxFps * elapsed / 1_000_000_000));
+        }
+        long missed = expected - outputFrames;
+
+        boolean slow = missed > Math.max(MAX_PENDING_FRAMES, expected / MISSED_FRAMES_DIVISOR);
+        // Keeping up at the current size does not prove that a larger size would fit, but only if the encoder was actually busy
+        float targetFps = maxFps > 0 ? maxFps : DEFAULT_TARGET_FPS;
+        float queuedFps = queued * 1_000_000_000f / elapsed;
+        boolean headroom = missed <= MAX_PENDING_FRAMES && queuedFps >= HEADROOM_MIN_FPS_RATIO * targetFps;
+
+        if (samplesSinceUp != -1) {
+            ++samplesSinceUp;
+        }
+
+        if (slow) {
+            headroomCount = 0;
+            if (++slowCount >= DOWN_SAMPLES) {
+                if (samplesSinceUp != -1 && samplesSinceUp < 2 * upSamples) {
+                    // The previous step up did not hold
+                    upSamples = Math.min(MAX_UP_SAMPLES, upSamples * 2);
+                }
+                onStep(STEP_DOWN);
+                return STEP_DOWN;
+            }
+        } else {
+            slowCount = 0;
+            if (headroom) {
+                if (++headroomCount >= upSamples) {
+                    onStep(STEP_UP);
+                    return STEP_UP;
+                }
+            } else {
+                headroomCount = 0;
+            }
+        }
+
+        return STEP_NONE;
+    }
+
+    /**
+     * Notify that the last requested step could not be applied (for example, there is no smaller size), to restart the measurements.
+     */
+    public void cancelStep() {
+        samplesSinceUp = -1;
+        reset();
+    }
+
+    /**
+     * Restart the measurements, typically because the encoder has been reconfigured.
+     */
+    public void reset() {
+        sampleStartTime = -1;
+        sampleFrames = 0;
+        slowCount = 0;
+        headroomCount = 0;
+    }
+
+    private void onStep(int step) {
+        samplesSinceUp = step == STEP_UP ? 0 : -1;
+        reset();
+    }
+}
@@ -9,7 +9,6 @@ import com.genymobile.scrcpy.device.DisplayInfo;
 import com.genymobile.scrcpy.device.Orientation;
 import com.genymobile.scrcpy.device.Size;
 import com.genymobile.scrcpy.opengl.AffineOpenGLFilter;
-import com.genymobile.scrcpy.opengl.OpenGLFilter;
 import com.genymobile.scrcpy.opengl.OpenGLRunner;
 import com.genymobile.scrcpy.util.AffineMatrix;
 import com.genymobile.scrcpy.util.Ln;
@@ -34,18 +33,29 @@ public class ScreenCapture extends SurfaceCapture {
     private Orientation.Lock captureOrientationLock;
     private Orientation captureOrientation;
     private final float angle;
+    // Keep the video size on rotation: render the content letterboxed in a square canvas
+    private final boolean fixedCanvas;
 
     private DisplayInfo displayInfo;
     private Size videoSize;
+    // In fixed canvas mode, the canvas size (before the max size is applied) and the area covered by the content, in video pixels
+    private Size canvasSize;
+    private Rect contentRect;
 
-    private final DisplaySizeMonitor displaySizeMonitor = new DisplaySizeMonitor();
+    private final DisplaySizeMonitor displaySizeMonitor;
 
     private IBinder display;
     private VirtualDisplay virtualDisplay;
 
     private AffineMatrix transform;
+    private AffineOpenGLFilter glFilter;
     private OpenGLRunner glRunner;
 
+    // The surface passed to start(), to detect whether a reconfiguration may reuse the virtual display
+    private Surface startedSurface;
+    // The surface rendered by the display (the OpenGL runner input, if any)
+    private Surface displaySurface;
+
     public ScreenCapture(VirtualDisplayListener vdListener, Options options) {
         this.vdListener = vdListener;
         this.displayId = options.getDisplayId();
@@ -53,19 +63,26 @@ public class ScreenCapture extends SurfaceCapture {
         this.maxSize = options.getMaxSize();
         this.crop = options.getCrop();
         this.captureOrientationLock = options.getCaptureOrientationLock();
+        this.displaySizeMonitor = new DisplaySizeMonitor(options.getDisplaySettleDelay());
         this.captureOrientation = options.getCaptureOrientation();
         assert captureOrientationLock != null;
         assert captureOrientation != null;
         this.angle = options.getAngle();
+        if (options.getFixedCanvas() && crop != null) {
+            Ln.w("Fixed canvas is not supported with crop, ignored");
+            this.fixedCanvas = false;
+        } else {
+            this.fixedCanvas = options.getFixedCanvas();
+        }
     }
 
     @Override
     public void init() {
-        displaySizeMonitor.start(displayId, this::invalidate);
+        displaySizeMonitor.start(displayId, this::onDisplaySizeChanged);
     }
 
     @Override
-    public void prepare() throws ConfigurationException {
+    public synchronized void prepare() throws ConfigurationException {
         displayInfo = ServiceManager.getDisplayManager().getDisplayInfo(displayId);
         if (displayInfo == null) {
             Ln.e("Display " + displayId + " not found\n" + LogUtils.buildDisplayListMessage());
@@ -85,23 +102,48 @@ public class ScreenCapture extends SurfaceCapture {
             captureOrientation = Orientation.fromRotation(displayInfo.getRotation());
         }
 
-        VideoFilter filter = new VideoFilter(displaySize);
+        VideoFilter filter = createFilter(displayInfo);
+        Size contentSize = filter.getOutputSize();
+        if (fixedCanvas) {
+            // Large enough for the content in both orientations
+            int side = Math.max(contentSize.getWidth(), contentSize.getHeight());
+            canvasSize = new Size(side, side);
+            filter.addLetterbox(canvasSize);
+        }
+
+        transform = filter.getInverseTransform();
+        videoSize = filter.getOutputSize().limit(maxSize).round8();
+        contentRect = fixedCanvas ? computeContentRect(contentSize) : null;
+    }
+
+    private VideoFilter createFilter(DisplayInfo info) {
+        VideoFilter filter = new VideoFilter(info.getSize());
 
         if (crop != null) {
-            boolean transposed = (displayInfo.getRotation() % 2) != 0;
+            boolean transposed = (info.getRotation() % 2) != 0;
             filter.addCrop(crop, transposed);
         }
 
         boolean locked = captureOrientationLock != Orientation.Lock.Unlocked;
-        filter.addOrientation(displayInfo.getRotation(), locked, captureOrientation);
+        filter.addOrientation(info.getRotation(), locked, captureOrientation);
         filter.addAngle(angle);
+        return filter;
+    }
 
-        transform = filter.getInverseTransform();
-        videoSize = filter.getOutputSize().limit(maxSize).round8();
+    private Rect computeContentRect(Size contentSize) {
+        // The canvas is scaled uniformly to the video size
+        double scale = (double) videoSize.getWidth() / canvasSize.getWidth();
+        int width = (int) Math.round(contentSize.getWidth() * scale);
+        int height = (int) Math.round(contentSize.getHeight() * scale);
+        int x = (videoSize.getWidth() - width) / 2;
+        int y = (videoSize.getHeight() - height) / 2;
+        return new Rect(x, y, x + width, y + height);
     }
 
     @Override
-    public void start(Surface surface) throws IOException {
+    public synchronized void start(Surface surface) throws IOException {
+        startedSurface = surface;
+
         if (display != null) {
             SurfaceControl.destroyDisplay(display);
             display = null;
@@ -116,13 +158,15 @@ public class ScreenCapture extends SurfaceCapture {
             // If there is a filter, it must receive the full display content
             inputSize = displayInfo.getSize();
             assert glRunner == null;
-            OpenGLFilter glFilter = new AffineOpenGLFilter(transform);
+            glFilter = new AffineOpenGLFilter(transform);
             glRunner = new OpenGLRunner(glFilter);
+            glRunner.setFrameListener(getFrameListener());
             surface = glRunner.start(inputSize, videoSize, surface);
         } else {
             // If there is no filter, the display must be rendered at target video size directly
             inputSize = videoSize;
         }
+        displaySurface = surface;
 
         try {
             virtualDisplay = ServiceManager.getDisplayManager()
@@ -143,6 +187,25 @@ public class ScreenCapture extends SurfaceCapture {
             }
         }
 
+        notifyNewVirtualDisplay(inputSize);
+    }
+
+    @Override
+    public synchronized boolean reconfigure(Surface surface) {
+        // Only a virtual display rendering directly to the encoder surface may be resized in place
+        if (virtualDisplay == null || glRunner != null || transform != null || surface != startedSurface) {
+            if (transform != null) {
+                Ln.d("Display captured through OpenGL, restarting the capture");
+            }
+            return false;
+        }
+
+        virtualDisplay.resize(videoSize.getWidth(), videoSize.getHeight(), displayInfo.getDpi());
+        notifyNewVirtualDisplay(videoSize);
+        return true;
+    }
+
+    private void notifyNewVirtualDisplay(Size inputSize) {
         if (vdListener != null) {
             int virtualDisplayId;
             PositionMapper positionMapper;
@@ -161,13 +224,66 @@ public class ScreenCapture extends SurfaceCapture {
     }
 
     @Override
-    public void stop() {
+    public synchronized void stop() {
         if (glRunner != null) {
             glRunner.stopAndRelease();
             glRunner = null;
+            glFilter = null;
         }
     }
 
+    private void onDisplaySizeChanged() {
+        if (!fixedCanvas || !rotateInPlace()) {
+            invalidate();
+        }
+    }
+
+    /**
+     * In fixed canvas mode, apply a display rotation to the running capture by only changing the transform, so that the encoder keeps
+     * running with the same size.
+     *
+     * @return {@code true} if the rotation has been applied, {@code false} if the capture must be reset
+     */
+    private synchronized boolean rotateInPlace() {
+        if (glRunner == null) {
+            // Not started, the next session will use the new size anyway
+            return false;
+        }
+
+        DisplayInfo info = ServiceManager.getDisplayManager().getDisplayInfo(displayId);
+        if (info == null) {
+            return false;
+        }
+
+        VideoFilter filter = createFilter(info);
+        Size contentSize = filter.getOutputSize();
+        if (Math.max(contentSize.getWidth(), contentSize.getHeight()) != canvasSize.getWidth()) {
+            // Not a rotation (for example a resolution change), the content does not fit the canvas
+            return false;
+        }
+        filter.addLetterbox(canvasSize);
+
+        displayInfo = info;
+        Size inputSize = info.getSize();
+        displaySizeMonitor.setSessionDisplaySize(inputSize);
+        transform = filter.getInverseTransform();
+        contentRect = computeContentRect(contentSize);
+
+        // Notify the new content area before the frames rendered with the new transform
+        notifyContentRectChanged(contentRect);
+        glFilter.setTransform(transform);
+        glRunner.resizeInput(inputSize);
+        if (virtualDisplay != null) {
+            virtualDisplay.resize(inputSize.getWidth(), inputSize.getHeight(), info.getDpi());
+        } else {
+            setDisplaySurface(display, displaySurface, inputSize.toRect(), inputSize.toRect(), info.getLayerStack());
+        }
+        notifyNewVirtualDisplay(inputSize);
+
+        Ln.i("Display rotated, video size kept (content: " + contentRect.width() + "x" + contentRect.height() + ")");
+        return true;
+    }
+
     @Override
     public void release() {
         displaySizeMonitor.stopAndRelease();
@@ -187,13 +303,18 @@ public class ScreenCapture extends SurfaceCapture {
         return videoSize;
     }
 
+    @Override
+    public synchronized Rect getContentRect() {
+        return contentRect;
+    }
+
     @Override
     public boolean setMaxSize(int newMaxSize) {
         maxSize = newMaxSize;
         return true;
     }
 
-    private static IBinder createDisplay() throws Exception {
+    static IBinder createDisplay() throws Exception {
         // Since Android 12 (preview), secure displays could not be created with shell permissions anymore.
         // On Android 12 preview, SDK_INT is still R (not S), but CODENAME is "S".
         boolean secure = Build.VERSION.SDK_INT < AndroidVersions.API_30_ANDROID_11 || (Build.VERSION.SDK_INT == AndroidVersions.API_30_ANDROID_11
@@ -201,7 +322,7 @@ public class ScreenCapture extends SurfaceCapture {
         return SurfaceControl.createDisplay("scrcpy", secure);
     }
 
-    private static void setDisplaySurface(IBinder display, Surface surface, Rect deviceRect, Rect displayRect, int layerStack) {
+    static void setDisplaySurface(IBinder display, Surface surface, Rect deviceRect, Rect displayRect, int layerStack) {
         SurfaceControl.openTransaction();
         try {
             SurfaceControl.setDisplaySurface(display, surface);
@@ -0,0 +1,180 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.AndroidVersions;
+import com.genymobile.scrcpy.control.ControlMessage;
+import com.genymobile.scrcpy.device.DisplayInfo;
+import com.genymobile.scrcpy.device.Size;
+import com.genymobile.scrcpy.util.Ln;
+import com.genymobile.scrcpy.wrappers.ServiceManager;
+
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capture a single frame of a display through an {@link ImageReader}, independently of the video stream.
+ * <p>
+ * The display is mirrored into the image reader only until the first frame is received, so the video encoder does not need to run.
+ */
+public final class ScreenshotCapture {
+
+    private static final long FRAME_TIMEOUT_MS = 1000;
+    // Lowest JPEG/WebP quality to try when the image does not fit in a device message
+    private static final int MIN_QUALITY = 30;
+    private static final int QUALITY_STEP = 15;
+
+    private ScreenshotCapture() {
+        // not instantiable
+    }
+
+    /**
+     * Capture and compress a frame of the display.
+     *
+     * @param displayId the display to capture
+     * @param maxSize the maximum width and height of the image (0 for the display size)
+     * @param format one of the {@code ControlMessage.SCREENSHOT_FORMAT_*} values
+     * @param quality the compression quality, from 0 to 100 (ignored for PNG)
+     * @param maxLength the maximum length of the compressed image
+     * @return the compressed image
+     * @throws IOException if the frame could not be captured, or the compressed image does not fit in {@code maxLength} bytes
+     */
+    public static byte[] capture(int displayId, int maxSize, int format, int quality, int maxLength) throws IOException {
+        Bitmap.CompressFormat compressFormat = getCompressFormat(format);
+
+        DisplayInfo displayInfo = ServiceManager.getDisplayManager().getDisplayInfo(displayId);
+        if (displayInfo == null) {
+            throw new IOException("Unknown display id: " + displayId);
+        }
+
+        // Size.limit() requires a multiple of 8
+        Size size = displayInfo.getSize().limit(maxSize & ~7);
+
+        long start = SystemClock.uptimeMillis();
+        Bitmap bitmap = captureBitmap(displayId, displayInfo, size);
+        long captured = SystemClock.uptimeMillis();
+        try {
+            byte[] data = compress(bitmap, compressFormat, quality, maxLength);
+            Ln.d("Screenshot " + size + ": " + data.length + " bytes, captured in " + (captured - start) + "ms, compressed in "
+                    + (SystemClock.uptimeMillis() - captured) + "ms");
+            return data;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat getCompressFormat(int format) {
+        switch (format) {
+            case ControlMessage.SCREENSHOT_FORMAT_JPEG:
+                return Bitmap.CompressFormat.JPEG;
+            case ControlMessage.SCREENSHOT_FORMAT_PNG:
+                return Bitmap.CompressFormat.PNG;
+            case ControlMessage.SCREENSHOT_FORMAT_WEBP:
+                if (Build.VERSION.SDK_INT >= AndroidVersions.API_30_ANDROID_11) {
+                    return Bitmap.CompressFormat.WEBP_LOSSY;
+                }
+                return Bitmap.CompressFormat.WEBP;
+            default:
+                throw new IllegalArgumentException("Unknown screenshot format: " + format);
+        }
+    }
+
+    private static Bitmap captureBitmap(int displayId, DisplayInfo displayInfo, Size size) throws IOException {
+        HandlerThread thread = new HandlerThread("screenshot");
+        thread.start();
+
+        ImageReader imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), PixelFormat.RGBA_8888, 2);
+        Bitmap[] result = new Bitmap[1];
+        CountDownLatch latch = new CountDownLatch(1);
+        imageReader.setOnImageAvailableListener(reader -> {
+            if (latch.getCount() == 0) {
+                return;
+            }
+            try (Image image = reader.acquireLatestImage()) {
+                if (image != null) {
+                    result[0] = toBitmap(image);
+                    latch.countDown();
+                }
+            }
+        }, new Handler(thread.getLooper()));
+
+        DisplayMirror mirror = null;
+        try {
+            mirror = DisplayMirror.create("scrcpy-screenshot", displayId, displayInfo, size, imageReader.getSurface());
+
+            try {
+                if (!latch.await(FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("No frame received from display " + displayId);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Screenshot interrupted");
+            }
+        } finally {
+            if (mirror != null) {
+                mirror.release();
+            }
+            // Wait for a pending listener call before closing the reader
+            thread.quitSafely();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            imageReader.close();
+        }
+
+        return result[0];
+    }
+
+    static Bitmap toBitmap(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int pixelStride = plane.getPixelStride();
+        int rowPadding = plane.getRowStride() - pixelStride * width;
+
+        // The row stride may be larger than the width, copy the padding and crop it
+        Bitmap padded = Bitmap.createBitmap(width + rowPadding / pixelStride, height, Bitmap.Config.ARGB_8888);
+        padded.copyPixelsFromBuffer(buffer);
+        if (rowPadding == 0) {
+            return padded;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(padded, 0, 0, width, height);
+        padded.recycle();
+        return bitmap;
+    }
+
+    private static byte[] compress(Bitmap bitmap, Bitmap.CompressFormat format, int quality, int maxLength) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int currentQuality = quality;
+        while (true) {
+            out.reset();
+            if (!bitmap.compress(format, currentQuality, out)) {
+                throw new IOException("Could not compress screenshot");
+            }
+            if (out.size() <= maxLength) {
+                return out.toByteArray();
+            }
+
+            if (format == Bitmap.CompressFormat.PNG || currentQuality <= MIN_QUALITY) {
+                throw new IOException("Screenshot too large (" + out.size() + " bytes), request a smaller size");
+            }
+            currentQuality = Math.max(MIN_QUALITY, currentQuality - QUALITY_STEP);
+            Ln.d("Screenshot too large (" + out.size() + " bytes), retrying with quality " + currentQuality);
+        }
+    }
+}
@@ -2,7 +2,9 @@ package com.genymobile.scrcpy.video;
 
 import com.genymobile.scrcpy.device.ConfigurationException;
 import com.genymobile.scrcpy.device.Size;
+import com.genymobile.scrcpy.opengl.OpenGLRunner;
 
+import android.graphics.Rect;
 import android.view.Surface;
 
 import java.io.IOException;
@@ -16,7 +18,16 @@ public abstract class SurfaceCapture {
         void onInvalidated();
     }
 
+    public interface ContentListener {
+        /**
+         * Notify that the area of the video frames covered by the content changed, without any capture reset.
+         */
+        void onContentRectChanged(Rect contentRect);
+    }
+
     private CaptureListener listener;
+    private ContentListener contentListener;
+    private OpenGLRunner.FrameListener frameListener;
 
     /**
      * Notify the listener that the capture has been invalidated (for example, because its size changed).
@@ -25,6 +36,36 @@ public abstract class SurfaceCapture {
         listener.onInvalidated();
     }
 
+    /**
+     * Notify the content listener, if any, that the content area changed.
+     */
+    protected void notifyContentRectChanged(Rect contentRect) {
+        if (contentListener != null) {
+            contentListener.onContentRectChanged(contentRect);
+        }
+    }
+
+    /**
+     * Set the listener notified of the content area changes (must be called before {@link #init(CaptureListener)}).
+     */
+    public void setContentListener(ContentListener contentListener) {
+        this.contentListener = contentListener;
+    }
+
+    /**
+     * Set the listener notified of the frames queued through OpenGL, if any (must be called before {@link #init(CaptureListener)}).
+     */
+    public void setFrameListener(OpenGLRunner.FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * Return the listener to pass to the {@link OpenGLRunner} rendering to the target surface, if any.
+     */
+    protected OpenGLRunner.FrameListener getFrameListener() {
+        return frameListener;
+    }
+
     /**
      * Called once before the first capture starts.
      */
@@ -57,6 +98,19 @@ public abstract class SurfaceCapture {
      */
     public abstract void start(Surface surface) throws IOException;
 
+    /**
+     * Apply the new size (computed by {@link #prepare()}) to the running capture, without restarting it.
+     * <p>
+     * This is only called when the capture has been started on the same surface and has not been stopped since. A capture rendered
+     * through OpenGL (with a crop, an orientation, an angle...) is never reconfigured.
+     *
+     * @param surface the surface which will be encoded
+     * @return {@code true} if the capture has been reconfigured, {@code false} if it must be restarted
+     */
+    public boolean reconfigure(Surface surface) {
+        return false;
+    }
+
     /**
      * Stop the capture.
      */
@@ -71,6 +125,15 @@ public abstract class SurfaceCapture {
      */
     public abstract Size getSize();
 
+    /**
+     * Return the area of the video frames covered by the content, if it does not cover the whole frame.
+     *
+     * @return the content area, in video pixels, or {@code null} if the content covers the whole frame
+     */
+    public Rect getContentRect() {
+        return null;
+    }
+
     /**
      * Set the maximum capture size (set by the encoder if it does not support the current size).
      *
@@ -6,44 +6,108 @@ import com.genymobile.scrcpy.Options;
 import com.genymobile.scrcpy.device.ConfigurationException;
 import com.genymobile.scrcpy.device.Size;
 import com.genymobile.scrcpy.device.Streamer;
+import com.genymobile.scrcpy.opengl.AffineOpenGLFilter;
+import com.genymobile.scrcpy.opengl.OpenGLRunner;
+import com.genymobile.scrcpy.util.AffineMatrix;
 import com.genymobile.scrcpy.util.Codec;
 import com.genymobile.scrcpy.util.CodecOption;
 import com.genymobile.scrcpy.util.CodecUtils;
+import com.genymobile.scrcpy.util.EncoderCache;
 import com.genymobile.scrcpy.util.IO;
 import com.genymobile.scrcpy.util.Ln;
 import com.genymobile.scrcpy.util.LogUtils;
 
+import android.annotation.TargetApi;
+import android.graphics.Rect;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class SurfaceEncoder implements AsyncProcessor {
+public class SurfaceEncoder implements AsyncProcessor, Streamer.Listener {
 
     private static final int DEFAULT_I_FRAME_INTERVAL = 10; // seconds
+    // With intra refresh, IDR frames are only produced on explicit requests from the server (reconnection, new subscriber...)
+    private static final int INTRA_REFRESH_I_FRAME_INTERVAL = 3600; // seconds
     private static final int REPEAT_FRAME_DELAY_US = 100_000; // repeat after 100ms
     private static final String KEY_MAX_FPS_TO_ENCODER = "max-fps-to-encoder";
 
     // Keep the values in descending order
     private static final int[] MAX_SIZE_FALLBACK = {2560, 1920, 1600, 1280, 1024, 800};
     private static final int MAX_CONSECUTIVE_ERRORS = 3;
+    // While throttled without frame events, the encoder is resumed at this interval to detect activity
+    private static final int THROTTLE_PROBE_INTERVAL_MS = 250;
+
+    // Greater than the number of output buffers of any encoder
+    private static final int OUTPUT_RING_CAPACITY = 64;
 
     private final SurfaceCapture capture;
     private final Streamer streamer;
     private final String encoderName;
     private final List<CodecOption> codecOptions;
     private final int videoBitRate;
-    private final float maxFps;
     private final boolean downsizeOnError;
+    private final boolean lowLatency;
+
+    // Non-null if the encoder may be replaced when it fails definitively
+    private final EncoderFailoverChain failoverChain;
+
+    // Non-null if the low-latency keys are applied (probed again on every session)
+    private LowLatencyProfile lowLatencyProfile;
+
+    private final int requestedIntraRefreshPeriod;
+    // 0 if intra refresh is disabled or not supported by the encoder
+    private int intraRefreshPeriod;
+
+    private final PacketSizeStats packetSizeStats = new PacketSizeStats();
+
+    // Additional encodings of the same capture, rendered by encoderRunner
+    private final List<RenditionEncoder> renditions = new ArrayList<>();
+    // Non-null if the capture is rendered to the encoder(s) through OpenGL, for the renditions or to be notified of each frame
+    private OpenGLRunner encoderRunner;
+
+    // Non-null if the encoder is throttled while the content is static
+    private final FrameRateController frameRateController;
+    // Protect the encoder suspension, decided from the encoded frames and cancelled from the queued frames
+    private final Object throttleLock = new Object();
+    private boolean throttleSuspended;
+    private long lastQueuedTimestampUs = -1;
+    // Set once a queued frame has been notified for the current encoder
+    private volatile boolean frameEventsAvailable;
+    // Without frame events, resume the throttled encoder periodically, to detect activity
+    private Handler throttleHandler;
+    private final Runnable throttleProbe = this::probeThrottledEncoder;
+
+    // May be changed at runtime from the media back-channel
+    private volatile float maxFps;
+    private volatile int requestedBitRate;
+    private volatile boolean paused;
+
+    // Non-null if the bitrate is adapted at runtime
+    private final BitrateController bitrateController;
+
+    // Non-null if the capture size is adapted at runtime to the encoder load
+    private final ResolutionController resolutionController;
+    // Queue time of the frames rendered through OpenGL, to measure the encoding latency
+    private final QueuedFrameTimes queuedFrameTimes;
+    private int currentMaxSize;
+    // The previous max sizes, to step back up
+    private final Deque<Integer> largerMaxSizes = new ArrayDeque<>();
+    private Size currentSize;
 
     private boolean firstFrameSent;
     private int consecutiveErrors;
@@ -53,6 +117,30 @@ public class SurfaceEncoder implements AsyncProcessor {
 
     private final CaptureReset reset = new CaptureReset();
 
+    // Running MediaCodec instance, to apply the parameters requested asynchronously
+    private final Object codecLock = new Object();
+    private MediaCodec runningMediaCodec;
+
+    // Non-null if the output buffers are received through the asynchronous MediaCodec callback
+    private final OutputBufferRing outputRing;
+    // Set by the asynchronous MediaCodec callback
+    private volatile MediaCodec.CodecException asyncCodecError;
+
+    // Reuse a single input surface, so that the capture may be reconfigured without being restarted
+    private final boolean persistentSurface;
+
+    // Delay between a capture reset request and the first frame written after the reset
+    private long pendingResetTime;
+    private boolean pendingResetFast;
+    private int resetCount;
+    private long resetLatencyTotal;
+    private long resetLatencyMax;
+
+    // Delay between the availability of an output buffer and the end of its write (asynchronous mode only)
+    private long outputLatencyCount;
+    private long outputLatencyTotal;
+    private long outputLatencyMax;
+
     public SurfaceEncoder(SurfaceCapture capture, Streamer streamer, Options options) {
         this.capture = capture;
         this.streamer = streamer;
@@ -61,57 +149,180 @@ public class SurfaceEncoder implements AsyncProcessor {
         this.codecOptions = options.getVideoCodecOptions();
         this.encoderName = options.getVideoEncoder();
         this.downsizeOnError = options.getDownsizeOnError();
+        this.lowLatency = options.getVideoLowLatency();
+        this.failoverChain = options.getVideoEncoderFailover();
+        this.requestedIntraRefreshPeriod = options.getIntraRefreshPeriod();
+        this.frameRateController = options.getAdaptiveFps() ? new FrameRateController() : null;
+        if (options.getAdaptiveBitRate()) {
+            int maxBitRate = options.getVideoBitRateMax();
+            if (maxBitRate == 0) {
+                maxBitRate = Math.max(options.getVideoBitRateMin(), videoBitRate);
+            }
+            int minBitRate = options.getVideoBitRateMin();
+            if (minBitRate == 0) {
+                minBitRate = Math.max(1, Math.min(maxBitRate, videoBitRate / 8));
+            }
+            bitrateController = new BitrateController(videoBitRate, minBitRate, maxBitRate);
+        } else {
+            bitrateController = null;
+        }
+        this.requestedBitRate = videoBitRate;
+
+        resolutionController = options.getAdaptiveResolution() ? new ResolutionController() : null;
+        queuedFrameTimes = resolutionController != null ? new QueuedFrameTimes() : null;
+        currentMaxSize = options.getMaxSize();
+
+        boolean async = options.getVideoAsync();
+        if (async && Build.VERSION.SDK_INT < AndroidVersions.API_23_ANDROID_6_0) {
+            Ln.w("Asynchronous video encoding requires Android 6");
+            async = false;
+        }
+        outputRing = async ? new OutputBufferRing(OUTPUT_RING_CAPACITY) : null;
+
+        boolean persistent = options.getPersistentSurface();
+        if (persistent && Build.VERSION.SDK_INT < AndroidVersions.API_23_ANDROID_6_0) {
+            Ln.w("Persistent input surface requires Android 6");
+            persistent = false;
+        }
+        if (persistent && resolutionController != null) {
+            // The capture would render directly into the persistent surface, so the queued frames would not be notified
+            Ln.w("Persistent input surface is not supported with adaptive resolution");
+            persistent = false;
+        }
+        persistentSurface = persistent;
+
+        streamer.setListener(this);
+    }
+
+    private int getCurrentBitRate() {
+        return bitrateController != null ? bitrateController.getBitRate() : requestedBitRate;
+    }
+
+    private MediaFormat prepareEncoder(MediaCodec mediaCodec, Codec codec) {
+        intraRefreshPeriod = 0;
+        if (requestedIntraRefreshPeriod > 0) {
+            if (isIntraRefreshSupported(mediaCodec, codec.getMimeType())) {
+                intraRefreshPeriod = requestedIntraRefreshPeriod;
+                Ln.i("Video intra refresh enabled: period=" + intraRefreshPeriod + " frames");
+            } else {
+                Ln.w("Intra refresh is not supported by the video encoder, using periodic key frames");
+            }
+        }
+        return createFormat(codec.getMimeType(), getCurrentBitRate(), maxFps, intraRefreshPeriod, null, codecOptions);
+    }
+
+    /**
+     * Create the next encoder of the failover chain.
+     *
+     * @return the new encoder, or {@code null} if the chain is exhausted
+     */
+    private MediaCodec createFailoverEncoder(MediaCodec failedCodec) {
+        String failedName = failedCodec.getName();
+        EncoderFailoverChain.Entry entry;
+        while ((entry = failoverChain.next((VideoCodec) streamer.getCodec(), failedName)) != null) {
+            try {
+                MediaCodec mediaCodec = MediaCodec.createByCodecName(entry.getEncoderName());
+                Ln.w("Video encoder '" + failedName + "' failed, switching to " + entry);
+                if (entry.getCodec() != streamer.getCodec()) {
+                    streamer.setCodec(entry.getCodec());
+                }
+                return mediaCodec;
+            } catch (IOException | IllegalArgumentException e) {
+                Ln.w("Could not create video encoder " + entry + ": " + e.getMessage());
+                failedName = entry.getEncoderName();
+            }
+        }
+        return null;
     }
 
     private void streamCapture() throws IOException, ConfigurationException {
-        Codec codec = streamer.getCodec();
-        MediaCodec mediaCodec = createMediaCodec(codec, encoderName);
-        MediaFormat format = createFormat(codec.getMimeType(), videoBitRate, maxFps, codecOptions);
+        MediaCodec mediaCodec = createMediaCodec(streamer.getCodec(), encoderName);
+        MediaFormat format = prepareEncoder(mediaCodec, streamer.getCodec());
 
+        capture.setContentListener(this::onContentRectChanged);
+        if (queuedFrameTimes != null || frameRateController != null) {
+            capture.setFrameListener(this::onFrameQueued);
+        }
         capture.init(reset);
 
+        HandlerThread codecThread = outputRing != null ? startHandlerThread("video-codec") : null;
+        Handler codecHandler = codecThread != null ? new Handler(codecThread.getLooper()) : null;
+
+        HandlerThread throttleThread = frameRateController != null ? startHandlerThread("video-throttle") : null;
+        if (throttleThread != null) {
+            throttleHandler = new Handler(throttleThread.getLooper());
+        }
+
+        if (persistentSurface && !renditions.isEmpty()) {
+            Ln.w("Persistent input surface is not supported with video renditions");
+        }
+        Surface inputSurface = persistentSurface && renditions.isEmpty() ? createPersistentInputSurface() : null;
+        // Only with a persistent input surface, the capture may survive a reset
+        boolean captureRunning = false;
+
         try {
             boolean alive;
             boolean headerWritten = false;
+            // Set if the encoder must be replaced on the next iteration
+            MediaCodec failoverEncoder = null;
 
             do {
                 reset.consumeReset(); // If a capture reset was requested, it is implicitly fulfilled
+                pendingResetTime = reset.consumeRequestTime();
                 capture.prepare();
                 Size size = capture.getSize();
-                if (!headerWritten) {
-                    streamer.writeVideoHeader(size, this.videoBitRate, (int) this.maxFps, (int) (DEFAULT_I_FRAME_INTERVAL * this.maxFps));
-                    headerWritten = true;
-                }
-
-                format.setInteger(MediaFormat.KEY_WIDTH, size.getWidth());
-                format.setInteger(MediaFormat.KEY_HEIGHT, size.getHeight());
+                currentSize = size;
+                resetAdaptiveControllers();
+                writeSessionHeader(size, headerWritten);
+                headerWritten = true;
+                updateFormat(format, size);
 
                 Surface surface = null;
                 boolean mediaCodecStarted = false;
-                boolean captureStarted = false;
+                boolean keepCapture = false;
+                // Set if the encoder itself failed (as opposed to the capture or the connection)
+                boolean encoderFailed = false;
                 try {
-                    mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                    surface = mediaCodec.createInputSurface();
-
-                    capture.start(surface);
-                    captureStarted = true;
+                    if (outputRing != null) {
+                        // The callback must be set before configure(), and is lost on reset()
+                        outputRing.clear();
+                        asyncCodecError = null;
+                        setEncoderCallback(mediaCodec, codecHandler);
+                    }
+                    format = configure(mediaCodec, format, codecHandler);
+                    if (inputSurface != null) {
+                        setInputSurface(mediaCodec, inputSurface);
+                        pendingResetFast = captureRunning && capture.reconfigure(inputSurface);
+                        if (!pendingResetFast) {
+                            if (captureRunning) {
+                                capture.stop();
+                                captureRunning = false;
+                            }
+                            capture.start(inputSurface);
+                        }
+                    } else {
+                        surface = mediaCodec.createInputSurface();
+                        pendingResetFast = false;
+                        startCapture(surface, size);
+                    }
+                    captureRunning = true;
 
-                    mediaCodec.start();
+                    try {
+                        mediaCodec.start();
+                    } catch (IllegalStateException e) {
+                        encoderFailed = true;
+                        throw e;
+                    }
                     mediaCodecStarted = true;
-
-                    // Set the MediaCodec instance to "interrupt" (by signaling an EOS) on reset
-                    reset.setRunningMediaCodec(mediaCodec);
+                    onEncoderStarted(mediaCodec);
 
                     if (stopped.get()) {
                         alive = false;
                     } else {
-                        boolean resetRequested = reset.consumeReset();
-                        if (!resetRequested) {
-                            // If a reset is requested during encode(), it will interrupt the encoding by an EOS
-                            encode(mediaCodec, streamer);
-                        }
+                        encodeUntilReset(mediaCodec);
                         // The capture might have been closed internally (for example if the camera is disconnected)
                         alive = !stopped.get() && !capture.isClosed();
+                        keepCapture = alive && inputSurface != null;
                     }
                 } catch (IllegalStateException | IllegalArgumentException | IOException e) {
                     if (IO.isBrokenPipe(e)) {
@@ -121,35 +332,168 @@ public class SurfaceEncoder implements AsyncProcessor {
 
                     Ln.e("Capture/encoding error: " + e.getClass().getName() + ": " + e.getMessage());
 
-                    if (!prepareRetry(size)) {
-                        throw e;
+                    if (!prepareRetry(size, mediaCodec)) {
+                        if (!firstFrameSent && encoderName == null && (encoderFailed || e instanceof MediaCodec.CodecException)) {
+                            // The default encoder never produced any frame, do not select it anymore on this device (for some time)
+                            EncoderCache.get().markBad(mediaCodec.getName());
+                        }
+                        failoverEncoder = failoverChain != null ? createFailoverEncoder(mediaCodec) : null;
+                        if (failoverEncoder == null) {
+                            throw e;
+                        }
                     }
                     alive = true;
                 } finally {
                     reset.setRunningMediaCodec(null);
-                    if (captureStarted) {
+                    setRunningMediaCodec(null);
+                    if (captureRunning && !keepCapture) {
                         capture.stop();
+                        captureRunning = false;
                     }
-                    if (mediaCodecStarted) {
-                        try {
-                            mediaCodec.stop();
-                        } catch (IllegalStateException e) {
-                            // ignore (just in case)
-                        }
-                    }
-                    mediaCodec.reset();
-                    if (surface != null) {
-                        surface.release();
-                    }
+                    stopEncoder(mediaCodec, mediaCodecStarted, surface);
+                }
+
+                if (failoverEncoder != null) {
+                    // Switch encoder in a single reset (the new codec, if any, is notified by the reconfiguration packet)
+                    mediaCodec.release();
+                    mediaCodec = failoverEncoder;
+                    failoverEncoder = null;
+                    format = prepareEncoder(mediaCodec, streamer.getCodec());
+                    firstFrameSent = false;
+                    consecutiveErrors = 0;
                 }
             } while (alive);
         } finally {
+            if (captureRunning) {
+                capture.stop();
+            }
             mediaCodec.release();
             capture.release();
+            if (inputSurface != null) {
+                inputSurface.release();
+            }
+            if (codecThread != null) {
+                codecThread.quitSafely();
+            }
+            if (throttleThread != null) {
+                throttleThread.quitSafely();
+            }
+            logStats();
         }
     }
 
-    private boolean prepareRetry(Size currentSize) {
+    private static HandlerThread startHandlerThread(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        return thread;
+    }
+
+    private void resetAdaptiveControllers() {
+        if (resolutionController != null) {
+            resolutionController.reset();
+            queuedFrameTimes.clear();
+        }
+        if (frameRateController != null) {
+            // The capture may not render through OpenGL anymore, wait for the frames of this session
+            frameEventsAvailable = false;
+            synchronized (throttleLock) {
+                lastQueuedTimestampUs = -1;
+            }
+        }
+    }
+
+    private void writeSessionHeader(Size size, boolean reconfigured) throws IOException {
+        int gopSize = intraRefreshPeriod > 0 ? intraRefreshPeriod : (int) (DEFAULT_I_FRAME_INTERVAL * this.maxFps);
+        if (!reconfigured) {
+            streamer.writeVideoHeader(size, this.videoBitRate, (int) this.maxFps, gopSize);
+        } else {
+            // The encoder is reconfigured (possibly with a new size), notify the client explicitly
+            streamer.writeVideoReconfigured(size, getCurrentBitRate(), (int) this.maxFps, gopSize);
+        }
+        Rect contentRect = capture.getContentRect();
+        if (contentRect != null) {
+            streamer.writeVideoContentRect(contentRect);
+        }
+    }
+
+    private void updateFormat(MediaFormat format, Size size) {
+        format.setInteger(MediaFormat.KEY_WIDTH, size.getWidth());
+        format.setInteger(MediaFormat.KEY_HEIGHT, size.getHeight());
+        // Keep the bitrate changed at runtime during the previous session
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getCurrentBitRate());
+        if (maxFps > 0) {
+            format.setFloat(KEY_MAX_FPS_TO_ENCODER, maxFps);
+        }
+    }
+
+    private void startCapture(Surface encoderSurface, Size size) throws IOException {
+        if (!renditions.isEmpty() || frameRateController != null || resolutionController != null) {
+            // Render the capture into the main encoder and into all the renditions, notifying each frame (the adaptive resolution compares
+            // the number of frames queued to the encoder to the number of frames it outputs)
+            capture.start(startEncoderRunner(encoderSurface, size));
+        } else {
+            capture.start(encoderSurface);
+        }
+    }
+
+    private void onEncoderStarted(MediaCodec mediaCodec) {
+        // Set the MediaCodec instance to "interrupt" (by signaling an EOS) on reset
+        reset.setRunningMediaCodec(mediaCodec);
+        setRunningMediaCodec(mediaCodec);
+        if (paused) {
+            setSuspended(mediaCodec, true);
+        }
+        if (frameRateController != null) {
+            // The new encoder instance is not throttled
+            throttleHandler.removeCallbacks(throttleProbe);
+            synchronized (throttleLock) {
+                throttleSuspended = false;
+            }
+            frameRateController.reset(System.nanoTime());
+        }
+    }
+
+    private void encodeUntilReset(MediaCodec mediaCodec) throws IOException {
+        boolean resetRequested = reset.consumeReset();
+        if (!resetRequested) {
+            // If a reset is requested during encode(), it will interrupt the encoding by an EOS
+            if (outputRing != null) {
+                encodeAsync(mediaCodec, streamer);
+            } else {
+                encode(mediaCodec, streamer);
+            }
+        }
+    }
+
+    private void stopEncoder(MediaCodec mediaCodec, boolean started, Surface surface) {
+        stopEncoderRunner();
+        if (started) {
+            try {
+                mediaCodec.stop();
+            } catch (IllegalStateException e) {
+                // ignore (just in case)
+            }
+        }
+        mediaCodec.reset();
+        if (surface != null) {
+            surface.release();
+        }
+    }
+
+    private void logStats() {
+        if (!packetSizeStats.isEmpty()) {
+            Ln.i("Video packet sizes" + (intraRefreshPeriod > 0 ? " (intra refresh)" : "") + ": " + packetSizeStats.format());
+        }
+        if (resetCount > 0) {
+            Ln.i("Capture reset latency on " + Build.MANUFACTURER + " " + Build.MODEL + ": " + resetCount + " resets, avg="
+                    + (resetLatencyTotal / resetCount / 1_000_000) + "ms max=" + (resetLatencyMax / 1_000_000) + "ms");
+        }
+        if (frameRateController != null && !frameRateController.isEmpty()) {
+            Ln.i("Video adaptive frame rate: " + frameRateController.formatReport());
+        }
+    }
+
+    private boolean prepareRetry(Size currentSize, MediaCodec mediaCodec) {
         if (firstFrameSent) {
             ++consecutiveErrors;
             if (consecutiveErrors >= MAX_CONSECUTIVE_ERRORS) {
@@ -169,7 +513,7 @@ public class SurfaceEncoder implements AsyncProcessor {
 
         // Downsizing on error is only enabled if an encoding failure occurs before the first frame (downsizing later could be surprising)
 
-        int newMaxSize = chooseMaxSizeFallback(currentSize);
+        int newMaxSize = chooseMaxSizeFallback(currentSize, mediaCodec);
         if (newMaxSize == 0) {
             // Must definitively fail
             return false;
@@ -180,17 +524,25 @@ public class SurfaceEncoder implements AsyncProcessor {
             return false;
         }
 
+        currentMaxSize = newMaxSize;
+        largerMaxSizes.clear();
+
         // Retry with a smaller size
         Ln.i("Retrying with -m" + newMaxSize + "...");
         return true;
     }
 
-    private static int chooseMaxSizeFallback(Size failedSize) {
-        int currentMaxSize = Math.max(failedSize.getWidth(), failedSize.getHeight());
+    private int chooseMaxSizeFallback(Size failedSize, MediaCodec mediaCodec) {
+        // Skip the sizes the encoder cannot do, if its capabilities are known
+        EncoderCache.Entry encoder = EncoderCache.findCachedEncoder(mediaCodec.getName(), streamer.getCodec().getMimeType());
+        int failedMaxSize = Math.max(failedSize.getWidth(), failedSize.getHeight());
         for (int value : MAX_SIZE_FALLBACK) {
-            if (value < currentMaxSize) {
-                // We found a smaller value to reduce the video size
-                return value;
+            if (value < failedMaxSize) {
+                Size size = failedSize.limit(value);
+                if (encoder == null || encoder.supportsSize(size.getWidth(), size.getHeight())) {
+                    // We found a smaller value to reduce the video size
+                    return value;
+                }
             }
         }
 
@@ -209,22 +561,7 @@ public class SurfaceEncoder implements AsyncProcessor {
                 eos = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
                 // On EOS, there might be data or not, depending on bufferInfo.size
                 if (outputBufferId >= 0 && bufferInfo.size > 0) {
-                    ByteBuffer codecBuffer = codec.getOutputBuffer(outputBufferId);
-
-                    boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
-                    if (!isConfig) {
-                        // If this is not a config packet, then it contains a frame
-                        firstFrameSent = true;
-                        consecutiveErrors = 0;
-                    }
-
-                    streamer.writePacket(codecBuffer, bufferInfo);
-
-                    if (streamer.isKeyFrameRequest()) {
-                        Bundle params = new Bundle();
-                        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
-                        codec.setParameters(params);
-                    }
+                    writeOutputBuffer(codec, outputBufferId, bufferInfo);
                 }
             } finally {
                 if (outputBufferId >= 0) {
@@ -234,6 +571,423 @@ public class SurfaceEncoder implements AsyncProcessor {
         } while (!eos);
     }
 
+    private void encodeAsync(MediaCodec codec, Streamer streamer) throws IOException {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+        try {
+            boolean eos;
+            do {
+                int outputBufferId;
+                try {
+                    outputBufferId = outputRing.take(bufferInfo);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while encoding", e);
+                }
+                if (outputBufferId == -1) {
+                    // Handled like a synchronous MediaCodec failure (the encoding may be retried)
+                    MediaCodec.CodecException codecError = asyncCodecError;
+                    if (codecError != null) {
+                        throw codecError;
+                    }
+                    throw new IllegalStateException("Video encoder error");
+                }
+
+                try {
+                    eos = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    if (bufferInfo.size > 0) {
+                        writeOutputBuffer(codec, outputBufferId, bufferInfo);
+                    }
+                } finally {
+                    // Released as soon as written (or copied to the send queue)
+                    codec.releaseOutputBuffer(outputBufferId, false);
+                }
+
+                long latency = System.nanoTime() - outputRing.getTakenAvailableTime();
+                ++outputLatencyCount;
+                outputLatencyTotal += latency;
+                if (latency > outputLatencyMax) {
+                    outputLatencyMax = latency;
+                }
+            } while (!eos);
+        } finally {
+            if (outputLatencyCount > 0) {
+                Ln.d("Video encoder-to-socket latency: avg=" + (outputLatencyTotal / outputLatencyCount / 1000) + "us max="
+                        + (outputLatencyMax / 1000) + "us");
+            }
+        }
+    }
+
+    private void writeOutputBuffer(MediaCodec codec, int outputBufferId, MediaCodec.BufferInfo bufferInfo) throws IOException {
+        ByteBuffer codecBuffer = codec.getOutputBuffer(outputBufferId);
+
+        boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        if (!isConfig) {
+            // If this is not a config packet, then it contains a frame
+            if (!firstFrameSent) {
+                // The encoder works (again) on this device
+                EncoderCache cache = EncoderCache.getIfLoaded();
+                if (cache != null) {
+                    cache.markGood(codec.getName());
+                }
+            }
+            firstFrameSent = true;
+            consecutiveErrors = 0;
+
+            if (pendingResetTime != 0) {
+                recordResetLatency(System.nanoTime() - pendingResetTime);
+                pendingResetTime = 0;
+            }
+
+            packetSizeStats.record(System.nanoTime(), bufferInfo.size, (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+
+            if (frameRateController != null) {
+                adaptFrameRate(codec, bufferInfo);
+            }
+        }
+
+        streamer.writePacket(codecBuffer, bufferInfo);
+
+        // Poll both requests, so that a client request is not left pending once a key frame is requested
+        boolean keyFrameRequest = streamer.isKeyFrameRequest();
+        boolean refreshRequest = streamer.isRefreshRequest();
+        if (keyFrameRequest) {
+            requestSyncFrame(codec);
+        } else if (refreshRequest) {
+            requestRefresh(codec);
+        }
+
+        if (bitrateController != null) {
+            adaptBitRate(codec, streamer);
+        }
+
+        if (resolutionController != null && !isConfig) {
+            adaptResolution(codec, bufferInfo);
+        }
+    }
+
+    private static void requestSyncFrame(MediaCodec codec) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        codec.setParameters(params);
+    }
+
+    private void requestRefresh(MediaCodec codec) {
+        if (intraRefreshPeriod > 0 && Build.VERSION.SDK_INT >= AndroidVersions.API_29_ANDROID_10) {
+            // Set the refresh period again instead of forcing an IDR frame (which would defeat the purpose of intra refresh): encoders
+            // typically restart the refresh cycle, and anyway the client can decode again within a refresh period. Before Android 10, the
+            // period may only be set on configuration.
+            Bundle params = new Bundle();
+            params.putInt(MediaFormat.KEY_INTRA_REFRESH_PERIOD, intraRefreshPeriod);
+            codec.setParameters(params);
+        } else {
+            requestSyncFrame(codec);
+        }
+    }
+
+    private void recordResetLatency(long latency) {
+        ++resetCount;
+        resetLatencyTotal += latency;
+        if (latency > resetLatencyMax) {
+            resetLatencyMax = latency;
+        }
+        Ln.d("Capture reset latency: " + (latency / 1_000_000) + "ms" + (pendingResetFast ? " (capture reconfigured)" : " (capture restarted)"));
+    }
+
+    @TargetApi(AndroidVersions.API_23_ANDROID_6_0)
+    private static Surface createPersistentInputSurface() {
+        return MediaCodec.createPersistentInputSurface();
+    }
+
+    @TargetApi(AndroidVersions.API_23_ANDROID_6_0)
+    private static void setInputSurface(MediaCodec mediaCodec, Surface surface) {
+        mediaCodec.setInputSurface(surface);
+    }
+
+    @TargetApi(AndroidVersions.API_23_ANDROID_6_0)
+    private void setEncoderCallback(MediaCodec mediaCodec, Handler handler) {
+        mediaCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // The input is a Surface
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+                outputRing.put(index, bufferInfo);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Ln.e("MediaCodec error", e);
+                asyncCodecError = e;
+                outputRing.fail();
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                // ignore
+            }
+        }, handler);
+    }
+
+    private void adaptBitRate(MediaCodec codec, Streamer streamer) throws IOException {
+        int newBitRate = bitrateController.update(System.nanoTime(), streamer.getQueueDepth(), streamer.getQueueCapacity(), streamer.getSendTime(),
+                streamer.getDroppedPackets());
+        if (newBitRate != 0) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, newBitRate);
+            codec.setParameters(params);
+            Ln.d("Video bitrate adapted: " + newBitRate + " bps");
+
+            streamer.writeVideoBitrate(newBitRate);
+        }
+    }
+
+    /**
+     * Add a rendition of the capture, encoded along with the main stream.
+     * <p>
+     * Must be called before {@link #start(TerminationListener)}.
+     */
+    public void addRendition(RenditionEncoder rendition) {
+        renditions.add(rendition);
+    }
+
+    private Surface startEncoderRunner(Surface encoderSurface, Size size) throws IOException {
+        encoderRunner = new OpenGLRunner(new AffineOpenGLFilter(AffineMatrix.IDENTITY));
+        encoderRunner.setFrameListener(this::onFrameQueued);
+        Surface glSurface = encoderRunner.start(size, size, encoderSurface);
+        for (RenditionEncoder rendition : renditions) {
+            // A rendition failure disables only this rendition, it must not trigger a retry or a failover of the main encoder
+            rendition.start(size, encoderRunner);
+        }
+        return glSurface;
+    }
+
+    private void stopEncoderRunner() {
+        if (encoderRunner != null) {
+            // Stop rendering before stopping the encoders
+            encoderRunner.stopAndRelease();
+            encoderRunner = null;
+            for (RenditionEncoder rendition : renditions) {
+                rendition.stop();
+            }
+        }
+    }
+
+    @Override
+    public void onRenditionRequested(int scid, boolean enabled) {
+        for (RenditionEncoder rendition : renditions) {
+            if (rendition.getScid() == scid) {
+                rendition.setEnabled(enabled);
+                return;
+            }
+        }
+        Ln.w("Unknown video rendition: " + Integer.toHexString(scid));
+    }
+
+    @Override
+    public void onKeyFrameRequested() {
+        if (frameRateController != null) {
+            synchronized (throttleLock) {
+                // A suspended encoder writes no packets, so the request would not be polled until the content changes
+                if (throttleSuspended && resumeThrottledEncoder(true)) {
+                    throttleSuspended = false;
+                    // Served by this sync frame
+                    streamer.isKeyFrameRequest();
+                    streamer.isRefreshRequest();
+                }
+            }
+        }
+    }
+
+    private void adaptFrameRate(MediaCodec codec, MediaCodec.BufferInfo bufferInfo) {
+        long now = System.nanoTime();
+        boolean idle = frameRateController.update(now, bufferInfo.size, getCurrentBitRate());
+        if (idle) {
+            if (paused) {
+                // Already suspended
+                return;
+            }
+            synchronized (throttleLock) {
+                if (bufferInfo.presentationTimeUs < lastQueuedTimestampUs) {
+                    // A more recent frame has already been queued, let it decide
+                    return;
+                }
+                if (!frameRateController.isThrottled()) {
+                    Ln.d("Static content, throttling the video encoder");
+                    frameRateController.setThrottled(now, true);
+                }
+                // Suspend until the next queued frame (whether this frame is the last one before throttling or a probe)
+                setSuspended(codec, true);
+                throttleSuspended = true;
+            }
+            if (!frameEventsAvailable) {
+                // The queued frames are not notified, resume periodically to detect activity
+                throttleHandler.removeCallbacks(throttleProbe);
+                throttleHandler.postDelayed(throttleProbe, THROTTLE_PROBE_INTERVAL_MS);
+            }
+        } else if (frameRateController.isThrottled()) {
+            // The encoder has been resumed by a new frame (or by the probe), just keep it running
+            throttleHandler.removeCallbacks(throttleProbe);
+            frameRateController.setThrottled(now, false);
+            Ln.d("Content activity, restoring the video frame rate");
+        }
+    }
+
+    private void onFrameQueued(long timestamp) {
+        // Called from the OpenGL thread, just before the frame is queued to the encoder
+        if (queuedFrameTimes != null) {
+            queuedFrameTimes.record(timestamp);
+        }
+        if (frameRateController != null) {
+            frameEventsAvailable = true;
+            synchronized (throttleLock) {
+                lastQueuedTimestampUs = timestamp / 1000;
+                if (throttleSuspended) {
+                    // The content changed: resume immediately (setParameters() is asynchronous, so this frame may still be dropped)
+                    throttleSuspended = false;
+                    probeThrottledEncoder();
+                }
+            }
+        }
+    }
+
+    private void probeThrottledEncoder() {
+        resumeThrottledEncoder(false);
+    }
+
+    private boolean resumeThrottledEncoder(boolean syncFrame) {
+        if (paused) {
+            return false;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, 0);
+        if (syncFrame) {
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        }
+        setRunningParameters(params);
+        return true;
+    }
+
+    private void adaptResolution(MediaCodec codec, MediaCodec.BufferInfo bufferInfo) {
+        if (!queuedFrameTimes.contains(bufferInfo.presentationTimeUs)) {
+            // Not a queued frame (for example, a frame repeated by the encoder)
+            return;
+        }
+
+        int step = resolutionController.update(System.nanoTime(), queuedFrameTimes.getTotal(), maxFps);
+        if (step == ResolutionController.STEP_NONE) {
+            return;
+        }
+
+        int newMaxSize;
+        if (step == ResolutionController.STEP_DOWN) {
+            newMaxSize = chooseMaxSizeFallback(currentSize, codec);
+        } else {
+            Integer larger = largerMaxSizes.peek();
+            newMaxSize = larger != null ? larger : -1;
+        }
+
+        if (newMaxSize == -1 || (step == ResolutionController.STEP_DOWN && newMaxSize == 0) || !capture.setMaxSize(newMaxSize)) {
+            resolutionController.cancelStep();
+            return;
+        }
+
+        if (step == ResolutionController.STEP_DOWN) {
+            largerMaxSizes.push(currentMaxSize);
+            Ln.i("Encoder overloaded, stepping down to -m" + newMaxSize);
+        } else {
+            largerMaxSizes.pop();
+            Ln.i("Encoder headroom, stepping up to " + (newMaxSize != 0 ? "-m" + newMaxSize : "the initial size"));
+        }
+        currentMaxSize = newMaxSize;
+
+        // The new size is signaled in-band by the reconfiguration packet
+        reset.reset();
+    }
+
+    private void setRunningMediaCodec(MediaCodec mediaCodec) {
+        synchronized (codecLock) {
+            runningMediaCodec = mediaCodec;
+        }
+    }
+
+    private void setRunningParameters(Bundle params) {
+        synchronized (codecLock) {
+            if (runningMediaCodec != null) {
+                try {
+                    runningMediaCodec.setParameters(params);
+                } catch (IllegalStateException e) {
+                    // The codec is being stopped, the value will be applied on the next configuration
+                }
+            }
+        }
+    }
+
+    private static void setSuspended(MediaCodec mediaCodec, boolean suspended) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+        mediaCodec.setParameters(params);
+    }
+
+    @Override
+    public void onBitRateRequested(int bitRate) throws IOException {
+        if (bitRate <= 0) {
+            Ln.w("Ignoring invalid video bitrate request: " + bitRate);
+            return;
+        }
+
+        if (bitrateController != null) {
+            // The adaptive bitrate continues from the requested value
+            bitRate = bitrateController.setBitRate(bitRate);
+        }
+        requestedBitRate = bitRate;
+
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        setRunningParameters(params);
+        Ln.i("Video bitrate set to " + bitRate + " bps");
+
+        streamer.writeVideoBitrate(bitRate);
+    }
+
+    @Override
+    public void onMaxFpsRequested(float newMaxFps) {
+        if (newMaxFps <= 0) {
+            Ln.w("Ignoring invalid max fps request: " + newMaxFps);
+            return;
+        }
+
+        // The max fps can only be set on configuration, so reconfigure the encoder (no need to restart the session)
+        maxFps = newMaxFps;
+        Ln.i("Video max fps set to " + newMaxFps);
+        reset.reset();
+    }
+
+    @Override
+    public void onPauseRequested(boolean pause) {
+        paused = pause;
+
+        // Frames are not encoded at all while suspended
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, pause ? 1 : 0);
+        if (!pause) {
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        }
+        setRunningParameters(params);
+    }
+
+    private void onContentRectChanged(Rect contentRect) {
+        // Called from the capture thread, the encoder keeps running
+        try {
+            streamer.writeVideoContentRect(contentRect);
+        } catch (IOException e) {
+            if (!IO.isBrokenPipe(e)) {
+                Ln.w("Could not write the video content rect: " + e.getMessage());
+            }
+        }
+    }
+
     private static MediaCodec createMediaCodec(Codec codec, String encoderName) throws IOException, ConfigurationException {
         if (encoderName != null) {
             Ln.d("Creating encoder by name: '" + encoderName + "'");
@@ -261,7 +1015,11 @@ public class SurfaceEncoder implements AsyncProcessor {
         }
 
         try {
-            MediaCodec mediaCodec = MediaCodec.createEncoderByType(codec.getMimeType());
+            // Skip the encoders known to fail on this device
+            String defaultName = EncoderCache.findDefaultEncoderName(codec.getMimeType());
+            MediaCodec mediaCodec = defaultName != null
+                    ? MediaCodec.createByCodecName(defaultName)
+                    : MediaCodec.createEncoderByType(codec.getMimeType());
 
             Ln.d("Using video encoder: '" + mediaCodec.getName() + "'");
 
@@ -273,7 +1031,95 @@ public class SurfaceEncoder implements AsyncProcessor {
         }
     }
 
-    private static MediaFormat createFormat(String videoMimeType, int bitRate, float maxFps, List<CodecOption> codecOptions) {
+    private MediaFormat configure(MediaCodec mediaCodec, MediaFormat format, Handler codecHandler) {
+        if (lowLatency) {
+            // Start every session from the full profile: the keys rejected in a previous session (for example for another size) may be
+            // accepted now
+            lowLatencyProfile = LowLatencyProfile.probe(mediaCodec, format.getString(MediaFormat.KEY_MIME), maxFps);
+            format = rebuildFormat(format, lowLatencyProfile);
+        }
+
+        try {
+            mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            if (lowLatencyProfile == null || lowLatencyProfile.isEmpty()) {
+                throw e;
+            }
+
+            // Only blame the low-latency keys if the same format without them is accepted (otherwise, the error is unrelated, for example
+            // an unsupported size, and must be handled as such)
+            resetEncoder(mediaCodec, codecHandler);
+            MediaFormat bareFormat = rebuildFormat(format, null);
+            mediaCodec.configure(bareFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            Ln.w("Video encoder configuration failed with the low-latency keys: " + e.getMessage());
+            format = configureWithoutRejectedKeys(mediaCodec, format, bareFormat, codecHandler);
+        }
+
+        if (lowLatencyProfile != null) {
+            Ln.i("Low-latency video encoder format: " + mediaCodec.getOutputFormat());
+        }
+        return format;
+    }
+
+    /**
+     * Remove the low-latency keys one by one (the least probable to be supported first), until the encoder accepts the configuration.
+     * <p>
+     * The bare format (without any low-latency key) is known to be accepted.
+     */
+    private MediaFormat configureWithoutRejectedKeys(MediaCodec mediaCodec, MediaFormat format, MediaFormat bareFormat,
+            Handler codecHandler) {
+        while (true) {
+            String removedKey = lowLatencyProfile.removeLastKey();
+            Ln.w("Retrying the video encoder configuration without low-latency key " + removedKey);
+            resetEncoder(mediaCodec, codecHandler);
+            if (lowLatencyProfile.isEmpty()) {
+                mediaCodec.configure(bareFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                return bareFormat;
+            }
+
+            MediaFormat newFormat = rebuildFormat(format, lowLatencyProfile);
+            try {
+                mediaCodec.configure(newFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                return newFormat;
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                Ln.d("Video encoder configuration failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void resetEncoder(MediaCodec mediaCodec, Handler codecHandler) {
+        mediaCodec.reset();
+        if (outputRing != null) {
+            // The callback is lost on reset()
+            setEncoderCallback(mediaCodec, codecHandler);
+        }
+    }
+
+    private MediaFormat rebuildFormat(MediaFormat format, LowLatencyProfile profile) {
+        // A key cannot be removed from a MediaFormat before Android 10, so rebuild it (with the current session values)
+        MediaFormat newFormat = createFormat(format.getString(MediaFormat.KEY_MIME), format.getInteger(MediaFormat.KEY_BIT_RATE), maxFps,
+                intraRefreshPeriod, profile, codecOptions);
+        newFormat.setInteger(MediaFormat.KEY_WIDTH, format.getInteger(MediaFormat.KEY_WIDTH));
+        newFormat.setInteger(MediaFormat.KEY_HEIGHT, format.getInteger(MediaFormat.KEY_HEIGHT));
+        return newFormat;
+    }
+
+    private static boolean isIntraRefreshSupported(MediaCodec mediaCodec, String mimeType) {
+        if (Build.VERSION.SDK_INT < AndroidVersions.API_24_ANDROID_7_0) {
+            // KEY_INTRA_REFRESH_PERIOD is not available
+            return false;
+        }
+        try {
+            MediaCodecInfo.CodecCapabilities caps = mediaCodec.getCodecInfo().getCapabilitiesForType(mimeType);
+            return caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static MediaFormat createFormat(String videoMimeType, int bitRate, float maxFps, int intraRefreshPeriod,
+            LowLatencyProfile lowLatencyProfile, List<CodecOption> codecOptions) {
         MediaFormat format = new MediaFormat();
         format.setString(MediaFormat.KEY_MIME, videoMimeType);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
@@ -283,7 +1129,13 @@ public class SurfaceEncoder implements AsyncProcessor {
         if (Build.VERSION.SDK_INT >= AndroidVersions.API_24_ANDROID_7_0) {
             format.setInteger(MediaFormat.KEY_COLOR_RANGE, MediaFormat.COLOR_RANGE_LIMITED);
         }
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, DEFAULT_I_FRAME_INTERVAL);
+        if (intraRefreshPeriod > 0) {
+            // Gradual decoder refresh: the frame is refreshed progressively over the period, instead of periodic (large) IDR frames
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, intraRefreshPeriod); // frames
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, INTRA_REFRESH_I_FRAME_INTERVAL);
+        } else {
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, DEFAULT_I_FRAME_INTERVAL);
+        }
         // display the very first frame, and recover from bad quality when no new frames
         format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, REPEAT_FRAME_DELAY_US); // µs
         if (maxFps > 0) {
@@ -293,6 +1145,11 @@ public class SurfaceEncoder implements AsyncProcessor {
             format.setFloat(KEY_MAX_FPS_TO_ENCODER, maxFps);
         }
 
+        if (lowLatencyProfile != null) {
+            // Applied before the explicit codec options, which take precedence
+            lowLatencyProfile.apply(format);
+        }
+
         if (codecOptions != null) {
             for (CodecOption option : codecOptions) {
                 String key = option.getKey();
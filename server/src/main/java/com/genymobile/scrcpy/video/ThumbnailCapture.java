@@ -0,0 +1,181 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.AsyncProcessor;
+import com.genymobile.scrcpy.Options;
+import com.genymobile.scrcpy.device.DisplayInfo;
+import com.genymobile.scrcpy.device.Size;
+import com.genymobile.scrcpy.device.Streamer;
+import com.genymobile.scrcpy.util.IO;
+import com.genymobile.scrcpy.util.Ln;
+import com.genymobile.scrcpy.wrappers.ServiceManager;
+
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodically capture a downscaled frame of the display, and stream it as an independent JPEG image along with the video packets.
+ * <p>
+ * The display is mirrored into a small {@link ImageReader}, polled at the thumbnail interval. A thumbnail is only sent if the image changed
+ * since the last one, which is detected by a hash of the (already downscaled) pixels.
+ */
+public final class ThumbnailCapture implements AsyncProcessor {
+
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final Streamer streamer;
+    private final int displayId;
+    private final int maxSize;
+    private final int interval; // ms
+    private final int quality;
+
+    private final DisplaySizeMonitor displaySizeMonitor;
+    private final AtomicBoolean reset = new AtomicBoolean();
+
+    private Thread thread;
+
+    private long sentCount;
+    private long skippedCount;
+
+    public ThumbnailCapture(Streamer streamer, Options options) {
+        this.streamer = streamer;
+        this.displayId = options.getDisplayId();
+        this.maxSize = options.getThumbnailSize();
+        this.interval = options.getThumbnailInterval();
+        this.quality = options.getThumbnailQuality();
+        this.displaySizeMonitor = new DisplaySizeMonitor(options.getDisplaySettleDelay());
+    }
+
+    @Override
+    public void start(TerminationListener listener) {
+        thread = new Thread(() -> {
+            try {
+                displaySizeMonitor.start(displayId, () -> reset.set(true));
+                capture();
+            } catch (IOException e) {
+                if (!IO.isBrokenPipe(e)) {
+                    Ln.e("Thumbnail capture error", e);
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            } finally {
+                displaySizeMonitor.stopAndRelease();
+                Ln.d("Thumbnail capture stopped (" + sentCount + " sent, " + skippedCount + " unchanged)");
+                listener.onTerminated(false);
+            }
+        }, "thumbnail");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    private void capture() throws IOException, InterruptedException {
+        while (!Thread.currentThread().isInterrupted()) {
+            DisplayInfo displayInfo = ServiceManager.getDisplayManager().getDisplayInfo(displayId);
+            if (displayInfo == null) {
+                throw new IOException("Unknown display id: " + displayId);
+            }
+
+            Size displaySize = displayInfo.getSize();
+            displaySizeMonitor.setSessionDisplaySize(displaySize);
+            reset.set(false);
+
+            Size size = displaySize.limit(maxSize);
+            ImageReader imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), PixelFormat.RGBA_8888, 2);
+            DisplayMirror mirror = null;
+            try {
+                mirror = DisplayMirror.create("scrcpy-thumbnail", displayId, displayInfo, size, imageReader.getSurface());
+                Ln.i("Thumbnail stream: " + size + " every " + interval + "ms");
+                captureSession(imageReader, size);
+            } finally {
+                if (mirror != null) {
+                    mirror.release();
+                }
+                imageReader.close();
+            }
+        }
+    }
+
+    private void captureSession(ImageReader imageReader, Size size) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Force the first thumbnail of the session
+        boolean first = true;
+        int lastHash = 0;
+
+        while (!reset.get()) {
+            Thread.sleep(interval);
+
+            Bitmap bitmap;
+            long ptsUs;
+            try (Image image = imageReader.acquireLatestImage()) {
+                if (image == null) {
+                    // No new frame since the last poll
+                    ++skippedCount;
+                    continue;
+                }
+
+                int hash = hash(image);
+                if (!first && hash == lastHash) {
+                    ++skippedCount;
+                    continue;
+                }
+                first = false;
+                lastHash = hash;
+
+                bitmap = ScreenshotCapture.toBitmap(image);
+                ptsUs = image.getTimestamp() / 1000;
+            }
+
+            out.reset();
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            } finally {
+                bitmap.recycle();
+            }
+
+            streamer.writeThumbnail(size, ptsUs, out.toByteArray());
+            ++sentCount;
+        }
+    }
+
+    /**
+     * Compute a FNV-1a hash of the visible pixels (the row padding is ignored).
+     */
+    private static int hash(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int rowLength = image.getWidth() * plane.getPixelStride();
+        int height = image.getHeight();
+
+        int hash = FNV_OFFSET_BASIS;
+        for (int y = 0; y < height; ++y) {
+            int rowStart = y * rowStride;
+            // 4 bytes at a time (RGBA_8888), the rows are 4-byte aligned
+            for (int offset = rowStart; offset < rowStart + rowLength; offset += 4) {
+                hash ^= buffer.getInt(offset);
+                hash *= FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+}
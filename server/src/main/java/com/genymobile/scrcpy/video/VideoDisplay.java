@@ -0,0 +1,37 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.device.NewDisplay;
+
+/**
+ * Additional display captured and encoded by its own video pipeline, sent as a separate stream identified by its own scid.
+ */
+public final class VideoDisplay {
+
+    private final int scid;
+    private final int displayId;
+    private final NewDisplay newDisplay;
+
+    public VideoDisplay(int scid, int displayId, NewDisplay newDisplay) {
+        this.scid = scid;
+        this.displayId = displayId;
+        this.newDisplay = newDisplay;
+    }
+
+    public int getScid() {
+        return scid;
+    }
+
+    /**
+     * Return the id of the display to mirror (meaningless if {@link #getNewDisplay()} is not {@code null}).
+     */
+    public int getDisplayId() {
+        return displayId;
+    }
+
+    /**
+     * Return the new virtual display to create, or {@code null} to mirror an existing display.
+     */
+    public NewDisplay getNewDisplay() {
+        return newDisplay;
+    }
+}
@@ -104,6 +104,28 @@ public class VideoFilter {
         transform = AffineMatrix.rotate(ccwAngle).withAspectRatio(size).fromCenter().multiply(transform);
     }
 
+    /**
+     * Center the current image in a larger canvas, the remaining area being black.
+     */
+    public void addLetterbox(Size canvasSize) {
+        if (size.equals(canvasSize)) {
+            // The transform MUST NOT be null, so that the canvas may be changed at runtime
+            if (transform == null) {
+                transform = AffineMatrix.IDENTITY;
+            }
+            return;
+        }
+
+        double w = (double) size.getWidth() / canvasSize.getWidth();
+        double h = (double) size.getHeight() / canvasSize.getHeight();
+        double x = (1 - w) / 2;
+        double y = (1 - h) / 2;
+
+        // The inverse of a crop
+        transform = AffineMatrix.reframe(x, y, w, h).invert().multiply(transform);
+        size = canvasSize;
+    }
+
     public void addResize(Size targetSize) {
         if (size.equals(targetSize)) {
             return;
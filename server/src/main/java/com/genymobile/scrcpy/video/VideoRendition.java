@@ -0,0 +1,37 @@
+package com.genymobile.scrcpy.video;
+
+/**
+ * Additional video encoding of the same capture (typically a small preview), sent as a separate stream identified by its own scid.
+ */
+public final class VideoRendition {
+
+    public static final int DEFAULT_BIT_RATE = 1_000_000;
+
+    private final int scid;
+    private final int maxSize;
+    private final float maxFps;
+    private final int bitRate;
+
+    public VideoRendition(int scid, int maxSize, float maxFps, int bitRate) {
+        this.scid = scid;
+        this.maxSize = maxSize;
+        this.maxFps = maxFps;
+        this.bitRate = bitRate;
+    }
+
+    public int getScid() {
+        return scid;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public float getMaxFps() {
+        return maxFps;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+}
@@ -0,0 +1,125 @@
+package com.genymobile.scrcpy.util;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+
+/**
+ * Compare the heap allocations per media packet of the stream copy path and of the gathering write path.
+ * <p>
+ * Run with {@code ./gradlew :server:testDebugUnitTest -Pbenchmark --tests '*Benchmark'}.
+ */
+public class IOBenchmark {
+
+    private static final int PACKET_SIZE = 32 * 1024; // a typical 1440p frame at 16 Mbps
+    private static final int HEADER_SIZE = 21;
+    private static final int WARMUP_PACKETS = 2_000;
+    private static final int PACKETS = 10_000;
+
+    private interface PacketWriter {
+        void write(ByteBuffer header, ByteBuffer payload) throws IOException;
+    }
+
+    @Before
+    public void checkEnabled() {
+        Assume.assumeTrue("Benchmarks disabled", Boolean.getBoolean("scrcpy.benchmark"));
+    }
+
+    private static Method getAllocatedBytesMethod() {
+        // Not part of the Android API (and not available on all JVMs)
+        try {
+            Class<?> factoryClass = Class.forName("java.lang.management.ManagementFactory");
+            Object threadMXBean = factoryClass.getMethod("getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (!beanClass.isInstance(threadMXBean)) {
+                return null;
+            }
+            return beanClass.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static long getAllocatedBytes(Method method) throws ReflectiveOperationException {
+        Object threadMXBean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+        return (long) method.invoke(threadMXBean, Thread.currentThread().getId());
+    }
+
+    private static Thread startDrain(Pipe pipe) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = Channels.newInputStream(pipe.source())) {
+                while (in.read(buffer) != -1) {
+                    // drop
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static long measureBytesPerPacket(PacketWriter writer) throws Exception {
+        Method allocatedBytes = getAllocatedBytesMethod();
+        Assume.assumeNotNull(allocatedBytes);
+
+        ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        // Like a MediaCodec output buffer
+        ByteBuffer payload = ByteBuffer.allocateDirect(PACKET_SIZE);
+
+        for (int i = 0; i < WARMUP_PACKETS; ++i) {
+            header.clear();
+            payload.clear();
+            writer.write(header, payload);
+        }
+
+        long before = getAllocatedBytes(allocatedBytes);
+        for (int i = 0; i < PACKETS; ++i) {
+            header.clear();
+            payload.clear();
+            writer.write(header, payload);
+        }
+        long after = getAllocatedBytes(allocatedBytes);
+        return (after - before) / PACKETS;
+    }
+
+    @Test
+    public void benchmarkPacketAllocations() throws Exception {
+        Pipe pipe = Pipe.open();
+        Thread drain = startDrain(pipe);
+
+        long copyBytes;
+        long gatheredBytes;
+        try (OutputStream stream = Channels.newOutputStream(pipe.sink())) {
+            // Previous path: the header and the payload are copied to the heap, and written separately
+            byte[] headerArray = new byte[HEADER_SIZE];
+            copyBytes = measureBytesPerPacket((header, payload) -> {
+                IO.writeFully(stream, ByteBuffer.wrap(headerArray));
+                IO.writeFully(stream, payload);
+            });
+
+            // Current path: a single gathering write from the direct buffers
+            ByteBuffer[] buffers = new ByteBuffer[2];
+            gatheredBytes = measureBytesPerPacket((header, payload) -> {
+                buffers[0] = header;
+                buffers[1] = payload;
+                IO.writeFully(pipe.sink(), buffers);
+            });
+        }
+        drain.join();
+
+        System.out.println("Heap bytes allocated per " + PACKET_SIZE + "-byte packet: copy=" + copyBytes + " gathered=" + gatheredBytes);
+        Assert.assertTrue(copyBytes >= PACKET_SIZE);
+        Assert.assertTrue(gatheredBytes < PACKET_SIZE / 100);
+    }
+}
@@ -0,0 +1,50 @@
+package com.genymobile.scrcpy.util;
+
+import com.genymobile.scrcpy.video.VideoCodec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class NalUnitsTest {
+
+    @Test
+    public void testFindNextNalUnit() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x67, 0x42, 0, 0, 1, 0x68, 0x01, 0, 0, 1});
+
+        Assert.assertEquals(4, NalUnits.findNextNalUnit(buffer, 0, buffer.limit()));
+        Assert.assertEquals(9, NalUnits.findNextNalUnit(buffer, 4, buffer.limit()));
+        // A start code at the very end of the buffer is not followed by any NAL unit
+        Assert.assertEquals(-1, NalUnits.findNextNalUnit(buffer, 9, buffer.limit()));
+        // The end bound is respected
+        Assert.assertEquals(-1, NalUnits.findNextNalUnit(buffer, 4, 9));
+    }
+
+    @Test
+    public void testH264DisposableFrame() {
+        // Non-IDR slice with nal_ref_idc == 0
+        Assert.assertTrue(NalUnits.isDisposableFrame(VideoCodec.H264, ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x01, (byte) 0x9A})));
+        // Non-IDR slice with nal_ref_idc != 0
+        Assert.assertFalse(NalUnits.isDisposableFrame(VideoCodec.H264, ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x41, (byte) 0x9A})));
+        // IDR slice
+        Assert.assertFalse(NalUnits.isDisposableFrame(VideoCodec.H264, ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x65, (byte) 0x88})));
+        // The first VCL NAL unit is found after a SEI
+        Assert.assertTrue(NalUnits.isDisposableFrame(VideoCodec.H264, ByteBuffer.wrap(new byte[] {0, 0, 1, 0x06, 0x05, 0, 0, 1, 0x01, 0x00})));
+    }
+
+    @Test
+    public void testH265DisposableFrame() {
+        // TRAIL_N (type 0)
+        Assert.assertTrue(NalUnits.isDisposableFrame(VideoCodec.H265, ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x00, 0x01, (byte) 0xAF})));
+        // TRAIL_R (type 1)
+        Assert.assertFalse(NalUnits.isDisposableFrame(VideoCodec.H265, ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x02, 0x01, (byte) 0xAF})));
+        // IDR_W_RADL (type 19)
+        Assert.assertFalse(NalUnits.isDisposableFrame(VideoCodec.H265, ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x26, 0x01, (byte) 0xAF})));
+    }
+
+    @Test
+    public void testAv1NeverDisposable() {
+        Assert.assertFalse(NalUnits.isDisposableFrame(VideoCodec.AV1, ByteBuffer.wrap(new byte[] {0, 0, 1, 0x01, 0x00})));
+    }
+}
@@ -0,0 +1,253 @@
+package com.genymobile.scrcpy.util;
+
+import com.genymobile.scrcpy.audio.AudioCodec;
+import com.genymobile.scrcpy.video.VideoCodec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ParameterSetsTest {
+
+    private static final byte[] H264_SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01};
+    private static final byte[] H264_PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] H264_SPS_2 = {0x67, 0x64, 0x00, 0x28, (byte) 0xAC, 0x2B};
+    private static final byte[] H264_PPS_2 = {0x68, (byte) 0xEE, 0x3C, (byte) 0xB0};
+    private static final byte[] H264_IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33};
+    private static final byte[] H264_P = {0x41, (byte) 0x9A, 0x02, 0x04};
+
+    private static final byte[] H265_VPS = {0x40, 0x01, 0x0C, 0x01, (byte) 0xFF};
+    private static final byte[] H265_SPS = {0x42, 0x01, 0x01, 0x01, 0x60};
+    private static final byte[] H265_PPS = {0x44, 0x01, (byte) 0xC1, 0x72};
+    private static final byte[] H265_IDR = {0x26, 0x01, (byte) 0xAF, 0x06, 0x30};
+
+    // Headers of an H.264 stream encoded by x264 (high profile, 1280x720), with emulation prevention bytes in the SPS
+    private static final byte[] X264_AUD = {0x09, (byte) 0xF0};
+    private static final byte[] X264_SEI = {0x06, 0x05, 0x10, (byte) 0xDC, 0x45, (byte) 0xE9, (byte) 0xBD, (byte) 0xE6, (byte) 0xD9, 0x48,
+            (byte) 0xB7, (byte) 0x96, 0x2C, (byte) 0xD8, 0x20, (byte) 0xD9, 0x23, (byte) 0xEE, (byte) 0xEF, (byte) 0x80};
+    private static final byte[] X264_SPS = {0x67, 0x64, 0x00, 0x1F, (byte) 0xAC, (byte) 0xD9, 0x40, 0x50, 0x05, (byte) 0xBB, 0x01, 0x10, 0x00,
+            0x00, 0x03, 0x00, 0x10, 0x00, 0x00, 0x03, 0x03, (byte) 0xC0, (byte) 0xF1, (byte) 0x83, 0x19, 0x60};
+    private static final byte[] X264_PPS = {0x68, (byte) 0xEB, (byte) 0xE3, (byte) 0xCB, 0x22, (byte) 0xC0};
+    // Same PPS, with pic_parameter_set_id 1
+    private static final byte[] X264_PPS_ID1 = {0x68, 0x5B, (byte) 0xE3, (byte) 0xCB, 0x22, (byte) 0xC0};
+    private static final byte[] X264_IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x2B, (byte) 0xFF, (byte) 0xFE, (byte) 0xF6, 0x3A};
+
+    // Headers of an H.265 stream encoded by x265 (main profile), with emulation prevention bytes in the profile_tier_level
+    private static final byte[] X265_AUD = {0x46, 0x01, 0x50};
+    private static final byte[] X265_VPS = {0x40, 0x01, 0x0C, 0x01, (byte) 0xFF, (byte) 0xFF, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90,
+            0x00, 0x00, 0x03, 0x00, 0x00, 0x03, 0x00, 0x5D, (byte) 0x95, (byte) 0x98, 0x09};
+    private static final byte[] X265_SPS = {0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00, 0x00, 0x03, 0x00, 0x00,
+            0x03, 0x00, 0x5D, (byte) 0xA0, 0x02, (byte) 0x80, (byte) 0x80, 0x2D, 0x16, 0x59, 0x59, (byte) 0xA4, (byte) 0x93, 0x2B, (byte) 0xC0,
+            0x5A, 0x70, (byte) 0x80, 0x00, 0x01, (byte) 0xF4, (byte) 0x80, 0x00, 0x3A, (byte) 0x98, 0x04};
+    // Same SPS, with sps_seq_parameter_set_id 1
+    private static final byte[] X265_SPS_ID1 = {0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00, 0x00, 0x03, 0x00,
+            0x00, 0x03, 0x00, 0x5D, 0x50, 0x02, (byte) 0x80, (byte) 0x80, 0x2D, 0x16, 0x59, 0x59, (byte) 0xA4, (byte) 0x93, 0x2B, (byte) 0xC0,
+            0x5A, 0x70, (byte) 0x80, 0x00, 0x01, (byte) 0xF4, (byte) 0x80, 0x00, 0x3A, (byte) 0x98, 0x04};
+    private static final byte[] X265_PPS = {0x44, 0x01, (byte) 0xC1, 0x72, (byte) 0xB4, 0x62, 0x40};
+    private static final byte[] X265_PREFIX_SEI = {0x4E, 0x01, 0x05, 0x10, 0x2C, (byte) 0xA2, (byte) 0xDE, 0x09, (byte) 0xB5, 0x17, 0x47,
+            (byte) 0xDB, (byte) 0xBB, 0x55, (byte) 0xA4, (byte) 0xFE, 0x7F, (byte) 0xC2, (byte) 0xFC, 0x4E, (byte) 0x80};
+    private static final byte[] X265_IDR = {0x26, 0x01, (byte) 0xAF, 0x1D, (byte) 0x80, (byte) 0xA3, 0x17};
+
+    private static ByteBuffer annexB(byte[]... nalUnits) {
+        return annexB(4, nalUnits);
+    }
+
+    private static ByteBuffer annexB(int startCodeLength, byte[]... nalUnits) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (byte[] nalUnit : nalUnits) {
+            for (int i = 0; i < startCodeLength - 1; ++i) {
+                buffer.put((byte) 0);
+            }
+            buffer.put((byte) 1);
+            buffer.put(nalUnit);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertNull(new ParameterSets(VideoCodec.H264).get());
+        Assert.assertNull(new ParameterSets(VideoCodec.AV1).get());
+    }
+
+    @Test
+    public void testH264ConfigPacket() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+        ByteBuffer config = annexB(H264_SPS, H264_PPS);
+        int limit = config.limit();
+
+        Assert.assertTrue(parameterSets.update(config, true));
+        // The buffer is not consumed
+        Assert.assertEquals(0, config.position());
+        Assert.assertEquals(limit, config.limit());
+
+        Assert.assertArrayEquals(toArray(annexB(H264_SPS, H264_PPS)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH264ThreeByteStartCodes() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+        Assert.assertTrue(parameterSets.update(annexB(3, H264_SPS, H264_PPS), true));
+
+        // The parameter sets are always returned with 4-byte start codes
+        Assert.assertArrayEquals(toArray(annexB(4, H264_SPS, H264_PPS)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH264MixedStartCodes() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(new byte[] {0, 0, 1}).put(H264_SPS);
+        buffer.put(new byte[] {0, 0, 0, 1}).put(H264_PPS);
+        buffer.put(new byte[] {0, 0, 1}).put(H264_IDR);
+        buffer.flip();
+
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+        Assert.assertTrue(parameterSets.update(buffer, false));
+
+        // The zero byte of the 4-byte start code does not belong to the SPS
+        Assert.assertArrayEquals(toArray(annexB(H264_SPS, H264_PPS)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH264InBandParameterSets() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+        parameterSets.update(annexB(H264_SPS, H264_PPS), true);
+
+        // A key frame repeating updated parameter sets in-band
+        Assert.assertTrue(parameterSets.update(annexB(H264_SPS_2, H264_PPS_2, H264_IDR), false));
+        Assert.assertArrayEquals(toArray(annexB(H264_SPS_2, H264_PPS_2)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH264KeyFrameWithoutParameterSets() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+        parameterSets.update(annexB(H264_SPS, H264_PPS), true);
+
+        Assert.assertFalse(parameterSets.update(annexB(H264_IDR), false));
+        Assert.assertFalse(parameterSets.update(annexB(H264_P), false));
+        Assert.assertArrayEquals(toArray(annexB(H264_SPS, H264_PPS)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH264ParameterSetsAfterSlice() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+        parameterSets.update(annexB(H264_SPS, H264_PPS), true);
+
+        // Only the NAL units before the first slice are inspected
+        Assert.assertFalse(parameterSets.update(annexB(H264_IDR, H264_SPS_2), false));
+        Assert.assertArrayEquals(toArray(annexB(H264_SPS, H264_PPS)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH264PartialUpdate() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+        parameterSets.update(annexB(H264_SPS, H264_PPS), true);
+
+        // Only the PPS is updated
+        Assert.assertTrue(parameterSets.update(annexB(H264_PPS_2, H264_IDR), false));
+        Assert.assertArrayEquals(toArray(annexB(H264_SPS, H264_PPS_2)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH265ConfigPacket() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H265);
+        Assert.assertTrue(parameterSets.update(annexB(H265_VPS, H265_SPS, H265_PPS), true));
+        Assert.assertArrayEquals(toArray(annexB(H265_VPS, H265_SPS, H265_PPS)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH265InBandParameterSets() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H265);
+        Assert.assertTrue(parameterSets.update(annexB(3, H265_VPS, H265_SPS, H265_PPS, H265_IDR), false));
+        Assert.assertArrayEquals(toArray(annexB(H265_VPS, H265_SPS, H265_PPS)), toArray(parameterSets.get()));
+
+        Assert.assertFalse(parameterSets.update(annexB(H265_IDR), false));
+    }
+
+    @Test
+    public void testH264ConfigPacketWithoutParameterSets() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+        byte[] data = {1, 2, 3, 4, 5};
+
+        // Cached as is if no parameter set could be extracted
+        Assert.assertTrue(parameterSets.update(ByteBuffer.wrap(data), true));
+        Assert.assertArrayEquals(data, toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testAv1Passthrough() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.AV1);
+        // AV1CodecConfigurationRecord followed by a sequence header OBU: must not be parsed as Annex B
+        byte[] config = {(byte) 0x81, 0x00, 0x0C, 0x00, 0x0A, 0x0B, 0x00, 0x00, 0x00, 0x01, 0x67};
+
+        Assert.assertTrue(parameterSets.update(ByteBuffer.wrap(config), true));
+        Assert.assertArrayEquals(config, toArray(parameterSets.get()));
+
+        // Frames never update the cache
+        Assert.assertFalse(parameterSets.update(ByteBuffer.wrap(new byte[] {0x12, 0x00, 0x0A}), false));
+        Assert.assertArrayEquals(config, toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testAudioPassthrough() {
+        ParameterSets parameterSets = new ParameterSets(AudioCodec.OPUS);
+        byte[] config = {0x4F, 0x70, 0x75, 0x73, 0x48, 0x65, 0x61, 0x64};
+
+        Assert.assertTrue(parameterSets.update(ByteBuffer.wrap(config), true));
+        Assert.assertArrayEquals(config, toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH264CapturedKeyFrame() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+
+        // The AUD and the SEI precede the parameter sets
+        Assert.assertTrue(parameterSets.update(annexB(X264_AUD, X264_SEI, X264_SPS, X264_PPS, X264_IDR), false));
+        Assert.assertArrayEquals(toArray(annexB(X264_SPS, X264_PPS)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH264SeveralParameterSets() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H264);
+        Assert.assertTrue(parameterSets.update(annexB(X264_SPS, X264_PPS, X264_PPS_ID1), true));
+        Assert.assertArrayEquals(toArray(annexB(X264_SPS, X264_PPS, X264_PPS_ID1)), toArray(parameterSets.get()));
+
+        // An in-band PPS only replaces the PPS with the same id
+        Assert.assertTrue(parameterSets.update(annexB(X264_AUD, H264_PPS, X264_IDR), false));
+        Assert.assertArrayEquals(toArray(annexB(X264_SPS, H264_PPS, X264_PPS_ID1)), toArray(parameterSets.get()));
+
+        // A new config packet replaces all the parameter sets
+        Assert.assertTrue(parameterSets.update(annexB(X264_SPS, X264_PPS), true));
+        Assert.assertArrayEquals(toArray(annexB(X264_SPS, X264_PPS)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH265CapturedKeyFrame() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H265);
+
+        // The AUD precedes the parameter sets, and a prefix SEI follows them
+        ByteBuffer packet = annexB(X265_AUD, X265_VPS, X265_SPS, X265_PPS, X265_PREFIX_SEI, X265_IDR);
+        Assert.assertTrue(parameterSets.update(packet, false));
+        Assert.assertArrayEquals(toArray(annexB(X265_VPS, X265_SPS, X265_PPS)), toArray(parameterSets.get()));
+    }
+
+    @Test
+    public void testH265SeveralParameterSets() {
+        ParameterSets parameterSets = new ParameterSets(VideoCodec.H265);
+
+        // The ids are read after the profile_tier_level, which contains emulation prevention bytes
+        Assert.assertTrue(parameterSets.update(annexB(X265_VPS, X265_SPS, X265_SPS_ID1, X265_PPS), true));
+        Assert.assertArrayEquals(toArray(annexB(X265_VPS, X265_SPS, X265_SPS_ID1, X265_PPS)), toArray(parameterSets.get()));
+
+        Assert.assertTrue(parameterSets.update(annexB(X265_SPS_ID1, X265_IDR), false));
+        Assert.assertArrayEquals(toArray(annexB(X265_VPS, X265_SPS, X265_SPS_ID1, X265_PPS)), toArray(parameterSets.get()));
+    }
+}
@@ -0,0 +1,168 @@
+package com.genymobile.scrcpy.video;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class EncoderBenchmarkResultTest {
+
+    private static final long SECOND_NS = 1_000_000_000L;
+
+    private static EncoderBenchmarkResult createTrial(String codec, String encoder, int bitRate, int frames, int frameSize, long latency) {
+        EncoderBenchmarkResult result = new EncoderBenchmarkResult(codec, encoder, 1920, 1080, bitRate, 60);
+        for (int i = 0; i < frames; ++i) {
+            result.addFrame(frameSize, latency);
+        }
+        result.setDuration(SECOND_NS);
+        return result;
+    }
+
+    @Test
+    public void testLatencyPercentiles() {
+        EncoderBenchmarkResult result = new EncoderBenchmarkResult("h264", "enc", 1920, 1080, 8_000_000, 60);
+        // Add the latencies in reverse order, to check that they are sorted
+        for (int i = 100; i > 0; --i) {
+            result.addFrame(1000, i * 1_000_000L);
+        }
+
+        Assert.assertEquals(1_000_000L, result.getLatencyPercentile(0));
+        Assert.assertEquals(50_000_000L, result.getLatencyPercentile(50));
+        Assert.assertEquals(90_000_000L, result.getLatencyPercentile(90));
+        Assert.assertEquals(99_000_000L, result.getLatencyPercentile(99));
+        Assert.assertEquals(100_000_000L, result.getLatencyPercentile(100));
+
+        // A frame added after a query must be taken into account
+        result.addFrame(1000, 0);
+        Assert.assertEquals(0, result.getLatencyPercentile(0));
+        Assert.assertEquals(101, result.getFrameCount());
+    }
+
+    @Test
+    public void testNearestRankPercentile() {
+        EncoderBenchmarkResult result = new EncoderBenchmarkResult("h264", "enc", 1920, 1080, 8_000_000, 60);
+        result.addFrame(1000, 10);
+        result.addFrame(1000, 20);
+        result.addFrame(1000, 30);
+
+        // ceil(0.5 * 3) = 2
+        Assert.assertEquals(20, result.getLatencyPercentile(50));
+        // ceil(0.9 * 3) = 3
+        Assert.assertEquals(30, result.getLatencyPercentile(90));
+    }
+
+    @Test
+    public void testNoFrames() {
+        EncoderBenchmarkResult result = new EncoderBenchmarkResult("h264", "enc", 1920, 1080, 8_000_000, 60);
+        Assert.assertEquals(0, result.getLatencyPercentile(90));
+        Assert.assertEquals(0, result.getFps(), 0);
+        Assert.assertEquals(0, result.getOutputBitRate());
+        Assert.assertEquals(0, result.getScore());
+    }
+
+    @Test
+    public void testBitRateError() {
+        // 60 frames of 20000 bytes in 1 second: 9.6 Mbps
+        EncoderBenchmarkResult result = createTrial("h264", "enc", 8_000_000, 60, 20_000, 0);
+        Assert.assertEquals(60, result.getFps(), 0.001);
+        Assert.assertEquals(9_600_000, result.getOutputBitRate());
+        Assert.assertEquals(0.2f, result.getBitRateError(), 0.0001f);
+
+        result = createTrial("h264", "enc", 12_000_000, 60, 20_000, 0);
+        Assert.assertEquals(-0.2f, result.getBitRateError(), 0.0001f);
+    }
+
+    @Test
+    public void testScore() {
+        // Full frame rate, no latency, exact bitrate
+        EncoderBenchmarkResult result = createTrial("h264", "enc", 9_600_000, 60, 20_000, 0);
+        Assert.assertEquals(100, result.getScore());
+
+        // Full frame rate (60), p90 latency of half a frame interval (30 * (1 - 1/8) = 26.25), bitrate error of 20% (10 * 0.8 = 8)
+        result = createTrial("h264", "enc", 8_000_000, 60, 20_000, 8_333_333);
+        Assert.assertEquals(94, result.getScore());
+
+        // Half the frame rate (30), no latency (30), bitrate error of 50% (5)
+        result = createTrial("h264", "enc", 9_600_000, 30, 20_000, 0);
+        Assert.assertEquals(65, result.getScore());
+
+        // A latency of 4 frame intervals or more does not score, a bitrate error of 100% or more does not score
+        result = createTrial("h264", "enc", 1_000_000, 60, 20_000, SECOND_NS);
+        Assert.assertEquals(60, result.getScore());
+    }
+
+    @Test
+    public void testScoreConfigFailed() {
+        EncoderBenchmarkResult result = createTrial("h264", "enc", 9_600_000, 60, 20_000, 0);
+        result.setConfigError("failed");
+        Assert.assertTrue(result.isConfigFailed());
+        Assert.assertEquals(0, result.getScore());
+    }
+
+    @Test
+    public void testScoreRuntimeFailed() {
+        EncoderBenchmarkResult result = createTrial("h264", "enc", 9_600_000, 60, 20_000, 0);
+        result.setRuntimeError("stalled");
+        Assert.assertFalse(result.isConfigFailed());
+        Assert.assertTrue(result.isFailed());
+        Assert.assertEquals(0, result.getScore());
+    }
+
+    @Test
+    public void testFormat() {
+        EncoderBenchmarkResult result = createTrial("h264", "OMX.test.avc", 8_000_000, 60, 20_000, 8_333_333);
+        String expected = "encoder_benchmark codec=h264 encoder=OMX.test.avc size=1920x1080 bitrate=8000000 status=ok frames=60 fps=60.0"
+                + " latency_p50_us=8333 latency_p90_us=8333 latency_p99_us=8333 output_bitrate=9600000 bitrate_error=+0.200 score=94";
+        Assert.assertEquals(expected, result.format());
+    }
+
+    @Test
+    public void testFormatConfigFailed() {
+        EncoderBenchmarkResult result = new EncoderBenchmarkResult("h265", "OMX.test.hevc", 1280, 720, 4_000_000, 60);
+        result.setConfigError("Could not \"configure\"\nencoder");
+        String expected = "encoder_benchmark codec=h265 encoder=OMX.test.hevc size=1280x720 bitrate=4000000 status=config_failed"
+                + " error=\"Could not 'configure' encoder\"";
+        Assert.assertEquals(expected, result.format());
+    }
+
+    @Test
+    public void testFormatRuntimeFailed() {
+        EncoderBenchmarkResult result = createTrial("h264", "OMX.test.avc", 8_000_000, 60, 20_000, 8_333_333);
+        result.setRuntimeError("no end of stream after 2000ms");
+        String expected = "encoder_benchmark codec=h264 encoder=OMX.test.avc size=1920x1080 bitrate=8000000 status=failed frames=60"
+                + " error=\"no end of stream after 2000ms\"";
+        Assert.assertEquals(expected, result.format());
+    }
+
+    @Test
+    public void testFormatReport() {
+        List<EncoderBenchmarkResult> results = new ArrayList<>();
+        results.add(createTrial("h264", "a", 9_600_000, 30, 20_000, 0)); // 65
+        results.add(createTrial("h264", "a", 9_600_000, 60, 20_000, 0)); // 100
+        results.add(createTrial("h264", "b", 8_000_000, 60, 20_000, 8_333_333)); // 94
+        EncoderBenchmarkResult failed = new EncoderBenchmarkResult("h265", "c", 1920, 1080, 8_000_000, 60);
+        failed.setConfigError("failed");
+        results.add(failed); // 0
+        results.add(createTrial("h265", "d", 8_000_000, 60, 20_000, 8_333_333)); // 94
+
+        String[] lines = EncoderBenchmarkResult.formatReport(results).split("\n");
+        Assert.assertEquals(7, lines.length);
+        for (int i = 0; i < results.size(); ++i) {
+            Assert.assertEquals(results.get(i).format(), lines[i]);
+        }
+        // The average score of "a" is (65 + 100) / 2 = 82
+        Assert.assertEquals("encoder_ranking codec=h264 encoders=b:94,a:82", lines[5]);
+        Assert.assertEquals("encoder_ranking codec=h265 encoders=d:94,c:0", lines[6]);
+    }
+
+    @Test
+    public void testFormatReportKeepsOrderOnEquality() {
+        List<EncoderBenchmarkResult> results = new ArrayList<>();
+        results.add(createTrial("h264", "first", 9_600_000, 60, 20_000, 0));
+        results.add(createTrial("h264", "second", 9_600_000, 60, 20_000, 0));
+
+        String[] lines = EncoderBenchmarkResult.formatReport(results).split("\n");
+        Assert.assertEquals("encoder_ranking codec=h264 encoders=first:100,second:100", lines[2]);
+    }
+}
@@ -0,0 +1,163 @@
+package com.genymobile.scrcpy.video;
+
+import com.genymobile.scrcpy.util.IO;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measure the encoder-to-socket latency of the asynchronous video pipeline (codec callback -> {@link OutputBufferRing} -> writer thread)
+ * on a desktop JVM, with a fast and a slow consumer.
+ * <p>
+ * The encoder is simulated: it produces a packet every frame interval into a limited number of output buffers, and stalls while all of
+ * them are held by the writer (like a real encoder, which cannot output anything until a buffer is released). The latency is measured, like
+ * on the device, from the moment the buffer is made available to the moment it is written to the socket.
+ * <p>
+ * Run with {@code ./gradlew :server:testDebugUnitTest -Pbenchmark --tests '*Benchmark'}.
+ */
+public class OutputBufferRingBenchmark {
+
+    private static final int RING_CAPACITY = 64; // like SurfaceEncoder
+    private static final int CODEC_BUFFERS = 8;
+    private static final int HEADER_SIZE = 21;
+    private static final int PACKET_SIZE = 32 * 1024;
+    private static final int FPS = 60;
+    private static final int FRAMES = 120;
+    private static final long FRAME_INTERVAL_NS = 1_000_000_000L / FPS;
+    // Small socket buffers, so that a slow consumer is not hidden by the kernel buffers
+    private static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+
+    private static final class Result {
+        private long latencyTotal;
+        private long latencyMax;
+        private int stalls;
+        private long received;
+    }
+
+    @Before
+    public void checkEnabled() {
+        Assume.assumeTrue("Benchmarks disabled", Boolean.getBoolean("scrcpy.benchmark"));
+    }
+
+    private static Thread startConsumer(SocketChannel channel, long total, long bytesPerSecond, Result result) {
+        Thread thread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+            long start = System.nanoTime();
+            try {
+                while (result.received < total) {
+                    buffer.clear();
+                    int r = channel.read(buffer);
+                    if (r == -1) {
+                        break;
+                    }
+                    result.received += r;
+                    if (bytesPerSecond > 0) {
+                        // Do not read faster than the given rate
+                        long deadline = start + result.received * 1_000_000_000L / bytesPerSecond;
+                        LockSupport.parkNanos(deadline - System.nanoTime());
+                    }
+                }
+            } catch (IOException e) {
+                // the count will not match
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static Result run(long consumerBytesPerSecond) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel writer = SocketChannel.open();
+        writer.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+        writer.connect(server.getLocalAddress());
+        SocketChannel reader = server.accept();
+        server.close();
+
+        Result result = new Result();
+        OutputBufferRing ring = new OutputBufferRing(RING_CAPACITY);
+        ByteBuffer[] codecBuffers = new ByteBuffer[CODEC_BUFFERS];
+        for (int i = 0; i < CODEC_BUFFERS; ++i) {
+            codecBuffers[i] = ByteBuffer.allocateDirect(PACKET_SIZE);
+        }
+        Semaphore freeCodecBuffers = new Semaphore(CODEC_BUFFERS);
+
+        Thread codecThread = new Thread(() -> {
+            long start = System.nanoTime();
+            int next = 0;
+            for (int i = 0; i < FRAMES; ++i) {
+                LockSupport.parkNanos(start + i * FRAME_INTERVAL_NS - System.nanoTime());
+                if (!freeCodecBuffers.tryAcquire()) {
+                    ++result.stalls;
+                    freeCodecBuffers.acquireUninterruptibly();
+                }
+                // The buffers are released in order
+                ring.put(next, 0, PACKET_SIZE, i * FRAME_INTERVAL_NS / 1000, 0);
+                next = (next + 1) % CODEC_BUFFERS;
+            }
+        });
+
+        long total = (long) FRAMES * (HEADER_SIZE + PACKET_SIZE);
+        Thread consumer = startConsumer(reader, total, consumerBytesPerSecond, result);
+        codecThread.start();
+
+        try {
+            ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+            ByteBuffer[] buffers = new ByteBuffer[2];
+            for (int i = 0; i < FRAMES; ++i) {
+                int index = ring.take();
+                Assert.assertNotEquals(-1, index);
+
+                header.clear();
+                ByteBuffer payload = codecBuffers[index];
+                payload.clear();
+                buffers[0] = header;
+                buffers[1] = payload;
+                IO.writeFully(writer, buffers);
+                freeCodecBuffers.release();
+
+                long latency = System.nanoTime() - ring.getTakenAvailableTime();
+                result.latencyTotal += latency;
+                result.latencyMax = Math.max(result.latencyMax, latency);
+            }
+            codecThread.join();
+            consumer.join();
+        } finally {
+            writer.close();
+            reader.close();
+        }
+
+        Assert.assertEquals(total, result.received);
+        return result;
+    }
+
+    private static void print(String name, Result result) {
+        System.out.println(String.format(Locale.US, "%s consumer: encoder-to-socket latency avg=%dus max=%dus, encoder stalls=%d/%d", name,
+                result.latencyTotal / FRAMES / 1000, result.latencyMax / 1000, result.stalls, FRAMES));
+    }
+
+    @Test
+    public void benchmarkFastConsumer() throws Exception {
+        print("fast", run(0));
+    }
+
+    @Test
+    public void benchmarkSlowConsumer() throws Exception {
+        // Half the produced bitrate
+        long bytesPerSecond = (long) (HEADER_SIZE + PACKET_SIZE) * FPS / 2;
+        print("slow", run(bytesPerSecond));
+    }
+}